@@ -0,0 +1,192 @@
+package bench;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the parse, analyze, generate and write stages of the pipeline on the
+ * bundled solos and on synthetic solos of 10k and 100k notes.
+ * Each stage is fed the output of the stage before it, prepared once per trial,
+ * so only the stage itself is timed. Run from the project directory, which holds
+ * the bundled files, and add -prof gc for the bytes allocated per operation:
+ * <pre>
+ * mvn -B -Pjmh package
+ * java -jar target/benchmarks.jar PipelineBenchmark -prof gc
+ * </pre>
+ * JMH cannot generate code for a class in the default package, and a class in a
+ * package cannot name the default package, so the stages are looked up by name
+ * as method handles. Held in static finals they are constants to the JIT and
+ * cost no more than direct calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final String SYNTHETIC = "synthetic-";
+
+    // MIDIReader.map(String), MIDIReader.parse(ByteBuffer)
+    private static final MethodHandle MAP;
+    private static final MethodHandle PARSE;
+    // new GeneratorSettings()
+    private static final MethodHandle SETTINGS;
+    // RhythmGenerator.analyze(NoteEvents, GeneratorSettings, RunMetrics)
+    private static final MethodHandle ANALYZE;
+    // RhythmGenerator.accompany(AnalysisFile, GeneratorSettings, RunMetrics)
+    private static final MethodHandle GENERATE;
+    // RhythmGenerator.writeOnSolo(Sequence, GeneratorSettings, RunMetrics), MIDIWriter.write(Sequence, int, String)
+    private static final MethodHandle ACCOMPANY;
+    private static final MethodHandle WRITE;
+    private static final Object METRICS_DISABLED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> reader = Class.forName("MIDIReader");
+            Class<?> events = Class.forName("NoteEvents");
+            Class<?> settings = Class.forName("GeneratorSettings");
+            Class<?> generator = Class.forName("RhythmGenerator");
+            Class<?> analysis = Class.forName("AnalysisFile");
+            Class<?> metrics = Class.forName("RunMetrics");
+            Class<?> builders = Class.forName("[LEventBuilder;");
+            MAP = lookup.findStatic(reader, "map", MethodType.methodType(ByteBuffer.class, String.class));
+            PARSE = erase(lookup.findStatic(reader, "parse", MethodType.methodType(events, ByteBuffer.class)));
+            SETTINGS = erase(lookup.findConstructor(settings, MethodType.methodType(void.class)));
+            ANALYZE = erase(lookup.findStatic(generator, "analyze",
+                    MethodType.methodType(analysis, events, settings, metrics)));
+            GENERATE = erase(lookup.findStatic(generator, "accompany",
+                    MethodType.methodType(builders, analysis, settings, metrics)));
+            ACCOMPANY = erase(lookup.findStatic(generator, "writeOnSolo",
+                    MethodType.methodType(Sequence.class, Sequence.class, settings, metrics)));
+            WRITE = lookup.findStatic(Class.forName("MIDIWriter"), "write",
+                    MethodType.methodType(void.class, Sequence.class, int.class, String.class));
+            METRICS_DISABLED = lookup.findStaticGetter(metrics, "DISABLED", metrics).invoke();
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // a bundled file, or synthetic- and a number of notes
+    @Param({"compSolo2.mid", "Parker,_Charlie_-_Donna_Lee.midi", "synthetic-10000", "synthetic-100000"})
+    public String input;
+
+    private ByteBuffer file;
+    private Object settings;
+    private Object events;
+    private Object analysis;
+    private Sequence accompanied;
+    private String output;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Throwable {
+        String path = input;
+        if (input.startsWith(SYNTHETIC)) {
+            File f = File.createTempFile(input, ".mid");
+            f.deleteOnExit();
+            MidiSystem.write(syntheticSolo(Integer.parseInt(input.substring(SYNTHETIC.length())), 960, 1), 1, f);
+            path = f.getPath();
+        }
+        file = (ByteBuffer) MAP.invokeExact(path);
+        settings = (Object) SETTINGS.invokeExact();
+        events = parse();
+        analysis = analyze();
+        accompanied = (Sequence) (Object) ACCOMPANY.invokeExact((Object) MidiSystem.getSequence(new File(path)),
+                settings, METRICS_DISABLED);
+        File out = File.createTempFile("benchmark", ".mid");
+        out.deleteOnExit();
+        output = out.getPath();
+    }
+
+    /**
+     * Decodes the notes and timing of the mapped file
+     */
+    @Benchmark
+    public Object parse() throws Throwable {
+        return (Object) PARSE.invokeExact((Object) file);
+    }
+
+    /**
+     * Divides every track into measures and finds its key and chords
+     */
+    @Benchmark
+    public Object analyze() throws Throwable {
+        return (Object) ANALYZE.invokeExact(events, settings, METRICS_DISABLED);
+    }
+
+    /**
+     * Generates the backing of every track from its analysis
+     */
+    @Benchmark
+    public Object generate() throws Throwable {
+        return (Object) GENERATE.invokeExact(analysis, settings, METRICS_DISABLED);
+    }
+
+    /**
+     * Writes the solo and its backing to a MIDI file
+     */
+    @Benchmark
+    public void write() throws Throwable {
+        WRITE.invokeExact(accompanied, 1, output);
+    }
+
+    /**
+     * @return the handle taking and returning Object in place of the classes of the default package
+     */
+    private static MethodHandle erase(MethodHandle handle) {
+        return handle.asType(handle.type().erase());
+    }
+
+    /**
+     * Builds a random single-track solo of eighth and sixteenth notes
+     * @param notes the number of notes
+     * @param ppq the resolution in pulses per quarter note
+     * @param seed the seed of the random notes
+     * @return the solo
+     */
+    public static Sequence syntheticSolo(int notes, int ppq, long seed) throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, ppq);
+        Track t = sequence.createTrack();
+        Random random = new Random(seed);
+        long tick = 0;
+        int pitch = 64;
+        for (int i = 0; i < notes; i++) {
+            int length = random.nextInt(4) == 0 ? ppq / 4 : ppq / 2;
+            // a quarter of the time rest instead, so measures have gaps to comp into
+            if (random.nextInt(4) == 0) {
+                tick += length;
+            }
+            pitch = Math.max(40, Math.min(90, pitch + random.nextInt(9) - 4));
+            t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, pitch, 90), tick));
+            t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, pitch, 0), tick + length - 1));
+            tick += length;
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,727 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accompanies solos in a resident JVM, so short files cost milliseconds instead
+ * of a JVM start-up each.
+ * Jobs are Standard MIDI Files in memory; each is answered with the bytes of the
+ * solo tracks as they are followed by the backing tracks, as BatchRunner writes
+ * them. Jobs wait in a bounded queue for a fixed set of worker threads, so a
+ * burst of work is held back at submission instead of piling up: submit blocks
+ * until there is room, and trySubmit gives up after a timeout. Each worker keeps
+ * its own output buffer, and MIDIWriter its own encoding buffer, for the life of
+ * the service; the shared chords and voicing tables stay loaded, and warmUp runs
+ * the pipeline enough times for the JIT to compile it before the first job.
+ *
+ * Jobs arrive through the API, a socket on the loopback interface (see serve),
+ * or a spool directory (see watch). Nothing listens beyond localhost. The
+ * connections are served by a bounded pool of handlers, one per worker and
+ * queue slot, since no more jobs than that can be in hand at once; a connection
+ * beyond those is answered BUSY before any of its request is read, so idle or
+ * slow clients cannot hold more threads or request buffers than the queue
+ * would.
+ */
+public class AccompanimentService {
+
+    /** the response to a job that was accompanied; the MIDI file follows */
+    public static final int OK = 0;
+    /** the response to a job turned away because the queue stayed full */
+    public static final int BUSY = 1;
+    /** the response to a job that failed; a UTF-8 message follows */
+    public static final int FAILED = 2;
+
+    // the largest file accepted over the socket
+    public static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+
+    private static final int WARM_UP_MEASURES = 32;
+
+    private final int workers;
+    private final GeneratorSettings settings;
+    private final BlockingQueue<Job> queue;
+    private final long submitTimeoutMillis;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<AutoCloseable> listeners = new ArrayList<>();
+    private volatile boolean running;
+
+    // the connections being served, one permit each, so stop can close them and the handlers stay bounded
+    private final int maxConnections;
+    private final Semaphore connectionPermits;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private ExecutorService handlers;
+
+    // the spooled solos queued or being accompanied, so a solo seen twice before its output exists runs once
+    private final Set<Path> spooling = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram(1_000_000);
+
+    /**
+     * @param workers the number of jobs accompanied at once
+     * @param queueCapacity the most jobs waiting for a worker
+     * @param submitTimeoutMillis how long trySubmit and the socket wait for room in the queue
+     * @param settings the layout of the backing tracks and how they are produced; since the workers already run
+     *                 jobs side by side, settings that are not parallel keep each job on its worker
+     */
+    public AccompanimentService(int workers, int queueCapacity, long submitTimeoutMillis, GeneratorSettings settings) {
+        if (workers <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Workers and queue capacity must be positive");
+        }
+        if (submitTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Submit timeout cannot be negative");
+        }
+        this.workers = workers;
+        this.settings = settings;
+        this.submitTimeoutMillis = submitTimeoutMillis;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        maxConnections = workers + queueCapacity;
+        connectionPermits = new Semaphore(maxConnections);
+    }
+
+    public AccompanimentService(int workers, int queueCapacity) {
+        this(workers, queueCapacity, 1000, new GeneratorSettings().setParallel(false));
+    }
+
+    /**
+     * Starts the workers
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        handlers = Executors.newFixedThreadPool(maxConnections, task -> {
+            Thread t = new Thread(task, "accompaniment-connection");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < workers; i++) {
+            startThread(new Worker()::run, "accompaniment-worker-" + i);
+        }
+    }
+
+    /**
+     * Stops listening, the connections and the workers, failing the jobs still waiting
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (AutoCloseable listener : listeners) {
+            try {
+                listener.close();
+            } catch (Exception e) {
+                // the listener is going away anyway
+            }
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the handler sees the socket closed either way
+            }
+        }
+        handlers.shutdownNow();
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        handlers.awaitTermination(1, TimeUnit.MINUTES);
+        threads.clear();
+        listeners.clear();
+        for (Job job; (job = queue.poll()) != null; ) {
+            job.result.completeExceptionally(new IllegalStateException("The service stopped"));
+        }
+    }
+
+    private void startThread(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        threads.add(t);
+        t.start();
+    }
+
+    /**
+     * Accompanies synthetic solos on the calling thread so the JIT compiles the pipeline before real jobs arrive
+     * @param iterations the number of solos accompanied
+     */
+    public void warmUp(int iterations) {
+        byte[] solo = warmUpSolo();
+        OutputBuffer out = new OutputBuffer();
+        for (int i = 0; i < iterations; i++) {
+            try {
+                accompany(solo, settings, out);
+            } catch (Exception e) {
+                throw new IllegalStateException("The warm-up solo could not be accompanied", e);
+            }
+        }
+    }
+
+    /**
+     * Queues a job, waiting for as long as the queue is full
+     * @param smf the bytes of a Standard MIDI File
+     * @return the accompanied file, once a worker has written it
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public CompletableFuture<byte[]> submit(byte[] smf) throws InterruptedException {
+        Job job = new Job(smf);
+        checkRunning();
+        queue.put(job);
+        return queued(job);
+    }
+
+    /**
+     * Queues a job unless the queue stays full for the submit timeout
+     * @param smf the bytes of a Standard MIDI File
+     * @return the accompanied file, once a worker has written it, or null if the job was turned away
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public CompletableFuture<byte[]> trySubmit(byte[] smf) throws InterruptedException {
+        Job job = new Job(smf);
+        checkRunning();
+        if (!queue.offer(job, submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        return queued(job);
+    }
+
+    /**
+     * Accepts a job just queued. Stop may have drained the queue while the job was on its way in, after
+     * checkRunning or while waiting for room, and then no worker will ever take it: such a job is taken back
+     * and failed, so its future still completes.
+     */
+    private CompletableFuture<byte[]> queued(Job job) {
+        if (!running) {
+            queue.remove(job);
+            job.result.completeExceptionally(new IllegalStateException("The service stopped"));
+            return job.result;
+        }
+        accepted.incrementAndGet();
+        return job.result;
+    }
+
+    private void checkRunning() {
+        if (!running) {
+            throw new IllegalStateException("The service is not running");
+        }
+    }
+
+    /**
+     * Accompanies a solo in memory
+     * @param smf the bytes of a Standard MIDI File
+     * @param settings the layout of the backing tracks and how they are produced
+     * @param out the buffer the accompanied file is written to, cleared first
+     * @throws Exception if the solo is not a valid MIDI file
+     */
+    private static void accompany(byte[] smf, GeneratorSettings settings, OutputBuffer out) throws Exception {
+        ByteBuffer solo = ByteBuffer.wrap(smf);
+        NoteEvents events = MIDIReader.parse(solo);
+        EventBuilder[] backings = RhythmGenerator.accompany(events, settings);
+        List<ByteBuffer> chunks = MIDIReader.trackChunks(solo);
+        out.clear();
+        MIDIWriter writer = new MIDIWriter(out, 1, chunks.size() + backings.length, events.getResolution());
+        BatchRunner.writeTracks(writer, chunks, backings);
+        writer.close();
+    }
+
+    /**
+     * Listens for jobs on the loopback interface. A client sends any number of jobs on a connection, each as a
+     * big-endian int length followed by that many bytes of a MIDI file, and ends with a length of 0 or by
+     * closing. Every job is answered with a status byte (OK, BUSY or FAILED), a big-endian int length and the
+     * accompanied file or an error message.
+     * @param port the port, or 0 for any free one
+     * @return the port listened on
+     * @throws IOException if the port cannot be bound
+     */
+    public synchronized int serve(int port) throws IOException {
+        checkRunning();
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        listeners.add(server);
+        startThread(() -> acceptLoop(server), "accompaniment-accept-" + server.getLocalPort());
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop(ServerSocket server) {
+        while (running) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                // closed by stop
+                return;
+            }
+            if (!connectionPermits.tryAcquire()) {
+                refuse(socket);
+                continue;
+            }
+            connections.add(socket);
+            try {
+                handlers.execute(() -> handle(socket));
+            } catch (RejectedExecutionException e) {
+                // stopped since the connection was accepted
+                closeConnection(socket);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answers a connection beyond the handlers BUSY without reading its request, and closes it
+     */
+    private void refuse(Socket socket) {
+        rejected.incrementAndGet();
+        try (Socket s = socket;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            respond(out, BUSY, message("Too many connections"));
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private void closeConnection(Socket socket) {
+        connections.remove(socket);
+        connectionPermits.release();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            serveConnection(socket);
+        } finally {
+            closeConnection(socket);
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            while (running) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length == 0) {
+                    return;
+                }
+                if (length < 0 || length > MAX_REQUEST_BYTES) {
+                    respond(out, FAILED, message("Request length " + length + " is not between 1 and "
+                            + MAX_REQUEST_BYTES));
+                    return;
+                }
+                byte[] smf = new byte[length];
+                in.readFully(smf);
+                CompletableFuture<byte[]> result = trySubmit(smf);
+                if (result == null) {
+                    respond(out, BUSY, message("The queue is full"));
+                    continue;
+                }
+                try {
+                    respond(out, OK, result.get());
+                } catch (ExecutionException e) {
+                    respond(out, FAILED, message(String.valueOf(e.getCause())));
+                }
+            }
+        } catch (SocketException | EOFException e) {
+            // the client went away
+        } catch (IOException e) {
+            System.err.println("Connection failed: " + e);
+        } catch (InterruptedException | IllegalStateException e) {
+            // the service stopped
+        }
+    }
+
+    private static byte[] message(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(DataOutputStream out, int status, byte[] body) throws IOException {
+        out.writeByte(status);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Sends one job to a service on this machine and waits for its answer
+     * @param port the port the service listens on
+     * @param smf the bytes of a Standard MIDI File
+     * @return the accompanied file
+     * @throws IOException if the service cannot be reached, is busy or fails the job
+     */
+    public static byte[] request(int port, byte[] smf) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(smf.length);
+            out.write(smf);
+            out.writeInt(0);
+            out.flush();
+            int status = in.readUnsignedByte();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            if (status != OK) {
+                throw new IOException((status == BUSY ? "Busy: " : "Failed: ")
+                        + new String(body, StandardCharsets.UTF_8));
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Accompanies the solos put in a directory, writing each output next to it as BatchRunner does. Solos
+     * already there are accompanied first unless their output is newer. A solo should be moved into the
+     * directory whole, not written in place, so it is never read half written. Solos wait for room in the
+     * queue, so a full queue holds back the directory rather than turning files away. Only the creation of a
+     * file is watched, which is what a move into the directory makes; a solo is never accompanied twice at
+     * once.
+     * @param directory the spool directory
+     * @throws IOException if the directory cannot be watched
+     */
+    public synchronized void watch(Path directory) throws IOException {
+        checkRunning();
+        WatchService watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        listeners.add(watcher);
+        startThread(() -> watchLoop(directory, watcher), "accompaniment-spool");
+    }
+
+    private void watchLoop(Path directory, WatchService watcher) {
+        try {
+            File[] existing = directory.toFile().listFiles();
+            if (existing != null) {
+                Arrays.sort(existing);
+                for (File f : existing) {
+                    spool(f);
+                }
+            }
+            while (running) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() != StandardWatchEventKinds.OVERFLOW) {
+                        spool(directory.resolve((Path) event.context()).toFile());
+                    }
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | IllegalStateException e) {
+            // the service stopped, closing the watcher
+        }
+    }
+
+    private void spool(File input) throws InterruptedException {
+        File output = BatchRunner.outputFile(input);
+        if (!input.isFile() || !BatchRunner.isSolo(input) || output.lastModified() >= input.lastModified()) {
+            return;
+        }
+        Path path = input.toPath().toAbsolutePath();
+        if (!spooling.add(path)) {
+            return;
+        }
+        byte[] smf;
+        CompletableFuture<byte[]> result;
+        try {
+            smf = Files.readAllBytes(path);
+            result = submit(smf);
+        } catch (IOException e) {
+            // removed before it could be read
+            spooling.remove(path);
+            return;
+        } catch (InterruptedException | IllegalStateException e) {
+            spooling.remove(path);
+            throw e;
+        }
+        result.whenComplete((midi, error) -> {
+            try {
+                if (error != null) {
+                    System.err.println("FAIL " + input + ": " + error);
+                    return;
+                }
+                Path partial = output.toPath().resolveSibling(output.getName() + ".part");
+                Files.write(partial, midi);
+                Files.move(partial, output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("FAIL " + output + ": " + e);
+            } finally {
+                // only once the output is in place, so the guard on its time sees it
+                spooling.remove(path);
+            }
+        });
+    }
+
+    /**
+     * A short solo of random eighth notes, for warming up
+     */
+    private static byte[] warmUpSolo() {
+        int ppq = 480;
+        EventBuilder notes = new EventBuilder();
+        Random random = new Random(WARM_UP_MEASURES);
+        for (int eighth = 0; eighth < WARM_UP_MEASURES * 8; eighth++) {
+            if (random.nextInt(3) != 0) {
+                long tick = (long) eighth * ppq / 2;
+                notes.addNote(tick, tick + ppq / 2 - 1, 0, 55 + random.nextInt(24), 90);
+            }
+        }
+        OutputBuffer out = new OutputBuffer();
+        try (MIDIWriter writer = new MIDIWriter(out, 1, 1, ppq)) {
+            writer.writeTrack(notes, (long) WARM_UP_MEASURES * 4 * ppq);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return how many jobs were turned away because the queue stayed full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of jobs waiting for a worker
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the time from submission to completion of every finished job; read it while no job is running
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d accepted, %d completed, %d failed, %d rejected, %d queued", getAccepted(),
+                getCompleted(), getFailed(), getRejected(), getQueued());
+    }
+
+    /**
+     * A queued solo and where its answer goes
+     */
+    private static final class Job {
+        final byte[] smf;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Job(byte[] smf) {
+            this.smf = smf;
+        }
+    }
+
+    /**
+     * Takes jobs off the queue until the service stops, reusing one output buffer. Whatever a job throws, even
+     * an error such as running out of memory on a huge solo, fails that job alone: its future is always
+     * completed and the worker carries on, so the pool never shrinks and no client waits forever.
+     */
+    private final class Worker {
+        private OutputBuffer out = new OutputBuffer();
+
+        void run() {
+            while (running) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    accompany(job.smf, settings, out);
+                    completed.incrementAndGet();
+                    job.result.complete(out.toByteArray());
+                } catch (Throwable e) {
+                    failed.incrementAndGet();
+                    job.result.completeExceptionally(e);
+                    if (e instanceof Error) {
+                        // the buffer may be what grew too large
+                        out = new OutputBuffer();
+                    }
+                }
+                synchronized (latency) {
+                    latency.record(System.nanoTime() - job.submitted);
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable in-memory channel that is cleared and reused instead of closed
+     */
+    private static final class OutputBuffer implements WritableByteChannel {
+        private byte[] bytes = new byte[64 * 1024];
+        private int size;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+            src.get(bytes, size, n);
+            size += n;
+            return n;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // kept open for the next job
+        }
+    }
+
+    /**
+     * Runs the service, or sends files to a running one
+     * @param args [-workers n] [-queue n] [-port n] [-spool directory] [-voicing] [-styles file] [-warmup n]
+     *             to run the service, or -send port followed by the files to be accompanied, which are
+     *             written next to their inputs
+     * @throws Exception if the service cannot listen or a file cannot be sent
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("-send")) {
+            int port = Integer.parseInt(args[1]);
+            for (int i = 2; i < args.length; i++) {
+                long start = System.nanoTime();
+                byte[] midi = request(port, Files.readAllBytes(Paths.get(args[i])));
+                File output = BatchRunner.outputFile(new File(args[i]));
+                Files.write(output.toPath(), midi);
+                System.out.printf("OK   %8.2f ms  %s -> %s%n", (System.nanoTime() - start) / 1e6, args[i],
+                        output.getName());
+            }
+            return;
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = 64;
+        int port = -1;
+        String spool = null;
+        int warmUp = 200;
+        GeneratorSettings settings = new GeneratorSettings().setParallel(false);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-workers") && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-queue") && i + 1 < args.length) {
+                queueCapacity = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-spool") && i + 1 < args.length) {
+                spool = args[++i];
+            } else if (args[i].equals("-voicing")) {
+                settings.setVoiceLeading(true);
+            } else if (args[i].equals("-styles") && i + 1 < args.length) {
+                settings.setStyles(StyleRegistry.loadOrBuiltIn(args[++i]));
+            } else if (args[i].equals("-warmup") && i + 1 < args.length) {
+                warmUp = Integer.parseInt(args[++i]);
+            }
+        }
+        if (port < 0 && spool == null) {
+            System.out.println("Usage: AccompanimentService [-workers n] [-queue n] [-port n] [-spool directory]"
+                    + " [-voicing] [-styles file] [-warmup n]");
+            System.out.println("       AccompanimentService -send port <file>...");
+            return;
+        }
+
+        AccompanimentService service = new AccompanimentService(workers, queueCapacity, 1000, settings);
+        long start = System.nanoTime();
+        service.warmUp(warmUp);
+        System.out.printf("Warmed up in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        service.start();
+        if (port >= 0) {
+            System.out.println("Listening on localhost:" + service.serve(port));
+        }
+        if (spool != null) {
+            service.watch(Paths.get(spool));
+            System.out.println("Watching " + spool);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                service.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println(service);
+            System.out.println("latency: " + service.getLatency());
+        }));
+        Thread.currentThread().join();
+    }
+}
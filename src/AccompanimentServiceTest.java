@@ -0,0 +1,329 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the service end to end: the socket and the spool directory answer what
+ * BatchRunner writes, a full queue and connections beyond the handlers are
+ * turned away, and stop leaves no job or connection waiting. A worker can be
+ * held at a gate in the middle of a job, so a full queue is reached without
+ * depending on how long a job takes. Run from the project directory, which holds
+ * the bundled files.
+ */
+public class AccompanimentServiceTest {
+
+    private static final String SOLO = "compSolo2.mid";
+    private static final long JOIN_MILLIS = 10_000;
+    private static final long SUBMIT_TIMEOUT_MILLIS = 200;
+
+    @Test
+    public void socketAnswersWhatTheBatchWrites() throws Exception {
+        AccompanimentService service = new AccompanimentService(2, 4);
+        service.start();
+        Path dir = Files.createTempDirectory("compsolo");
+        try {
+            int port = service.serve(0);
+            byte[] answer = AccompanimentService.request(port, Files.readAllBytes(Paths.get(SOLO)));
+            assertArrayEquals(batchOutput(dir), answer);
+            try {
+                AccompanimentService.request(port, "not a MIDI file".getBytes(StandardCharsets.US_ASCII));
+                fail("a broken file was accompanied");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Failed: "));
+            }
+            // the failure was the job's alone
+            assertArrayEquals(answer, AccompanimentService.request(port, Files.readAllBytes(Paths.get(SOLO))));
+            assertEquals(3, service.getAccepted());
+            assertEquals(2, service.getCompleted());
+            assertEquals(1, service.getFailed());
+        } finally {
+            service.stop();
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void socketRefusesConnectionsBeyondTheQueue() throws Exception {
+        // one worker and one queue slot: two connections at most
+        AccompanimentService service = new AccompanimentService(1, 1);
+        service.start();
+        try {
+            int port = service.serve(0);
+            Socket first = connect(port);
+            Socket second = connect(port);
+            try (Socket third = connect(port)) {
+                assertResponse(third, AccompanimentService.BUSY, "Too many connections");
+            }
+            assertEquals(1, service.getRejected());
+            first.close();
+            second.close();
+            // the handlers release their connections once they see them closed
+            byte[] solo = Files.readAllBytes(Paths.get(SOLO));
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_MILLIS);
+            while (true) {
+                try {
+                    AccompanimentService.request(port, solo);
+                    break;
+                } catch (IOException e) {
+                    // refused, either answered BUSY or closed while the request was still being sent
+                    assertTrue("no connection was released", System.nanoTime() < deadline);
+                    Thread.sleep(10);
+                }
+            }
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void fullQueueTurnsJobsAwayAfterTheTimeout() throws Exception {
+        byte[] solo = Files.readAllBytes(Paths.get(SOLO));
+        GatedSettings settings = new GatedSettings();
+        AccompanimentService service = new AccompanimentService(1, 1, SUBMIT_TIMEOUT_MILLIS, settings);
+        service.start();
+        try {
+            CompletableFuture<byte[]> held = service.submit(solo);
+            settings.awaitHeld();
+            CompletableFuture<byte[]> queued = service.submit(solo);
+
+            long start = System.nanoTime();
+            assertNull(service.trySubmit(solo));
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(waited + " ms", waited >= SUBMIT_TIMEOUT_MILLIS);
+            try {
+                AccompanimentService.request(service.serve(0), solo);
+                fail("a job was queued beyond the capacity");
+            } catch (IOException e) {
+                assertEquals("Busy: The queue is full", e.getMessage());
+            }
+            assertEquals(2, service.getRejected());
+            assertEquals(1, service.getQueued());
+
+            settings.open();
+            assertArrayEquals(held.get(), queued.get());
+            assertEquals(2, service.getCompleted());
+        } finally {
+            settings.open();
+            service.stop();
+        }
+    }
+
+    @Test
+    public void spoolDirectoryAccompaniesSolosMovedIntoIt() throws Exception {
+        Path dir = Files.createTempDirectory("compsolo");
+        Path spool = Files.createDirectory(dir.resolve("spool"));
+        AccompanimentService service = new AccompanimentService(2, 4);
+        try {
+            byte[] expected = batchOutput(dir);
+            // one solo is waiting before the directory is watched, the other is moved in afterwards
+            Files.copy(Paths.get(SOLO), spool.resolve("waiting.mid"));
+            service.start();
+            service.watch(spool);
+            Path staged = Files.copy(Paths.get(SOLO), dir.resolve("moved.mid"));
+            Files.move(staged, spool.resolve("moved.mid"), StandardCopyOption.ATOMIC_MOVE);
+
+            for (String name : new String[]{"waiting.mid", "moved.mid"}) {
+                File output = BatchRunner.outputFile(spool.resolve(name).toFile());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_MILLIS);
+                while (!output.isFile()) {
+                    assertTrue(name + " was not accompanied", System.nanoTime() < deadline);
+                    Thread.sleep(10);
+                }
+                assertArrayEquals(name, expected, Files.readAllBytes(output.toPath()));
+            }
+            // the outputs are not solos, so they are not accompanied again
+            Thread.sleep(100);
+            assertEquals(2, service.getAccepted());
+        } finally {
+            service.stop();
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void stopClosesConnectionsAndFailsWaitingJobs() throws Exception {
+        byte[] solo = Files.readAllBytes(Paths.get(SOLO));
+        GatedSettings settings = new GatedSettings();
+        AccompanimentService service = new AccompanimentService(1, 2, SUBMIT_TIMEOUT_MILLIS, settings);
+        service.start();
+        int port = service.serve(0);
+        CompletableFuture<byte[]> held = service.submit(solo);
+        settings.awaitHeld();
+        CompletableFuture<byte[]> queued = service.submit(solo);
+        try (Socket idle = connect(port)) {
+            idle.setSoTimeout((int) JOIN_MILLIS);
+            service.stop();
+            // closed by its handler, or reset with the listener if it was never accepted
+            try {
+                assertEquals("the idle connection was not closed", -1, idle.getInputStream().read());
+            } catch (SocketException e) {
+                // reset
+            }
+        }
+        assertTrue(held.isDone());
+        try {
+            queued.get();
+            fail("a job waiting when the service stopped was accompanied");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            service.submit(solo);
+            fail("a job was queued on the stopped service");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            connect(port).close();
+            fail("the stopped service still listens");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void submitsRacingStopAllComplete() throws Exception {
+        byte[] solo = Files.readAllBytes(Paths.get(SOLO));
+        GatedSettings settings = new GatedSettings();
+        AccompanimentService service = new AccompanimentService(1, 2, 0, settings);
+        service.start();
+        List<CompletableFuture<byte[]>> results = new CopyOnWriteArrayList<>();
+        // one job held by the worker and two filling the queue, so every further submit waits for room
+        results.add(service.submit(solo));
+        settings.awaitHeld();
+        results.add(service.submit(solo));
+        results.add(service.submit(solo));
+
+        Thread[] blocked = new Thread[4];
+        for (int i = 0; i < blocked.length; i++) {
+            blocked[i] = submitter(service, solo, results, 1);
+            awaitWaiting(blocked[i]);
+        }
+        Thread[] racing = new Thread[4];
+        for (int i = 0; i < racing.length; i++) {
+            racing[i] = submitter(service, solo, results, Integer.MAX_VALUE);
+        }
+        service.stop();
+        settings.open();
+        for (Thread t : blocked) {
+            t.join(JOIN_MILLIS);
+            assertFalse("a submit still waits on the stopped service", t.isAlive());
+        }
+        for (Thread t : racing) {
+            t.join(JOIN_MILLIS);
+            assertFalse("a submit still waits on the stopped service", t.isAlive());
+        }
+        assertTrue(results.size() >= 3 + blocked.length);
+        for (CompletableFuture<byte[]> result : results) {
+            assertTrue(result.isDone());
+        }
+        assertEquals(0, service.getQueued());
+    }
+
+    /**
+     * @return the file BatchRunner writes for the bundled solo, accompanied in a copy in a directory
+     */
+    private static byte[] batchOutput(Path dir) throws IOException {
+        File input = Files.copy(Paths.get(SOLO), dir.resolve("batch.mid")).toFile();
+        BatchRunner.Result result = BatchRunner.accompany(input, new GeneratorSettings());
+        assertNull(result.getError());
+        return Files.readAllBytes(result.getOutput().toPath());
+    }
+
+    private static Socket connect(int port) throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private static void assertResponse(Socket socket, int status, String message) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(status, in.readUnsignedByte());
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        assertEquals(message, new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static void deleteAll(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+
+    /**
+     * Starts a thread submitting a solo up to a number of times, until the service refuses it
+     */
+    private static Thread submitter(AccompanimentService service, byte[] solo,
+                                    List<CompletableFuture<byte[]>> results, int times) {
+        Thread t = new Thread(() -> {
+            try {
+                for (int i = 0; i < times; i++) {
+                    results.add(service.submit(solo));
+                }
+            } catch (IllegalStateException | InterruptedException e) {
+                // the service stopped before the job reached it
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING) {
+            assertTrue(t.isAlive());
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Settings that hold the worker in the middle of its job until opened, or until the worker is interrupted
+     */
+    private static final class GatedSettings extends GeneratorSettings {
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        GatedSettings() {
+            setParallel(false);
+        }
+
+        @Override
+        public Layout getLayout() {
+            held.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getLayout();
+        }
+
+        void awaitHeld() throws InterruptedException {
+            held.await();
+        }
+
+        void open() {
+            gate.countDown();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The analyzed form of a solo, so one analysis can be accompanied in any number
+ * of styles without reading the MIDI file again.
+ * It holds the timing of the solo, which indexes its measures by tick, and for
+ * every track with notes its measure grid of onsets and pitch-class histograms,
+ * its key and the chord of each measure. Everything that depends on the
+ * settings, rhythms, voicings, bass and humanizing, is left to generation.
+ * On disk it is a little-endian file of sections aligned to 8 bytes: a header,
+ * the timing, a table of the tracks and then the data of each track, whose grid
+ * words and counts are laid out exactly as MeasureGrid holds them. Reading maps
+ * the file and copies each section out in bulk, with nothing to parse. The
+ * header records the format and the grid resolution and chord register it was
+ * analyzed with, so a file from another version is refused rather than trusted.
+ */
+public class AnalysisFile {
+
+    // bump whenever the analysis of the same solo would come out differently
+    public static final int FORMAT = 2;
+    public static final String SUFFIX = ".analysis";
+
+    private static final int MAGIC = 0x4353414E;
+    private static final int HEADER_BYTES = 32;
+    private static final int TRACK_BYTES = 32;
+
+    private final TimingModel timing;
+    private final long tickLength;
+    private final AnalyzedTrack[] tracks;
+
+    /**
+     * @param timing the measures and tempo of the solo
+     * @param tickLength the tick of the end of the solo
+     * @param tracks the analysis of every track of the solo, null for a track without notes
+     */
+    public AnalysisFile(TimingModel timing, long tickLength, AnalyzedTrack[] tracks) {
+        this.timing = timing;
+        this.tickLength = tickLength;
+        this.tracks = tracks.clone();
+    }
+
+    public TimingModel getTiming() {
+        return timing;
+    }
+
+    public int getResolution() {
+        return timing.getResolution();
+    }
+
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    /**
+     * @param track the index of the track in the solo
+     * @return the analysis of the track, or null if it has no notes
+     */
+    public AnalyzedTrack getTrack(int track) {
+        return tracks[track];
+    }
+
+    /**
+     * Writes the analysis to a temporary file and moves it into place, so concurrent readers only ever see
+     * whole files
+     * @param file the file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, encode().array());
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Maps and reads an analysis written by write
+     * @param file the file
+     * @return the analysis
+     * @throws IOException if the file cannot be read or is not a whole analysis of this format
+     */
+    public static AnalysisFile read(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return decode(buffer);
+    }
+
+    /**
+     * @return the analysis in the format of write
+     */
+    public ByteBuffer encode() {
+        long length = HEADER_BYTES + timing.encodedSize() + (long) TRACK_BYTES * tracks.length;
+        for (AnalyzedTrack track : tracks) {
+            if (track != null) {
+                length += track.measures.encodedSize() + chordBytes(track.chords.length);
+            }
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Analysis too large to write: " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(FORMAT).putInt(RhythmGenerator.noteRes).putInt(RhythmGenerator.CHORD_REGISTER)
+                .putLong(tickLength).putInt(tracks.length).putInt(0);
+        timing.encode(buffer);
+
+        long offset = buffer.position() + (long) TRACK_BYTES * tracks.length;
+        for (AnalyzedTrack track : tracks) {
+            if (track == null) {
+                buffer.putLong(0).putLong(0).putInt(0).putInt(0).putInt(0).putInt(0);
+                continue;
+            }
+            buffer.putLong(track.endTick).putLong(offset).putInt(track.measures.size())
+                    .putInt(track.measures.getSlotsPerEighth()).putInt(track.key).putInt(0);
+            offset += track.measures.encodedSize() + chordBytes(track.chords.length);
+        }
+        for (AnalyzedTrack track : tracks) {
+            if (track == null) {
+                continue;
+            }
+            track.measures.encode(buffer);
+            for (Chord chord : track.chords) {
+                buffer.putShort((short) (chord.getKey() << 8 | chord.getModifierIndex()));
+            }
+            while (buffer.position() % 8 != 0) {
+                buffer.put((byte) 0);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads an analysis in the format of write
+     * @param buffer the bytes of the analysis, from its position to its limit
+     * @return the analysis
+     * @throws IOException if the bytes are not a whole analysis of this format
+     */
+    public static AnalysisFile decode(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+            throw new IOException("Not an analysis of format " + FORMAT);
+        }
+        if (buffer.getInt() != RhythmGenerator.noteRes || buffer.getInt() != RhythmGenerator.CHORD_REGISTER) {
+            throw new IOException("Analyzed with another grid or chord register");
+        }
+        try {
+            long tickLength = buffer.getLong();
+            int count = buffer.getInt();
+            buffer.getInt();
+            TimingModel timing = TimingModel.decode(buffer);
+            if (count < 0 || count > buffer.remaining() / TRACK_BYTES) {
+                throw new IOException("Invalid track count " + count);
+            }
+            AnalyzedTrack[] tracks = new AnalyzedTrack[count];
+            for (int t = 0; t < count; t++) {
+                int entry = buffer.position() + t * TRACK_BYTES;
+                long offset = buffer.getLong(entry + 8);
+                if (offset == 0) {
+                    continue;
+                }
+                int measures = buffer.getInt(entry + 16);
+                int slotsPerEighth = buffer.getInt(entry + 20);
+                // every measure takes at least a word, 12 counts and a chord, checked before anything is allocated
+                if (offset < 0 || offset > buffer.limit() || measures < 0
+                        || (long) measures * (8 + 48 + 2) > buffer.limit() - offset
+                        || slotsPerEighth != RhythmGenerator.noteRes / 8) {
+                    throw new IOException("Invalid track " + t);
+                }
+                MeasureGrid grid = new MeasureGrid(timing, measures, slotsPerEighth);
+                ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                data.position((int) offset);
+                if (grid.encodedSize() + chordBytes(measures) > data.remaining()) {
+                    throw new IOException("Truncated track " + t);
+                }
+                grid.decode(data);
+                Chord[] chords = new Chord[measures];
+                for (int m = 0; m < measures; m++) {
+                    int chord = data.getShort() & 0xFFFF;
+                    int modifier = chord & 0xFF;
+                    if (modifier >= Chord.MODIFIERS.length) {
+                        throw new IOException("Invalid chord in track " + t + ", measure " + m);
+                    }
+                    chords[m] = Chord.of(chord >>> 8, Chord.MODIFIERS[modifier]);
+                }
+                tracks[t] = new AnalyzedTrack(grid, buffer.getInt(entry + 24), chords, buffer.getLong(entry));
+            }
+            return new AnalysisFile(timing, tickLength, tracks);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt analysis", e);
+        }
+    }
+
+    private static long chordBytes(int measures) {
+        return (measures * 2L + 7) / 8 * 8;
+    }
+
+    /**
+     * Feeds everything generation reads from the analysis into a hash
+     * @param hash the hash to be fed
+     */
+    public void hashInto(ContentHash hash) {
+        hash.add(FORMAT).add(tickLength).add(tracks.length);
+        timing.hashInto(hash);
+        for (AnalyzedTrack track : tracks) {
+            if (track == null) {
+                hash.add(-1);
+                continue;
+            }
+            MeasureGrid grid = track.measures;
+            hash.add(track.endTick).add(track.key).add(grid.size()).add(grid.getSlotsPerEighth());
+            for (int m = 0; m < grid.size(); m++) {
+                for (int w = 0; w < grid.getWordsPerMeasure(); w++) {
+                    hash.add(grid.getWord(m, w));
+                }
+                for (int pc = 0; pc < 12; pc++) {
+                    hash.add(grid.getPitchClassCount(m, pc));
+                }
+                hash.add(track.chords[m].getKey() << 8 | track.chords[m].getModifierIndex());
+            }
+        }
+    }
+
+    /**
+     * The analysis of one track: its measures, key and the chord of every measure
+     */
+    public static class AnalyzedTrack {
+
+        private final MeasureGrid measures;
+        private final int key;
+        private final Chord[] chords;
+        private final long endTick;
+
+        /**
+         * @param measures the onsets and pitch classes of the track
+         * @param key the key of the track, from HarmonyAnalyzer.detectKey
+         * @param chords one shared chord per measure, from HarmonyAnalyzer.detectChords
+         * @param endTick the tick of the end of the track
+         */
+        public AnalyzedTrack(MeasureGrid measures, int key, Chord[] chords, long endTick) {
+            if (chords.length != measures.size()) {
+                throw new IllegalArgumentException("Need one chord per measure");
+            }
+            this.measures = measures;
+            this.key = key;
+            this.chords = chords;
+            this.endTick = endTick;
+        }
+
+        public MeasureGrid getMeasures() {
+            return measures;
+        }
+
+        public int getKey() {
+            return key;
+        }
+
+        /**
+         * @return the chord of every measure, shared and not to be changed
+         */
+        public Chord[] getChords() {
+            return chords;
+        }
+
+        public long getEndTick() {
+            return endTick;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Renders the notes of a sequence to a 16-bit mono WAV file with a small built-in
+ * voice engine, so results can be auditioned on machines without a synthesizer
+ * or sound hardware.
+ * Every note is a voice reading a single-cycle wavetable of a few decaying
+ * harmonics, shaped by a short attack, an exponential decay and a linear
+ * release after its NOTE_OFF. The output is mixed one block of samples at a
+ * time into a float buffer made once per chunk of blocks, with a sweep over
+ * the voices sorted by start keeping the voices that sound in the block. Chunks
+ * are independent and can be rendered in parallel; a voice's phase and
+ * envelope are worked out from its start at every block, so the output is the
+ * same however the chunks are spread over threads.
+ */
+public class AudioRenderer {
+
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    public static final int BLOCK_FRAMES = 1024;
+    public static final String OUTPUT_SUFFIX = ".wav";
+
+    private static final int BLOCKS_PER_CHUNK = 64;
+    private static final int TABLE_BITS = 12;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final float[] HARMONICS = {1f, 0.5f, 0.3f, 0.15f, 0.08f, 0.04f};
+    // one cycle of the voice, with the first sample repeated at the end for interpolation
+    private static final float[] WAVETABLE = wavetable();
+
+    private static final double ATTACK_SECONDS = 0.005;
+    private static final double DECAY_SECONDS = 1.2;
+    private static final double RELEASE_SECONDS = 0.08;
+    private static final float MASTER_GAIN = 0.2f;
+    private static final int WAV_HEADER_BYTES = 44;
+
+    private final int sampleRate;
+    private final boolean parallel;
+    private final int attackFrames;
+    private final int releaseFrames;
+    private final double decayFrames;
+    private final float decayPerFrame;
+
+    /**
+     * @param sampleRate the sample rate of the output in Hz
+     * @param parallel whether chunks of the output are rendered on the fork-join pool
+     */
+    public AudioRenderer(int sampleRate, boolean parallel) {
+        if (sampleRate < 8000 || sampleRate > 192000) {
+            throw new IllegalArgumentException("Sample rate must be between 8000 and 192000 Hz");
+        }
+        this.sampleRate = sampleRate;
+        this.parallel = parallel;
+        attackFrames = Math.max(1, (int) (ATTACK_SECONDS * sampleRate));
+        releaseFrames = Math.max(1, (int) (RELEASE_SECONDS * sampleRate));
+        decayFrames = DECAY_SECONDS * sampleRate;
+        decayPerFrame = (float) Math.exp(-1 / decayFrames);
+    }
+
+    public AudioRenderer() {
+        this(DEFAULT_SAMPLE_RATE, true);
+    }
+
+    private static float[] wavetable() {
+        float[] table = new float[TABLE_SIZE + 1];
+        float peak = 0;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double x = 2 * Math.PI * i / TABLE_SIZE;
+            double sample = 0;
+            for (int h = 0; h < HARMONICS.length; h++) {
+                sample += HARMONICS[h] * Math.sin((h + 1) * x);
+            }
+            table[i] = (float) sample;
+            peak = Math.max(peak, Math.abs(table[i]));
+        }
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] /= peak;
+        }
+        table[TABLE_SIZE] = table[0];
+        return table;
+    }
+
+    /**
+     * The notes of a sequence as voices: sample spans, pitches and loudness, sorted by start
+     */
+    private static class Voices {
+        int size;
+        long[] starts;
+        long[] ends;
+        double[] increments;
+        float[] amplitudes;
+        // the most frames any voice sounds for, release included
+        long longest;
+        // the most voices a chunk can hold active at once
+        int maxActive;
+        long frames;
+    }
+
+    /**
+     * Renders the notes of every track of a sequence
+     * @param sequence the sequence
+     * @return the WAV file, from position 0 to its limit
+     */
+    public ByteBuffer render(Sequence sequence) {
+        if (sequence.getDivisionType() != Sequence.PPQ) {
+            throw new IllegalArgumentException("Cannot handle divisionTypes that are not PPQ");
+        }
+        return render(RhythmGenerator.readMIDI(sequence));
+    }
+
+    /**
+     * Renders note events, timed by their tempo map
+     * @param events the note events, ordered by tick
+     * @return the WAV file, from position 0 to its limit
+     */
+    public ByteBuffer render(NoteEvents events) {
+        Voices voices = voices(events);
+        if (voices.frames * 2 > Integer.MAX_VALUE - WAV_HEADER_BYTES) {
+            throw new IllegalArgumentException("The sequence is too long to render to a single WAV file");
+        }
+        int frames = (int) voices.frames;
+        ByteBuffer wav = ByteBuffer.allocate(WAV_HEADER_BYTES + frames * 2).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(wav, frames);
+
+        int blocks = (frames + BLOCK_FRAMES - 1) / BLOCK_FRAMES;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int first = 0; first < blocks; first += BLOCKS_PER_CHUNK) {
+            long from = (long) first * BLOCK_FRAMES;
+            long to = Math.min(frames, from + (long) BLOCKS_PER_CHUNK * BLOCK_FRAMES);
+            tasks.add(ForkJoinTask.adapt(() -> renderChunk(voices, from, to, wav)));
+        }
+        if (parallel && tasks.size() > 1) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (ForkJoinTask<?> task : tasks) {
+                task.invoke();
+            }
+        }
+        return wav;
+    }
+
+    /**
+     * Pairs the NOTE_ONs and NOTE_OFFs of each track, channel and pitch into voices.
+     * A NOTE_ON of a pitch that is still sounding ends the earlier note, and notes never turned off end
+     * with the sequence.
+     */
+    private Voices voices(NoteEvents events) {
+        TimingModel timing = events.getTiming();
+        int tracks = 1;
+        int count = 0;
+        for (int i = 0; i < events.size(); i++) {
+            tracks = Math.max(tracks, events.getTrack(i) + 1);
+            if (events.isNoteOn(i)) {
+                count++;
+            }
+        }
+        Voices voices = new Voices();
+        voices.starts = new long[count];
+        voices.ends = new long[count];
+        voices.increments = new double[count];
+        voices.amplitudes = new float[count];
+        int[] open = new int[tracks * 16 * 128];
+        Arrays.fill(open, -1);
+
+        for (int i = 0; i < events.size(); i++) {
+            int key = (events.getTrack(i) * 16 + events.getChannel(i)) * 128 + events.getPitch(i);
+            long frame = frameAt(timing, events.getTick(i));
+            if (open[key] >= 0) {
+                voices.ends[open[key]] = frame;
+                open[key] = -1;
+            }
+            if (events.isNoteOn(i)) {
+                int v = voices.size++;
+                voices.starts[v] = frame;
+                voices.ends[v] = -1;
+                double frequency = 440 * Math.pow(2, (events.getPitch(i) - 69) / 12.0);
+                voices.increments[v] = frequency * TABLE_SIZE / sampleRate;
+                voices.amplitudes[v] = events.getVelocity(i) / 127f;
+                open[key] = v;
+            }
+        }
+
+        long end = frameAt(timing, events.getTickLength());
+        for (int v = 0; v < voices.size; v++) {
+            if (voices.starts[v] >= end) {
+                end = voices.starts[v] + 1;
+            }
+        }
+        voices.frames = end;
+        for (int v = 0; v < voices.size; v++) {
+            if (voices.ends[v] < 0) {
+                voices.ends[v] = Math.max(end, voices.starts[v] + 1);
+            } else if (voices.ends[v] <= voices.starts[v]) {
+                // a note turned off on the tick it starts still sounds for a moment
+                voices.ends[v] = voices.starts[v] + 1;
+            }
+            voices.longest = Math.max(voices.longest, voices.ends[v] + releaseFrames - voices.starts[v]);
+            voices.frames = Math.max(voices.frames, voices.ends[v] + releaseFrames);
+        }
+        voices.maxActive = maxActive(voices);
+        return voices;
+    }
+
+    /**
+     * A chunk holds a voice active from the block it starts in to the block after the one it stops in, so
+     * every active voice sounds somewhere in a window of two blocks. Counts the most voices sounding in such
+     * a window by sweeping the starts against the stops pushed two blocks later.
+     */
+    private int maxActive(Voices voices) {
+        long[] stops = new long[voices.size];
+        for (int v = 0; v < voices.size; v++) {
+            stops[v] = voices.ends[v] + releaseFrames + 2 * BLOCK_FRAMES;
+        }
+        Arrays.sort(stops);
+        int most = 0;
+        int stopped = 0;
+        for (int v = 0; v < voices.size; v++) {
+            while (stops[stopped] <= voices.starts[v]) {
+                stopped++;
+            }
+            most = Math.max(most, v + 1 - stopped);
+        }
+        return most;
+    }
+
+    private long frameAt(TimingModel timing, long tick) {
+        return timing.microsAt(tick) * sampleRate / 1_000_000;
+    }
+
+    /**
+     * Renders a run of whole blocks into the PCM data of the WAV file
+     */
+    private void renderChunk(Voices voices, long from, long to, ByteBuffer wav) {
+        float[] block = new float[BLOCK_FRAMES];
+        int[] active = new int[Math.max(1, voices.maxActive)];
+        int activeSize = 0;
+        // every voice that can still sound at from starts at most longest frames before it
+        int next = firstStartingAt(voices, from - voices.longest);
+
+        for (long start = from; start < to; start += BLOCK_FRAMES) {
+            long end = Math.min(to, start + BLOCK_FRAMES);
+            while (next < voices.size && voices.starts[next] < end) {
+                // voices that stopped before the chunk are passed over, or they would not fit
+                if (voices.ends[next] + releaseFrames > start) {
+                    active[activeSize++] = next;
+                }
+                next++;
+            }
+            Arrays.fill(block, 0f);
+            int kept = 0;
+            for (int a = 0; a < activeSize; a++) {
+                int v = active[a];
+                long stop = voices.ends[v] + releaseFrames;
+                if (stop <= start) {
+                    continue;
+                }
+                active[kept++] = v;
+                mixVoice(voices, v, start, end, stop, block);
+            }
+            activeSize = kept;
+
+            int base = WAV_HEADER_BYTES + (int) start * 2;
+            for (int i = 0; i < end - start; i++) {
+                float sample = Math.max(-1f, Math.min(1f, block[i] * MASTER_GAIN));
+                wav.putShort(base + i * 2, (short) Math.round(sample * 32767));
+            }
+        }
+    }
+
+    /**
+     * Adds the part of a voice that falls in a block
+     */
+    private void mixVoice(Voices voices, int v, long blockStart, long blockEnd, long stop, float[] block) {
+        long voiceStart = voices.starts[v];
+        long noteEnd = voices.ends[v];
+        long from = Math.max(blockStart, voiceStart);
+        long to = Math.min(blockEnd, stop);
+        if (from >= to) {
+            return;
+        }
+        long t = from - voiceStart;
+        double increment = voices.increments[v];
+        double phase = (t * increment) % TABLE_SIZE;
+        float envelope = voices.amplitudes[v] * (float) Math.exp(-t / decayFrames);
+        float attackStep = 1f / attackFrames;
+        float releaseStep = 1f / releaseFrames;
+        float[] table = WAVETABLE;
+
+        for (long s = from; s < to; s++, t++) {
+            float gain = envelope;
+            if (t < attackFrames) {
+                gain *= t * attackStep;
+            }
+            if (s >= noteEnd) {
+                gain *= (stop - s) * releaseStep;
+            }
+            int i = (int) phase;
+            float fraction = (float) (phase - i);
+            float x = table[i] + fraction * (table[i + 1] - table[i]);
+            block[(int) (s - blockStart)] += gain * x;
+            envelope *= decayPerFrame;
+            phase += increment;
+            if (phase >= TABLE_SIZE) {
+                phase -= TABLE_SIZE;
+            }
+        }
+    }
+
+    /**
+     * @return the first voice starting at or after a frame
+     */
+    private static int firstStartingAt(Voices voices, long frame) {
+        int low = 0;
+        int high = voices.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (voices.starts[mid] < frame) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void writeHeader(ByteBuffer wav, int frames) {
+        int dataBytes = frames * 2;
+        wav.putInt(0, 0x46464952);              // "RIFF"
+        wav.putInt(4, 36 + dataBytes);
+        wav.putInt(8, 0x45564157);              // "WAVE"
+        wav.putInt(12, 0x20746D66);             // "fmt "
+        wav.putInt(16, 16);
+        wav.putShort(20, (short) 1);            // PCM
+        wav.putShort(22, (short) 1);            // mono
+        wav.putInt(24, sampleRate);
+        wav.putInt(28, sampleRate * 2);         // bytes per second
+        wav.putShort(32, (short) 2);            // bytes per frame
+        wav.putShort(34, (short) 16);           // bits per sample
+        wav.putInt(36, 0x61746164);             // "data"
+        wav.putInt(40, dataBytes);
+    }
+
+    /**
+     * Renders a sequence to a WAV file
+     * @param sequence the sequence
+     * @param fileName the name of the WAV file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Sequence sequence, String fileName) throws IOException {
+        write(render(sequence), fileName);
+    }
+
+    /**
+     * Renders note events to a WAV file
+     * @param events the note events, ordered by tick
+     * @param fileName the name of the WAV file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(NoteEvents events, String fileName) throws IOException {
+        write(render(events), fileName);
+    }
+
+    private static void write(ByteBuffer wav, String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer source = wav.duplicate();
+            source.position(0);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+
+    /**
+     * The WAV file a MIDI file is rendered to, next to it
+     * @param input the MIDI file
+     * @return the WAV file
+     */
+    public static File outputFile(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(input.getAbsoluteFile().getParentFile(), base + OUTPUT_SUFFIX);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Renders MIDI files to WAV files next to them
+     * @param args [-rate hz] [-serial] [-accompany] followed by the MIDI files; with -accompany the backing
+     *             of writeOnSolo is rendered along with each solo
+     */
+    public static void main(String[] args) throws Exception {
+        int rate = DEFAULT_SAMPLE_RATE;
+        boolean parallel = true;
+        boolean accompany = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rate") && i + 1 < args.length) {
+                rate = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-serial")) {
+                parallel = false;
+            } else if (args[i].equals("-accompany")) {
+                accompany = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("Usage: AudioRenderer [-rate hz] [-serial] [-accompany] <MIDI file>...");
+            return;
+        }
+
+        AudioRenderer renderer = new AudioRenderer(rate, parallel);
+        for (String name : files) {
+            long start = System.nanoTime();
+            Sequence sequence = accompany ? RhythmGenerator.writeOnSolo(name) : read(name);
+            File output = outputFile(new File(name));
+            renderer.write(sequence, output.getPath());
+            double seconds = (output.length() - WAV_HEADER_BYTES) / 2.0 / rate;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s -> %s: %.1f s of audio in %.3f s, %.0fx real time%n", name, output.getName(),
+                    seconds, elapsed, seconds / elapsed);
+        }
+    }
+
+    private static Sequence read(String fileName) throws IOException, InvalidMidiDataException {
+        return MidiSystem.getSequence(new File(fileName));
+    }
+}
@@ -0,0 +1,139 @@
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the WAV renderer: its files are 16-bit mono PCM that javax.sound.sampled
+ * reads back, notes sound from their NOTE_ON, at the tempo of the sequence, until
+ * the release after their NOTE_OFF, and the output does not depend on how the
+ * chunks are spread over threads.
+ */
+public class AudioRendererTest {
+
+    private static final int RATE = 8000;
+    private static final int PPQ = 480;
+
+    @Test
+    public void writesPcmThatJavaSoundReads() throws Exception {
+        AudioRenderer renderer = new AudioRenderer(RATE, false);
+        ByteBuffer wav = renderer.render(note(PPQ, 2 * PPQ, 69, 100));
+        File file = File.createTempFile("render", AudioRenderer.OUTPUT_SUFFIX);
+        try {
+            renderer.write(note(PPQ, 2 * PPQ, 69, 100), file.getPath());
+            assertEquals(wav.limit(), file.length());
+            try (AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+                AudioFormat format = in.getFormat();
+                assertEquals(AudioFormat.Encoding.PCM_SIGNED, format.getEncoding());
+                assertEquals(RATE, format.getSampleRate(), 0);
+                assertEquals(16, format.getSampleSizeInBits());
+                assertEquals(1, format.getChannels());
+                assertFalse(format.isBigEndian());
+                assertEquals((wav.limit() - 44) / 2, in.getFrameLength());
+            }
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    public void notesSoundFromTheirNoteOnUntilTheirRelease() throws Exception {
+        // at the default tempo of 120 a quarter note takes half a second; the sequence goes on silent after it
+        Sequence s = note(PPQ, 2 * PPQ, 69, 100);
+        s.getTracks()[0].add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), 4 * PPQ));
+        short[] samples = samples(new AudioRenderer(RATE, false).render(s));
+        assertEquals(2 * RATE, samples.length);
+        int on = RATE / 2;
+        int off = RATE;
+        for (int i = 0; i < on; i++) {
+            assertEquals("frame " + i, 0, samples[i]);
+        }
+        assertTrue(peak(samples, on, off) > 1000);
+        // the release is over in a tenth of a second
+        assertTrue(peak(samples, off, off + RATE / 100) > 0);
+        for (int i = off + RATE / 10; i < samples.length; i++) {
+            assertEquals("frame " + i, 0, samples[i]);
+        }
+    }
+
+    @Test
+    public void followsTheTempoOfTheSequence() throws Exception {
+        Sequence s = note(PPQ, 2 * PPQ, 69, 100);
+        // a quarter note of a quarter of a second
+        byte[] tempo = {0x03, (byte) 0xD0, (byte) 0x90};
+        s.getTracks()[0].add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+        short[] samples = samples(new AudioRenderer(RATE, false).render(s));
+        int on = RATE / 4;
+        for (int i = 0; i < on; i++) {
+            assertEquals("frame " + i, 0, samples[i]);
+        }
+        assertTrue(peak(samples, on, on + RATE / 100) > 0);
+    }
+
+    @Test
+    public void louderNotesArePlayedLouder() throws Exception {
+        AudioRenderer renderer = new AudioRenderer(RATE, false);
+        short[] soft = samples(renderer.render(note(0, PPQ, 60, 30)));
+        short[] loud = samples(renderer.render(note(0, PPQ, 60, 120)));
+        assertTrue(peak(loud, 0, loud.length) > 3 * peak(soft, 0, soft.length));
+    }
+
+    @Test
+    public void parallelChunksRenderWhatOneThreadRenders() throws Exception {
+        Sequence solo = MidiSystem.getSequence(new File("Parker,_Charlie_-_Donna_Lee.midi"));
+        ByteBuffer serial = new AudioRenderer(RATE, false).render(solo);
+        ByteBuffer parallel = new AudioRenderer(RATE, true).render(solo);
+        // long enough to be split into chunks
+        assertTrue(serial.limit() > 64 * AudioRenderer.BLOCK_FRAMES * 2 * 4);
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    public void outputFilesAreWrittenNextToTheirInput() {
+        File output = AudioRenderer.outputFile(new File("dir", "solo.mid"));
+        assertEquals("solo.wav", output.getName());
+        assertEquals(new File("dir").getAbsoluteFile(), output.getParentFile());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSampleRatesOutOfRange() {
+        new AudioRenderer(4000, false);
+    }
+
+    private static Sequence note(long on, long off, int pitch, int velocity) throws Exception {
+        Sequence s = new Sequence(Sequence.PPQ, PPQ);
+        Track t = s.createTrack();
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, pitch, velocity), on));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, pitch, 0), off));
+        return s;
+    }
+
+    private static short[] samples(ByteBuffer wav) {
+        ByteBuffer data = wav.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        data.position(44);
+        short[] samples = new short[data.remaining() / 2];
+        data.asShortBuffer().get(samples);
+        return samples;
+    }
+
+    private static int peak(short[] samples, int from, int to) {
+        int peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+}
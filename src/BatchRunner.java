@@ -0,0 +1,465 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes backing rhythms onto a whole corpus of solo MIDI files in parallel.
+ * Every file is accompanied independently and written next to its input, so
+ * a bad file is reported and skipped instead of ending the run. The tracks of
+ * each file are accompanied on the same pool as the files themselves. With a
+ * ResultCache, files whose solo and settings have been accompanied before reuse
+ * the cached backing instead of being analyzed again. With a directory of
+ * analyses, every solo is analyzed once, saved as an AnalysisFile named by a hash
+ * of its bytes, and later runs in other styles only generate from the saved
+ * analysis instead of parsing and analyzing the solo. Every file records the
+ * time and allocation of its stages in RunMetrics, which main can write out as a
+ * JSON or CSV report.
+ */
+public class BatchRunner {
+
+    public static final String OUTPUT_SUFFIX = ".comp.mid";
+
+    // what -humanize loosens a backing by
+    private static final double HUMANIZE_JITTER = 0.03;
+    private static final int HUMANIZE_VELOCITY_JITTER = 6;
+    private static final int[] BACKBEAT = {0, 0, 10, 0, 0, 0, 10, 0};
+
+    private final int parallelism;
+    private final GeneratorSettings settings;
+
+    /**
+     * @param parallelism the number of files accompanied at once
+     * @param settings the layout of the backing tracks, how they are produced, and the cache, saved analyses and
+     *                 renderer of the run
+     */
+    public BatchRunner(int parallelism, GeneratorSettings settings) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        this.settings = settings;
+    }
+
+    public BatchRunner() {
+        this(Runtime.getRuntime().availableProcessors(), new GeneratorSettings());
+    }
+
+    /**
+     * Accompanies every input file on a fork-join pool
+     * @param inputs the solo files to be accompanied
+     * @return one result per input, in input order
+     */
+    public List<Result> run(List<File> inputs) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(inputs.size());
+            for (File input : inputs) {
+                futures.add(pool.submit(() -> accompany(input, settings, new RunMetrics(input.getPath()))));
+            }
+            List<Result> results = new ArrayList<>(inputs.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(failed(inputs.get(i), 0, e.getCause(), new RunMetrics(inputs.get(i).getPath())));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(failed(inputs.get(i), 0, e, new RunMetrics(inputs.get(i).getPath())));
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes a backing rhythm onto a single solo file
+     * @param input the solo file
+     * @param settings the layout of the backing tracks and how they are produced
+     * @return the result of the file, holding the error instead of throwing it
+     */
+    public static Result accompany(File input, GeneratorSettings settings) {
+        return accompany(input, settings, RunMetrics.DISABLED);
+    }
+
+    /**
+     * Writes a backing rhythm onto a single solo file, recording how long each stage takes.
+     * The solo tracks are copied into the output as they are, followed by the backing tracks. With a cache in the
+     * settings, a solo seen before under the same settings reuses its cached backing; with a directory of
+     * analyses, the backing is generated from a saved analysis of the solo if there is one, and the analysis is
+     * saved if not; with a renderer, the output is rendered next to it as a WAV file.
+     * @param input the solo file
+     * @param settings the layout of the backing tracks, how they are produced, and the cache, saved analyses and
+     *                 renderer to use
+     * @param metrics where the stages and counts of the file are recorded, or RunMetrics.DISABLED
+     * @return the result of the file, holding the error instead of throwing it
+     */
+    public static Result accompany(File input, GeneratorSettings settings, RunMetrics metrics) {
+        ResultCache cache = settings.getCache();
+        Path analyses = settings.getAnalyses();
+        AudioRenderer renderer = settings.getRenderer();
+        File output = outputFile(input);
+        long start = System.nanoTime();
+        try {
+            long stage = metrics.start();
+            long allocated = metrics.allocated();
+            ByteBuffer smf = MIDIReader.map(input.getPath());
+            NoteEvents events = null;
+            AnalysisFile analysis = null;
+            Path analysisFile = null;
+            if (analyses != null) {
+                analysisFile = analyses.resolve(new ContentHash().add(smf).toHex() + AnalysisFile.SUFFIX);
+                analysis = readAnalysis(analysisFile);
+            }
+            if (analysis == null) {
+                events = MIDIReader.parse(smf);
+            }
+            metrics.stop(RunMetrics.Stage.READ, stage, allocated);
+            if (events != null) {
+                metrics.count(RunMetrics.Counter.EVENTS, events.size());
+            } else {
+                metrics.count(RunMetrics.Counter.ANALYSIS_HITS, 1);
+            }
+            if (analysis == null && analysisFile != null) {
+                analysis = RhythmGenerator.analyze(events, settings, metrics);
+                analysis.write(analysisFile);
+            }
+
+            EventBuilder[] backings = null;
+            String key = null;
+            if (cache != null) {
+                key = analysis != null ? ResultCache.key(analysis, settings) : ResultCache.key(events, settings);
+                backings = cache.get(key);
+            }
+            boolean cached = backings != null;
+            if (cached) {
+                metrics.count(RunMetrics.Counter.CACHE_HITS, 1);
+            } else {
+                backings = analysis != null ? RhythmGenerator.accompany(analysis, settings, metrics)
+                        : RhythmGenerator.accompany(events, settings, metrics);
+                if (cache != null) {
+                    cache.put(key, backings);
+                }
+            }
+
+            stage = metrics.start();
+            allocated = metrics.allocated();
+            List<ByteBuffer> chunks = MIDIReader.trackChunks(smf);
+            int resolution = analysis != null ? analysis.getResolution() : events.getResolution();
+            try (MIDIWriter writer = MIDIWriter.open(output.getPath(), 1, chunks.size() + backings.length,
+                    resolution)) {
+                writeTracks(writer, chunks, backings);
+            }
+            metrics.stop(RunMetrics.Stage.WRITE, stage, allocated);
+            if (renderer != null) {
+                stage = metrics.start();
+                allocated = metrics.allocated();
+                renderer.write(MIDIReader.read(output.getPath()), AudioRenderer.outputFile(output).getPath());
+                metrics.stop(RunMetrics.Stage.RENDER, stage, allocated);
+            }
+            long nanos = System.nanoTime() - start;
+            metrics.setTotalNanos(nanos);
+            return new Result(input, output, nanos, null, cached, metrics);
+        } catch (Exception e) {
+            return failed(input, System.nanoTime() - start, e, metrics);
+        }
+    }
+
+    /**
+     * @return the saved analysis, or null if there is none or it is not of this format, in which case it is
+     * analyzed and saved again
+     */
+    private static AnalysisFile readAnalysis(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return AnalysisFile.read(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the tracks of an accompanied solo: the solo tracks as they are, followed by the backing tracks
+     * @param writer a writer opened for chunks.size() + backings.length tracks
+     * @param chunks the MTrk chunks of the solo
+     * @param backings the backing tracks
+     * @throws IOException if a track cannot be written
+     */
+    static void writeTracks(MIDIWriter writer, List<ByteBuffer> chunks, EventBuilder[] backings) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            writer.copyTrack(chunk);
+        }
+        for (EventBuilder backing : backings) {
+            writer.writeTrack(backing, 0);
+        }
+    }
+
+    private static Result failed(File input, long nanos, Throwable error, RunMetrics metrics) {
+        metrics.count(RunMetrics.Counter.FAILURES, 1);
+        metrics.setTotalNanos(nanos);
+        return new Result(input, null, nanos, error, false, metrics);
+    }
+
+    /**
+     * Writes the metrics of every file of a batch and their totals to a report. A path ending in .csv gets a
+     * header, one row per file and a last row named "batch" with the totals; any other path gets a JSON object
+     * with the totals under "batch" and the files under "files".
+     * @param results the results of the batch
+     * @param wallNanos the wall-clock time of the whole batch
+     * @param path the file the report is written to
+     * @throws IOException if the report cannot be written
+     */
+    public static void writeReport(List<Result> results, long wallNanos, String path) throws IOException {
+        RunMetrics batch = new RunMetrics("batch");
+        List<RunMetrics> files = new ArrayList<>(results.size());
+        for (Result r : results) {
+            files.add(r.getMetrics());
+        }
+        batch.addAll(files);
+        batch.setTotalNanos(wallNanos);
+
+        StringBuilder report = new StringBuilder();
+        if (path.toLowerCase().endsWith(".csv")) {
+            report.append(RunMetrics.csvHeader()).append('\n');
+            for (RunMetrics file : files) {
+                report.append(file.toCsv()).append('\n');
+            }
+            report.append(batch.toCsv()).append('\n');
+        } else {
+            report.append("{\"batch\":").append(batch.toJson()).append(",\"files\":[");
+            for (int i = 0; i < files.size(); i++) {
+                report.append(i == 0 ? "\n" : ",\n").append(files.get(i).toJson());
+            }
+            report.append("\n]}\n");
+        }
+        Files.write(Paths.get(path), report.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The file an accompanied solo is written to, next to the input
+     * @param input the solo file
+     * @return the output file
+     */
+    public static File outputFile(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(input.getAbsoluteFile().getParentFile(), base + OUTPUT_SUFFIX);
+    }
+
+    /**
+     * Expands a list of files and directories into the MIDI files to be accompanied.
+     * Directories contribute their .mid and .midi files, skipping earlier outputs.
+     * @param paths the files and directories
+     * @return the files to be accompanied, in a stable order
+     */
+    public static List<File> collectInputs(List<String> paths) {
+        List<File> inputs = new ArrayList<>();
+        for (String path : paths) {
+            File f = new File(path);
+            if (f.isDirectory()) {
+                File[] children = f.listFiles();
+                if (children == null) {
+                    continue;
+                }
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && isSolo(child)) {
+                        inputs.add(child);
+                    }
+                }
+            } else {
+                inputs.add(f);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @param f a file
+     * @return whether the file is a MIDI file and not the output of an earlier run
+     */
+    static boolean isSolo(File f) {
+        String name = f.getName().toLowerCase();
+        return (name.endsWith(".mid") || name.endsWith(".midi")) && !name.endsWith(OUTPUT_SUFFIX);
+    }
+
+    private static Humanizer humanizer(GeneratorSettings settings) {
+        if (settings.getHumanizer() == null) {
+            settings.setHumanizer(new Humanizer());
+        }
+        return settings.getHumanizer();
+    }
+
+    /**
+     * Runs a batch from the command line
+     * @param args [-threads n] [-merged] [-styles file] [-voicing] [-bass] [-swing ratio] [-humanize seed]
+     *             [-cache directory [-cache-size megabytes]] [-analyses directory] [-wav] [-report file]
+     *             followed by the files and directories to be accompanied; -bass adds a walking bass on its own
+     *             tracks, -analyses saves the analysis of every solo for later runs in other styles to reuse,
+     *             -swing sets the share of each beat
+     *             taken by its first eighth, -humanize adds seeded jitter and a backbeat accent, -wav renders a
+     *             preview of every output and -report writes the stage metrics of every file and the batch as
+     *             JSON, or CSV for a .csv file
+     * @throws IOException if the styles cannot be read, the cache or analysis directory cannot be opened or the
+     *                     report cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        GeneratorSettings settings = new GeneratorSettings();
+        String cacheDirectory = null;
+        Path analyses = null;
+        long cacheMegabytes = 256;
+        AudioRenderer renderer = null;
+        String report = null;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-merged")) {
+                settings.setLayout(GeneratorSettings.Layout.MERGED);
+            } else if (args[i].equals("-styles") && i + 1 < args.length) {
+                settings.setStyles(StyleRegistry.loadOrBuiltIn(args[++i]));
+            } else if (args[i].equals("-voicing")) {
+                settings.setVoiceLeading(true);
+            } else if (args[i].equals("-bass")) {
+                settings.setWalkingBass(true);
+            } else if (args[i].equals("-swing") && i + 1 < args.length) {
+                humanizer(settings).setSwing(Double.parseDouble(args[++i]));
+            } else if (args[i].equals("-humanize") && i + 1 < args.length) {
+                humanizer(settings).setSeed(Long.parseLong(args[++i])).setJitter(HUMANIZE_JITTER)
+                        .setVelocityJitter(HUMANIZE_VELOCITY_JITTER).setAccents(BACKBEAT);
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("-cache-size") && i + 1 < args.length) {
+                cacheMegabytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-analyses") && i + 1 < args.length) {
+                analyses = Files.createDirectories(Paths.get(args[++i]));
+            } else if (args[i].equals("-wav")) {
+                renderer = new AudioRenderer();
+            } else if (args[i].equals("-report") && i + 1 < args.length) {
+                report = args[++i];
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.isEmpty()) {
+            System.out.println("Usage: BatchRunner [-threads n] [-merged] [-styles file] [-voicing] [-bass]"
+                    + " [-swing ratio] [-humanize seed] [-cache directory [-cache-size megabytes]]"
+                    + " [-analyses directory] [-wav] [-report file]"
+                    + " <file or directory>...");
+            return;
+        }
+
+        ResultCache cache = cacheDirectory == null ? null
+                : new ResultCache(Paths.get(cacheDirectory), cacheMegabytes * 1024 * 1024);
+        settings.setCache(cache).setAnalyses(analyses).setRenderer(renderer);
+        long start = System.nanoTime();
+        List<Result> results = new BatchRunner(threads, settings).run(collectInputs(paths));
+        int failures = 0;
+        for (Result r : results) {
+            System.out.println(r);
+            if (!r.isSuccess()) {
+                failures++;
+            }
+        }
+        long wallNanos = System.nanoTime() - start;
+        System.out.printf("%d files, %d failed, %d ms on %d threads%n", results.size(), failures,
+                wallNanos / 1_000_000, threads);
+        if (cache != null) {
+            System.out.printf("cache: %d hits, %d misses, %d entries, %d KB%n", cache.getHits(), cache.getMisses(),
+                    cache.size(), cache.getBytes() / 1024);
+        }
+        if (report != null) {
+            writeReport(results, wallNanos, report);
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The outcome of accompanying a single file
+     */
+    public static class Result {
+        private final File input;
+        private final File output;
+        private final long nanos;
+        private final Throwable error;
+        private final boolean cached;
+        private final RunMetrics metrics;
+
+        public Result(File input, File output, long nanos, Throwable error, boolean cached, RunMetrics metrics) {
+            this.input = input;
+            this.output = output;
+            this.nanos = nanos;
+            this.error = error;
+            this.cached = cached;
+            this.metrics = metrics;
+        }
+
+        public Result(File input, File output, long nanos, Throwable error, boolean cached) {
+            this(input, output, nanos, error, cached, RunMetrics.DISABLED);
+        }
+
+        public Result(File input, File output, long nanos, Throwable error) {
+            this(input, output, nanos, error, false);
+        }
+
+        public File getInput() {
+            return input;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return whether the backing came from the cache rather than being generated
+         */
+        public boolean isCached() {
+            return cached;
+        }
+
+        /**
+         * @return the stages and counts of the file, or RunMetrics.DISABLED if they were not recorded
+         */
+        public RunMetrics getMetrics() {
+            return metrics;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (isSuccess()) {
+                return String.format("OK   %8.2f ms  %s -> %s%s", nanos / 1e6, input.getPath(), output.getName(),
+                        cached ? " (cached)" : "");
+            }
+            return String.format("FAIL %8.2f ms  %s: %s", nanos / 1e6, input.getPath(), error);
+        }
+    }
+}
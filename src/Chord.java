@@ -1,85 +1,179 @@
-public class Chord {
+public final class Chord {
 
     public static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
 
-    private int key;
-    private int[] notes;
-    private String chordName;
-    private int length;
+    // MODIFIERS[0] is the plain major triad; the triads come first, then the sevenths, ninths and altered chords
+    public static final String[] MODIFIERS = {"", "m", "dim", "sus2", "sus4",
+            "7", "maj7", "m7", "m7b5", "dim7",
+            "9", "maj9", "m9", "7b9", "7#9", "7#5", "7b5"};
+
+    // INTERVALS[m]: the semitones above the root of the tones of MODIFIERS[m], in root position
+    private static final int[][] INTERVALS = {
+            {0, 4, 7}, {0, 3, 7}, {0, 3, 6}, {0, 2, 7}, {0, 5, 7},
+            {0, 4, 7, 10}, {0, 4, 7, 11}, {0, 3, 7, 10}, {0, 3, 6, 10}, {0, 3, 6, 9},
+            {0, 4, 7, 10, 14}, {0, 4, 7, 11, 14}, {0, 3, 7, 10, 14}, {0, 4, 7, 10, 13}, {0, 4, 7, 10, 15},
+            {0, 4, 8, 10}, {0, 4, 6, 10}
+    };
+
+    // every root and modifier, built once and shared between measures, songs and threads
+    private static final Chord[][] CACHE = new Chord[128][MODIFIERS.length];
+
+    static {
+        for (int key = 0; key < CACHE.length; key++) {
+            for (int m = 0; m < MODIFIERS.length; m++) {
+                CACHE[key][m] = new Chord(key, MODIFIERS[m]);
+            }
+        }
+    }
+
+    private final int key;
+    private final int[] notes;
+    private final String chordName;
+    // the index of the modifier in MODIFIERS, or -1 for a custom chord
+    private final int modifier;
 
     //generate custom chord
     public Chord(int[] notes) {
         if (notes.length <= 0) {
             throw new IllegalArgumentException("Input must contain at least 1 note");
         }
-        this.length = 1;
-        this.notes = notes;
+        this.notes = notes.clone();
         key = notes[0];
         chordName = NOTE_NAMES[key % 12];
+        modifier = -1;
     }
 
     //generate major chord
     public Chord(int key) {
-        this.length = 1;
+        this(key, "");
+    }
+
+    public Chord(int key, String modifier) {
         this.key = key;
-        notes = new int[3];
-        notes[0] = key;
-        notes[1] = key + 4;
-        notes[2] = key + 7;
+        this.modifier = modifierIndex(modifier);
+        int[] intervals = INTERVALS[this.modifier];
+        notes = new int[intervals.length];
+        for (int i = 0; i < intervals.length; i++) {
+            notes[i] = key + intervals[i];
+        }
         chordName = NOTE_NAMES[key % 12];
     }
 
-    public Chord(int key, String modifier) {
-        this(key);
-        switch (modifier) {
-            case "m":
-                notes[1] = key + 3;
-                break;
-            case "dim":
-                notes[1] = key + 3;
-                notes[2] = key + 6;
-                break;
-            case "sus2":
-                notes[1] = key + 2;
-                break;
-            case "sus4":
-                notes[1] = key + 5;
-                break;
-            default:
-                throw new IllegalArgumentException("Need a valid modifier");
+    /**
+     * A chord voiced with its own notes, such as an inversion or a drop voicing
+     * @param key the MIDI note of the root, which need not be the lowest note
+     * @param modifier one of MODIFIERS
+     * @param notes the notes of the voicing, lowest first
+     */
+    public Chord(int key, String modifier, int[] notes) {
+        if (notes.length <= 0) {
+            throw new IllegalArgumentException("Input must contain at least 1 note");
         }
+        this.key = key;
+        this.modifier = modifierIndex(modifier);
+        this.notes = notes.clone();
+        chordName = NOTE_NAMES[key % 12];
     }
 
-    public int getKey() {
-        return key;
+    /**
+     * Looks up the shared major chord on a root
+     * @param key the MIDI note of the root
+     * @return the cached chord
+     */
+    public static Chord of(int key) {
+        return of(key, "");
     }
 
-    public int[] getNotes() {
-        return notes;
+    /**
+     * Looks up a shared chord by root and modifier
+     * @param key the MIDI note of the root, 0 to 127
+     * @param modifier one of MODIFIERS
+     * @return the cached chord
+     */
+    public static Chord of(int key, String modifier) {
+        if (key < 0 || key >= CACHE.length) {
+            throw new IllegalArgumentException("Key must be a MIDI note between 0 and 127");
+        }
+        return CACHE[key][modifierIndex(modifier)];
     }
 
-    public String getChordName() {
-        return chordName;
+    /**
+     * Looks up a shared chord by root and modifier, moving the root by octaves until every note of the chord
+     * is a MIDI note, so a root near either end of the keyboard still gives a chord in the same pitch class
+     * @param key the MIDI note of the root, which may lie outside 0 to 127
+     * @param modifier one of MODIFIERS
+     * @return the cached chord
+     */
+    public static Chord folded(int key, String modifier) {
+        int[] intervals = INTERVALS[modifierIndex(modifier)];
+        int top = intervals[intervals.length - 1];
+        while (key < 0) {
+            key += 12;
+        }
+        while (key + top >= CACHE.length) {
+            key -= 12;
+        }
+        return CACHE[key][modifierIndex(modifier)];
     }
 
-    public int getLength() {
-        return length;
+    /**
+     * @param modifier one of MODIFIERS
+     * @return the semitones above the root of the tones of the modifier, in root position
+     */
+    public static int[] intervals(String modifier) {
+        return INTERVALS[modifierIndex(modifier)].clone();
     }
 
-    public void setKey(int key) {
-        this.key = key;
+    /**
+     * @param modifier one of MODIFIERS
+     * @return the index of the modifier in MODIFIERS
+     */
+    public static int modifierIndex(String modifier) {
+        for (int m = 0; m < MODIFIERS.length; m++) {
+            if (MODIFIERS[m].equals(modifier)) {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("Need a valid modifier");
     }
 
-    public void setNotes(int[] notes) {
-        this.notes = notes;
+    /**
+     * @return the modifier of the chord, or null for a chord built from custom notes
+     */
+    public String getModifier() {
+        return modifier < 0 ? null : MODIFIERS[modifier];
     }
 
-    public void setChordName(String chordName) {
-        this.chordName = chordName;
+    /**
+     * @return the index of the modifier of the chord in MODIFIERS, or -1 for a chord built from custom notes
+     */
+    public int getModifierIndex() {
+        return modifier;
     }
 
-    public void setLength(int length) {
-        this.length = length;
+    public int getKey() {
+        return key;
     }
-}
 
+    /**
+     * @return a copy of the notes of the chord
+     */
+    public int[] getNotes() {
+        return notes.clone();
+    }
+
+    public int getNote(int i) {
+        return notes[i];
+    }
+
+    public int size() {
+        return notes.length;
+    }
+
+    /**
+     * @return the name of the root of the chord; the modifier is left out, as getModifier gives it
+     */
+    public String getChordName() {
+        return chordName;
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A 128-bit hash of a stream of longs, for recognizing content that has been
+ * seen before without comparing it.
+ * Two lanes with different multipliers and rotations are fed every value after
+ * a SplitMix64 finalizer, so equal streams always hash alike and different
+ * streams of realistic size collide with negligible probability. It is not a
+ * cryptographic hash.
+ */
+public class ContentHash {
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private static final long LANE2 = 0xC2B2AE3D27D4EB4FL;
+
+    private long a = GOLDEN;
+    private long b = LANE2;
+    private long count;
+
+    /**
+     * Feeds one value
+     * @param value the value
+     * @return this hash
+     */
+    public ContentHash add(long value) {
+        long m = mix(value + count * GOLDEN);
+        a = Long.rotateLeft(a ^ m, 27) * GOLDEN + 0x52DCE729L;
+        b = Long.rotateLeft(b + (m ^ LANE2), 31) * LANE2 ^ (b >>> 29);
+        count++;
+        return this;
+    }
+
+    /**
+     * Feeds the characters of a string, and its length so that consecutive strings stay apart
+     * @param value the string
+     * @return this hash
+     */
+    public ContentHash add(String value) {
+        add(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            add(value.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Feeds the bytes of a buffer eight at a time, and their length
+     * @param bytes the bytes from the position to the limit of the buffer, whose position is not moved
+     * @return this hash
+     */
+    public ContentHash add(ByteBuffer bytes) {
+        int pos = bytes.position();
+        int limit = bytes.limit();
+        add(limit - pos);
+        for (; pos + 8 <= limit; pos += 8) {
+            add(bytes.getLong(pos));
+        }
+        long tail = 0;
+        for (; pos < limit; pos++) {
+            tail = tail << 8 | (bytes.get(pos) & 0xFF);
+        }
+        return add(tail);
+    }
+
+    /**
+     * @return the high 64 bits of the hash of everything fed so far
+     */
+    public long high() {
+        return mix(a ^ Long.rotateLeft(b, 17) ^ count);
+    }
+
+    /**
+     * @return the low 64 bits of the hash of everything fed so far
+     */
+    public long low() {
+        return mix(b + a * LANE2 + count);
+    }
+
+    /**
+     * @return the hash as 32 hexadecimal digits
+     */
+    public String toHex() {
+        return String.format("%016x%016x", high(), low());
+    }
+
+    /**
+     * The SplitMix64 finalizer, which spreads every input bit over every output bit
+     * @param z the value
+     * @return the mixed value
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,288 @@
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects channel events in primitive arrays, sorts them once and merges them
+ * into a track in a single pass.
+ * Track.add keeps a track sorted by searching back from its end and inserting
+ * into an array list, so adding a backing rhythm to a solo one event at a time
+ * costs time proportional to the track for every event. Building a fresh track
+ * from two sorted streams costs one append per event instead.
+ */
+public class EventBuilder implements EventSink {
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int INDEX_BITS = 24;
+    private static final long MAX_TICK = (1L << (63 - INDEX_BITS)) - 1;
+
+    // one shared message per (status, data1, data2), made on first use
+    private static final AtomicReferenceArray<AtomicReferenceArray<ShortMessage>> MESSAGES =
+            new AtomicReferenceArray<>(256);
+
+    private long[] ticks;
+    private int[] statuses;
+    private int[] data1s;
+    private int[] data2s;
+    private int size;
+    private boolean sorted = true;
+
+    public EventBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public EventBuilder(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ticks = new long[capacity];
+        statuses = new int[capacity];
+        data1s = new int[capacity];
+        data2s = new int[capacity];
+    }
+
+    @Override
+    public void send(long tick, int command, int channel, int data1, int data2) {
+        if (tick < 0 || tick > MAX_TICK) {
+            throw new IllegalArgumentException("Tick out of range: " + tick);
+        }
+        if (size == ticks.length) {
+            grow();
+        }
+        if (size > 0 && tick < ticks[size - 1]) {
+            sorted = false;
+        }
+        ticks[size] = tick;
+        statuses[size] = (command & 0xF0) | (channel & 0x0F);
+        data1s[size] = data1;
+        data2s[size] = data2;
+        size++;
+    }
+
+    /**
+     * Adds a NOTE_ON and its NOTE_OFF
+     * @param on the tick of the NOTE_ON
+     * @param off the tick of the NOTE_OFF
+     * @param channel the MIDI channel of the note
+     * @param pitch the pitch of the note
+     * @param velocity the velocity of both events
+     */
+    public void addNote(long on, long off, int channel, int pitch, int velocity) {
+        send(on, ShortMessage.NOTE_ON, channel, pitch, velocity);
+        send(off, ShortMessage.NOTE_OFF, channel, pitch, velocity);
+    }
+
+    /**
+     * Adds every event of another builder
+     * @param other the builder whose events are added, left untouched
+     */
+    public void addAll(EventBuilder other) {
+        for (int i = 0; i < other.size; i++) {
+            send(other.ticks[i], other.statuses[i] & 0xF0, other.statuses[i] & 0x0F, other.data1s[i], other.data2s[i]);
+        }
+    }
+
+    /**
+     * Orders the events by tick, keeping events on the same tick in the order they were added
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        if (size >= 1 << INDEX_BITS) {
+            throw new IllegalStateException("Too many events to sort: " + size);
+        }
+        // tick in the high bits and insertion index in the low bits makes the sort stable
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = (ticks[i] << INDEX_BITS) | i;
+        }
+        Arrays.sort(keys);
+        int[] sortedStatuses = new int[ticks.length];
+        int[] sortedData1s = new int[ticks.length];
+        int[] sortedData2s = new int[ticks.length];
+        for (int i = 0; i < size; i++) {
+            int j = (int) (keys[i] & ((1 << INDEX_BITS) - 1));
+            ticks[i] = keys[i] >>> INDEX_BITS;
+            sortedStatuses[i] = statuses[j];
+            sortedData1s[i] = data1s[j];
+            sortedData2s[i] = data2s[j];
+        }
+        statuses = sortedStatuses;
+        data1s = sortedData1s;
+        data2s = sortedData2s;
+        sorted = true;
+    }
+
+    /**
+     * Appends every event, in tick order, to a track
+     * @param t the track to be added to
+     */
+    public void appendTo(Track t) {
+        sort();
+        for (int i = 0; i < size; i++) {
+            t.add(new MidiEvent(message(statuses[i], data1s[i], data2s[i]), ticks[i]));
+        }
+    }
+
+    /**
+     * Merges the events with the events of an existing track into another track in a single pass.
+     * Where both have an event on the same tick, the existing event comes first, as with Track.add.
+     * @param source the existing track, left untouched
+     * @param dest an empty track that receives the merged events
+     */
+    public void mergeInto(Track source, Track dest) {
+        sort();
+        int n = source.size();
+        int s = 0;
+        int i = 0;
+        while (s < n || i < size) {
+            if (i >= size || (s < n && source.get(s).getTick() <= ticks[i])) {
+                dest.add(source.get(s++));
+            } else {
+                dest.add(new MidiEvent(message(statuses[i], data1s[i], data2s[i]), ticks[i]));
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Looks up the shared, immutable message for a status and data bytes
+     * @param status the status byte, command and channel
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @return the shared message
+     */
+    public static ShortMessage message(int status, int data1, int data2) {
+        AtomicReferenceArray<ShortMessage> row = MESSAGES.get(status);
+        if (row == null) {
+            MESSAGES.compareAndSet(status, null, new AtomicReferenceArray<>(128 * 128));
+            row = MESSAGES.get(status);
+        }
+        int index = ((data1 & 0x7F) << 7) | (data2 & 0x7F);
+        ShortMessage message = row.get(index);
+        if (message == null) {
+            row.compareAndSet(index, null, new ImmutableShortMessage(status, data1, data2));
+            message = row.get(index);
+        }
+        return message;
+    }
+
+    /**
+     * @param command the command, e.g. 0x90 for NOTE_ON
+     * @param channel the MIDI channel
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @return the shared message
+     */
+    public static ShortMessage message(int command, int channel, int data1, int data2) {
+        return message((command & 0xF0) | (channel & 0x0F), data1, data2);
+    }
+
+    public void clear() {
+        size = 0;
+        sorted = true;
+    }
+
+    private void grow() {
+        int capacity = ticks.length * 2;
+        ticks = Arrays.copyOf(ticks, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        data1s = Arrays.copyOf(data1s, capacity);
+        data2s = Arrays.copyOf(data2s, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTick(int i) {
+        return ticks[i];
+    }
+
+    public int getStatus(int i) {
+        return statuses[i];
+    }
+
+    public int getCommand(int i) {
+        return statuses[i] & 0xF0;
+    }
+
+    public int getChannel(int i) {
+        return statuses[i] & 0x0F;
+    }
+
+    public int getData1(int i) {
+        return data1s[i];
+    }
+
+    public int getData2(int i) {
+        return data2s[i];
+    }
+
+    /**
+     * Moves an event in place; the events are sorted again before they are next read in order if that breaks
+     * their order
+     * @param i the index of the event
+     * @param tick the new tick of the event
+     */
+    public void setTick(int i, long tick) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Event " + i + " of " + size);
+        }
+        if (tick < 0 || tick > MAX_TICK) {
+            throw new IllegalArgumentException("Tick out of range: " + tick);
+        }
+        ticks[i] = tick;
+        // every adjacent pair is compared once its later-set member has its final tick
+        if ((i > 0 && tick < ticks[i - 1]) || (i + 1 < size && tick > ticks[i + 1])) {
+            sorted = false;
+        }
+    }
+
+    /**
+     * @param i the index of the event
+     * @param data2 the new second data byte of the event, the velocity of a note
+     */
+    public void setData2(int i, int data2) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Event " + i + " of " + size);
+        }
+        data2s[i] = data2;
+    }
+
+    /**
+     * A ShortMessage that cannot be changed once made, so one instance can be
+     * shared by any number of events, tracks and threads
+     */
+    private static final class ImmutableShortMessage extends ShortMessage {
+
+        ImmutableShortMessage(int status, int data1, int data2) {
+            super(bytes(status, data1, data2));
+        }
+
+        private static byte[] bytes(int status, int data1, int data2) {
+            int command = status & 0xF0;
+            // program change and channel pressure carry a single data byte
+            if (command == ShortMessage.PROGRAM_CHANGE || command == ShortMessage.CHANNEL_PRESSURE) {
+                return new byte[]{(byte) status, (byte) (data1 & 0x7F)};
+            }
+            return new byte[]{(byte) status, (byte) (data1 & 0x7F), (byte) (data2 & 0x7F)};
+        }
+
+        @Override
+        public void setMessage(int status) {
+            throw new UnsupportedOperationException("Shared messages are immutable");
+        }
+
+        @Override
+        public void setMessage(int status, int data1, int data2) {
+            throw new UnsupportedOperationException("Shared messages are immutable");
+        }
+
+        @Override
+        public void setMessage(int command, int channel, int data1, int data2) {
+            throw new UnsupportedOperationException("Shared messages are immutable");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Receives channel events in tick order as they are generated
+ */
+public interface EventSink {
+
+    /**
+     * Accepts a single channel event
+     * @param tick the tick the event is to be played at
+     * @param command the command of the event, e.g. 0x90 for NOTE_ON
+     * @param channel the MIDI channel of the event
+     * @param data1 the first data byte, the pitch for note events
+     * @param data2 the second data byte, the velocity for note events
+     */
+    void send(long tick, int command, int channel, int data1, int data2);
+}
@@ -0,0 +1,211 @@
+import java.nio.file.Path;
+
+/**
+ * How writeOnSolo lays out and produces the backing of a multi-track solo.
+ * Every track holding notes is analyzed and accompanied on its own; the
+ * settings choose whether each gets its own backing track or all backings
+ * share one, and whether the tracks are worked on in parallel. Without a style
+ * registry the backing comps into the gaps of the solo; with one, each measure
+ * is played in the style its solo density calls for. With voice leading, the
+ * chords take on the sevenths and ninths the solo plays and are voiced to move
+ * as little as they can from measure to measure. With a Humanizer, the backing
+ * is swung and loosened in timing and velocity once its events are built. With
+ * a walking bass, a bass line follows the same chords on its own channel.
+ * For BatchRunner, the settings also carry a ResultCache of earlier backings, a
+ * directory of saved analyses and an AudioRenderer of WAV previews. These decide
+ * where a backing comes from and what is written next to it, never the backing
+ * itself, so ResultCache keys leave them out.
+ */
+public class GeneratorSettings {
+
+    /**
+     * Where the backing of each solo track goes
+     */
+    public enum Layout {
+        /** one backing track after the solo tracks for every track holding notes */
+        SEPARATE,
+        /** a single backing track after the solo tracks holding the backing of every track */
+        MERGED
+    }
+
+    private Layout layout = Layout.SEPARATE;
+    private boolean parallel = true;
+    private int velocity = 60;
+    private int channel = 0;
+    private StyleRegistry styles;
+    private boolean voiceLeading;
+    private Humanizer humanizer;
+    private boolean walkingBass;
+    private int bassChannel = 1;
+    private ResultCache cache;
+    private Path analyses;
+    private AudioRenderer renderer;
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public GeneratorSettings setLayout(Layout layout) {
+        if (layout == null) {
+            throw new IllegalArgumentException("Layout cannot be null");
+        }
+        this.layout = layout;
+        return this;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel whether tracks are accompanied on the fork-join pool the caller runs in,
+     *                 or the common pool outside of one
+     * @return these settings
+     */
+    public GeneratorSettings setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public int getVelocity() {
+        return velocity;
+    }
+
+    /**
+     * @param velocity the velocity of the backing and bass, from 1 to 127; a NOTE_ON of velocity 0 would end a
+     *                 note instead of playing it
+     * @return these settings
+     */
+    public GeneratorSettings setVelocity(int velocity) {
+        if (velocity < 1 || velocity > 127) {
+            throw new IllegalArgumentException("Velocity must be between 1 and 127");
+        }
+        this.velocity = velocity;
+        return this;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public GeneratorSettings setChannel(int channel) {
+        if (channel < 0 || channel > 15) {
+            throw new IllegalArgumentException("Channel must be between 0 and 15");
+        }
+        this.channel = channel;
+        return this;
+    }
+
+    public StyleRegistry getStyles() {
+        return styles;
+    }
+
+    /**
+     * @param styles the styles measures are played in, or null to comp into the gaps of the solo
+     * @return these settings
+     */
+    public GeneratorSettings setStyles(StyleRegistry styles) {
+        this.styles = styles;
+        return this;
+    }
+
+    public boolean isVoiceLeading() {
+        return voiceLeading;
+    }
+
+    /**
+     * @param voiceLeading whether chords are extended and voiced by a VoicingEngine, rather than played as
+     *                     root-position triads
+     * @return these settings
+     */
+    public GeneratorSettings setVoiceLeading(boolean voiceLeading) {
+        this.voiceLeading = voiceLeading;
+        return this;
+    }
+
+    public Humanizer getHumanizer() {
+        return humanizer;
+    }
+
+    /**
+     * @param humanizer how the timing and velocities of the backing are loosened, or null to play it exactly
+     * @return these settings
+     */
+    public GeneratorSettings setHumanizer(Humanizer humanizer) {
+        this.humanizer = humanizer;
+        return this;
+    }
+
+    public boolean isWalkingBass() {
+        return walkingBass;
+    }
+
+    /**
+     * @param walkingBass whether a WalkingBass line is played under the chords, on tracks of its own after the
+     *                    backing tracks and laid out the same way
+     * @return these settings
+     */
+    public GeneratorSettings setWalkingBass(boolean walkingBass) {
+        this.walkingBass = walkingBass;
+        return this;
+    }
+
+    public int getBassChannel() {
+        return bassChannel;
+    }
+
+    public GeneratorSettings setBassChannel(int bassChannel) {
+        if (bassChannel < 0 || bassChannel > 15) {
+            throw new IllegalArgumentException("Channel must be between 0 and 15");
+        }
+        this.bassChannel = bassChannel;
+        return this;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache the cache of earlier backings, or null to accompany every file
+     * @return these settings
+     */
+    public GeneratorSettings setCache(ResultCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public Path getAnalyses() {
+        return analyses;
+    }
+
+    /**
+     * @param analyses the directory of saved analyses, or null to analyze every file without saving it
+     * @return these settings
+     */
+    public GeneratorSettings setAnalyses(Path analyses) {
+        this.analyses = analyses;
+        return this;
+    }
+
+    public AudioRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * @param renderer the renderer of a WAV preview of every output, or null for none
+     * @return these settings
+     */
+    public GeneratorSettings setRenderer(AudioRenderer renderer) {
+        this.renderer = renderer;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "layout=" + layout + " parallel=" + parallel + " velocity=" + velocity + " channel=" + channel
+                + " styles=" + (styles == null ? "gaps" : styles.size()) + " voiceLeading=" + voiceLeading
+                + " humanizer=" + (humanizer == null ? "off" : "{" + humanizer + "}")
+                + " walkingBass=" + (walkingBass ? "channel " + bassChannel : "off");
+    }
+}
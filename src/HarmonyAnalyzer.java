@@ -0,0 +1,322 @@
+/**
+ * Finds the key of a solo and a chord for every measure from the pitch-class
+ * histograms of a MeasureGrid.
+ * The key is the Krumhansl-Kessler key profile that best matches the whole solo.
+ * Each measure is then scored against a template for every root and every
+ * modifier of Chord, with a bonus for chords that belong to the key and for
+ * keeping the previous chord. All templates are tables built once, so a measure
+ * costs a few multiply-adds per candidate chord over primitive arrays.
+ * The triads can then be extended to sevenths, ninths and altered dominants
+ * where the solo leans on those tones.
+ */
+public class HarmonyAnalyzer {
+
+    public static final double[] MAJOR_PROFILE = {6.35, 2.23, 3.48, 2.33, 4.38, 4.09, 2.52, 5.19, 2.39, 3.66, 2.29, 2.88};
+    public static final double[] MINOR_PROFILE = {6.33, 2.68, 3.52, 5.38, 2.60, 3.53, 2.54, 4.75, 3.98, 2.69, 3.34, 3.17};
+
+    private static final double[] TONE_WEIGHTS = {1.0, 0.8, 0.6};
+    private static final double NON_CHORD_TONE = -0.4;
+    private static final double[] QUALITY_BIAS = {0.0, 0.0, -0.1, -0.25, -0.25};
+    private static final double DIATONIC_BONUS = 0.25;
+    private static final double CONTINUITY_BONUS = 0.1;
+    // the share of the notes of a measure an extension needs before it is added to the chord
+    private static final double EXTENSION_SHARE = 0.125;
+
+    private static final int[] MAJOR_SCALE = {0, 2, 4, 5, 7, 9, 11};
+    // natural minor with the raised seventh, so V and vii dim count as diatonic
+    private static final int[] MINOR_SCALE = {0, 2, 3, 5, 7, 8, 10, 11};
+
+    // the triads of Chord.MODIFIERS, which come first, that measures are scored against
+    public static final int QUALITIES = QUALITY_BIAS.length;
+    public static final int CHORDS = 12 * QUALITIES;
+
+    // CHORD_TONES[q]: the intervals above the root of the triad Chord.MODIFIERS[q]
+    private static final int[][] CHORD_TONES = new int[QUALITIES][];
+
+    // KEY_WEIGHTS[key * 12 + pc]: the mean-centred profile of the key, majors 0-11 then minors 12-23
+    private static final double[] KEY_WEIGHTS = new double[24 * 12];
+    // CHORD_PCS[chord * 3 + t]: the pitch class of tone t of the chord, with chord = root * QUALITIES + quality
+    private static final int[] CHORD_PCS = new int[CHORDS * 3];
+    // DIATONIC[key * CHORDS + chord]: whether every tone of the chord is in the key
+    private static final boolean[] DIATONIC = new boolean[24 * CHORDS];
+
+    static {
+        for (int q = 0; q < QUALITIES; q++) {
+            CHORD_TONES[q] = Chord.intervals(Chord.MODIFIERS[q]);
+        }
+        for (int key = 0; key < 24; key++) {
+            double[] profile = key < 12 ? MAJOR_PROFILE : MINOR_PROFILE;
+            double mean = 0;
+            for (double p : profile) {
+                mean += p / 12;
+            }
+            for (int pc = 0; pc < 12; pc++) {
+                KEY_WEIGHTS[key * 12 + pc] = profile[(pc - key % 12 + 12) % 12] - mean;
+            }
+        }
+        for (int root = 0; root < 12; root++) {
+            for (int q = 0; q < QUALITIES; q++) {
+                int chord = root * QUALITIES + q;
+                for (int t = 0; t < 3; t++) {
+                    CHORD_PCS[chord * 3 + t] = (root + CHORD_TONES[q][t]) % 12;
+                }
+                for (int key = 0; key < 24; key++) {
+                    int[] scale = key < 12 ? MAJOR_SCALE : MINOR_SCALE;
+                    boolean diatonic = true;
+                    for (int tone : CHORD_TONES[q]) {
+                        diatonic &= contains(scale, (root + tone - key % 12 + 12) % 12);
+                    }
+                    DIATONIC[key * CHORDS + chord] = diatonic;
+                }
+            }
+        }
+    }
+
+    private static boolean contains(int[] scale, int pc) {
+        for (int s : scale) {
+            if (s == pc) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final int lowestRoot;
+    private final int[] keyHistogram = new int[12];
+    private final int[] histogram = new int[12];
+    private int previousChord = -1;
+
+    /**
+     * An analyzer that follows a solo measure by measure, for callers that cannot see the whole solo
+     * @param lowestRoot the lowest MIDI note a chord root is placed on; roots span the octave above it
+     */
+    public HarmonyAnalyzer(int lowestRoot) {
+        this.lowestRoot = lowestRoot;
+    }
+
+    /**
+     * Picks the chord of the next measure, using the key of everything heard so far
+     * @param grid the grid holding the measure
+     * @param measure the measure within the grid
+     * @return the chord, or null if nothing has been heard yet
+     */
+    public Chord nextChord(MeasureGrid grid, int measure) {
+        for (int pc = 0; pc < 12; pc++) {
+            keyHistogram[pc] += grid.getPitchClassCount(measure, pc);
+        }
+        int key = detectKey(keyHistogram);
+        previousChord = chordIndex(grid, measure, key, previousChord, histogram);
+        return previousChord < 0 ? null : toChord(previousChord, lowestRoot);
+    }
+
+    /**
+     * Finds the key of a whole solo
+     * @param grid the onsets and pitch classes of the solo
+     * @return the key, 0-11 for the major key on that pitch class and 12-23 for the minor keys
+     */
+    public static int detectKey(MeasureGrid grid) {
+        int[] histogram = new int[12];
+        for (int m = 0; m < grid.size(); m++) {
+            for (int pc = 0; pc < 12; pc++) {
+                histogram[pc] += grid.getPitchClassCount(m, pc);
+            }
+        }
+        return detectKey(histogram);
+    }
+
+    /**
+     * Finds the key that best matches a pitch-class histogram
+     * @param histogram the number of notes of each pitch class
+     * @return the key, 0-11 for the major key on that pitch class and 12-23 for the minor keys
+     */
+    public static int detectKey(int[] histogram) {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int key = 0; key < 24; key++) {
+            double score = 0;
+            for (int pc = 0; pc < 12; pc++) {
+                score += histogram[pc] * KEY_WEIGHTS[key * 12 + pc];
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                best = key;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks a chord for every measure of a solo in one pass.
+     * A measure without notes keeps the chord before it; the first chord defaults to the tonic.
+     * @param grid the onsets and pitch classes of the solo
+     * @param key the key of the solo, from detectKey
+     * @param lowestRoot the lowest MIDI note a chord root is placed on; roots span the octave above it
+     * @return one shared chord per measure
+     */
+    public static Chord[] detectChords(MeasureGrid grid, int key, int lowestRoot) {
+        Chord[] chords = new Chord[grid.size()];
+        int previous = tonicChord(key);
+        int[] histogram = new int[12];
+        for (int m = 0; m < grid.size(); m++) {
+            previous = chordIndex(grid, m, key, previous, histogram);
+            chords[m] = toChord(previous, lowestRoot);
+        }
+        return chords;
+    }
+
+    /**
+     * Extends the triads of a solo to sevenths and ninths where its measures play those tones.
+     * A seventh is added when the minor or major seventh above the root makes up enough of a measure;
+     * a dominant seventh becomes a ninth, a flat or sharp ninth, or gets a sharp or flat fifth when those
+     * tones do as well. Sus chords and measures without notes keep their chord.
+     * @param grid the onsets and pitch classes of the solo
+     * @param chords one chord per measure of the grid, as detectChords returns them
+     * @return one shared chord per measure
+     */
+    public static Chord[] extendChords(MeasureGrid grid, Chord[] chords) {
+        Chord[] extended = new Chord[chords.length];
+        int[] histogram = new int[12];
+        for (int m = 0; m < chords.length; m++) {
+            Chord chord = chords[m];
+            extended[m] = chord;
+            if (m >= grid.size() || chord.getModifierIndex() < 0 || chord.getModifierIndex() >= QUALITIES) {
+                continue;
+            }
+            int total = 0;
+            for (int pc = 0; pc < 12; pc++) {
+                histogram[pc] = grid.getPitchClassCount(m, pc);
+                total += histogram[pc];
+            }
+            String modifier = extension(chord.getModifier(), histogram, chord.getKey() % 12,
+                    Math.max(1, (int) Math.ceil(total * EXTENSION_SHARE)));
+            if (modifier != null && chord.getKey() < 128) {
+                extended[m] = Chord.of(chord.getKey(), modifier);
+            }
+        }
+        return extended;
+    }
+
+    /**
+     * @param enough the count a tone needs to be heard as part of the chord
+     * @return the extended modifier of a triad, or null to keep the triad
+     */
+    private static String extension(String triad, int[] histogram, int root, int enough) {
+        int minorSeventh = histogram[(root + 10) % 12];
+        int majorSeventh = histogram[(root + 11) % 12];
+        int ninth = histogram[(root + 2) % 12];
+        switch (triad) {
+            case "":
+                if (minorSeventh >= enough && minorSeventh >= majorSeventh) {
+                    int flatNine = histogram[(root + 1) % 12];
+                    int sharpNine = histogram[(root + 3) % 12];
+                    int sharpFive = histogram[(root + 8) % 12];
+                    int flatFive = histogram[(root + 6) % 12];
+                    int fifth = histogram[(root + 7) % 12];
+                    if (flatNine >= enough && flatNine >= ninth) {
+                        return "7b9";
+                    }
+                    if (sharpNine >= enough && sharpNine > histogram[(root + 4) % 12]) {
+                        return "7#9";
+                    }
+                    if (ninth >= enough) {
+                        return "9";
+                    }
+                    if (sharpFive >= enough && sharpFive > fifth) {
+                        return "7#5";
+                    }
+                    if (flatFive >= enough && flatFive > fifth) {
+                        return "7b5";
+                    }
+                    return "7";
+                }
+                if (majorSeventh >= enough) {
+                    return ninth >= enough ? "maj9" : "maj7";
+                }
+                return null;
+            case "m":
+                if (minorSeventh >= enough) {
+                    return ninth >= enough ? "m9" : "m7";
+                }
+                return null;
+            case "dim":
+                if (minorSeventh >= enough) {
+                    return "m7b5";
+                }
+                return histogram[(root + 9) % 12] >= enough ? "dim7" : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Scores every chord template against one measure.
+     * Every note outside a chord weighs the same, so a score is the notes on its three tones
+     * plus a constant times all the notes of the measure.
+     * @param histogram scratch space for the pitch classes of the measure, 12 long
+     * @return the best chord, or previous if the measure has no notes
+     */
+    private static int chordIndex(MeasureGrid grid, int measure, int key, int previous, int[] histogram) {
+        int total = 0;
+        for (int pc = 0; pc < 12; pc++) {
+            histogram[pc] = grid.getPitchClassCount(measure, pc);
+            total += histogram[pc];
+        }
+        if (total == 0) {
+            return previous;
+        }
+        double root = TONE_WEIGHTS[0] - NON_CHORD_TONE;
+        double third = TONE_WEIGHTS[1] - NON_CHORD_TONE;
+        double fifth = TONE_WEIGHTS[2] - NON_CHORD_TONE;
+        int best = previous;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int chord = 0, tone = 0; chord < CHORDS; chord++, tone += 3) {
+            double bonus = NON_CHORD_TONE + QUALITY_BIAS[chord % QUALITIES];
+            if (DIATONIC[key * CHORDS + chord]) {
+                bonus += DIATONIC_BONUS;
+            }
+            if (chord == previous) {
+                bonus += CONTINUITY_BONUS;
+            }
+            double score = root * histogram[CHORD_PCS[tone]] + third * histogram[CHORD_PCS[tone + 1]]
+                    + fifth * histogram[CHORD_PCS[tone + 2]] + bonus * total;
+            if (score > bestScore) {
+                bestScore = score;
+                best = chord;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param key the key
+     * @return the index of the tonic triad of the key
+     */
+    public static int tonicChord(int key) {
+        return (key % 12) * QUALITIES + (key < 12 ? 0 : 1);
+    }
+
+    /**
+     * @param key the key
+     * @return the pitch class of the tonic, 0 for C
+     */
+    public static int tonic(int key) {
+        return key % 12;
+    }
+
+    public static boolean isMinor(int key) {
+        return key >= 12;
+    }
+
+    /**
+     * @param pitchClass the pitch class of a root
+     * @param lowestRoot the lowest MIDI note the root may be placed on
+     * @return the MIDI note of the root in the octave starting at lowestRoot
+     */
+    public static int placeRoot(int pitchClass, int lowestRoot) {
+        return lowestRoot + ((pitchClass - lowestRoot) % 12 + 12) % 12;
+    }
+
+    private static Chord toChord(int chord, int lowestRoot) {
+        return Chord.of(placeRoot(chord / QUALITIES, lowestRoot), Chord.MODIFIERS[chord % QUALITIES]);
+    }
+}
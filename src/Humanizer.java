@@ -0,0 +1,221 @@
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Loosens a backing so it sounds played rather than sequenced: swing, timing
+ * jitter, a velocity curve and accents by position in the measure.
+ * It works in place on an EventBuilder in a single pass, allocating nothing.
+ * Swing warps time within every whole beat, so the off-beat eighth lands at the
+ * swing ratio of the beat; since the warp only ever stretches or squeezes time,
+ * no event passes another. Jitter and velocity variation come from a stateless
+ * hash of the seed and the tick of each event rather than a running generator,
+ * so the same backing always comes out the same whatever order or thread it is
+ * humanized on, and every event on a tick moves together: a chord stays a
+ * chord, and a NOTE_OFF stays with the NOTE_ON that follows it on the same tick.
+ * Accents are added to the velocity of each hit by its eighth in the measure, on
+ * top of any velocities the comping style gives its hits, and the result is
+ * passed through the curve. Settings must not change while a backing is being
+ * humanized with them.
+ */
+public class Humanizer {
+
+    public static final double STRAIGHT = 0.5;
+    public static final double MAX_SWING = 0.75;
+    // notes of a backing are at least a swung eighth long, so jitter this small never reverses a note
+    public static final double MAX_JITTER = 0.1;
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private double swing = STRAIGHT;
+    private double jitter;
+    private int velocityJitter;
+    private double curve = 1;
+    private final byte[] curveTable = new byte[128];
+    private int[] accents = new int[0];
+    private long seed;
+
+    public Humanizer() {
+        setVelocityCurve(1);
+    }
+
+    public double getSwing() {
+        return swing;
+    }
+
+    /**
+     * @param swing the share of each beat taken by its first eighth, from STRAIGHT (0.5) to MAX_SWING (0.75);
+     *              2/3 is a triplet swing
+     * @return this humanizer
+     */
+    public Humanizer setSwing(double swing) {
+        if (!(swing >= STRAIGHT && swing <= MAX_SWING)) {
+            throw new IllegalArgumentException("Swing must be between " + STRAIGHT + " and " + MAX_SWING);
+        }
+        this.swing = swing;
+        return this;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter the most an event is moved early or late, as a share of a quarter note, up to MAX_JITTER
+     * @return this humanizer
+     */
+    public Humanizer setJitter(double jitter) {
+        if (!(jitter >= 0 && jitter <= MAX_JITTER)) {
+            throw new IllegalArgumentException("Jitter must be between 0 and " + MAX_JITTER);
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    public int getVelocityJitter() {
+        return velocityJitter;
+    }
+
+    /**
+     * @param velocityJitter the most the velocity of a note is raised or lowered, before the curve
+     * @return this humanizer
+     */
+    public Humanizer setVelocityJitter(int velocityJitter) {
+        if (velocityJitter < 0 || velocityJitter > 127) {
+            throw new IllegalArgumentException("Velocity jitter must be between 0 and 127");
+        }
+        this.velocityJitter = velocityJitter;
+        return this;
+    }
+
+    public double getVelocityCurve() {
+        return curve;
+    }
+
+    /**
+     * @param gamma the exponent of the velocity curve: 1 keeps velocities, above 1 softens the quiet hits more
+     *              than the loud ones, below 1 lifts them
+     * @return this humanizer
+     */
+    public Humanizer setVelocityCurve(double gamma) {
+        if (!(gamma > 0 && gamma <= 10)) {
+            throw new IllegalArgumentException("The velocity curve must be above 0 and at most 10");
+        }
+        curve = gamma;
+        for (int v = 1; v < 128; v++) {
+            long curved = Math.round(127 * Math.pow(v / 127.0, gamma));
+            // a NOTE_ON of velocity 0 would end the note
+            curveTable[v] = (byte) Math.max(1, Math.min(127, curved));
+        }
+        return this;
+    }
+
+    /**
+     * @return a copy of the velocity added to a hit on each eighth of a measure
+     */
+    public int[] getAccents() {
+        return accents.clone();
+    }
+
+    /**
+     * @param accents the velocity added to a hit on each eighth of a measure, repeating over longer measures,
+     *                such as {0, 0, 12, 0, 0, 0, 12, 0} for the backbeat; empty for none
+     * @return this humanizer
+     */
+    public Humanizer setAccents(int... accents) {
+        for (int accent : accents) {
+            if (accent < -127 || accent > 127) {
+                throw new IllegalArgumentException("Accents must be between -127 and 127");
+            }
+        }
+        this.accents = accents.clone();
+        return this;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed the seed of the jitter; the same seed always humanizes a backing the same way
+     * @return this humanizer
+     */
+    public Humanizer setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Humanizes every event of a builder in place
+     * @param events the events, NOTE_ONs and NOTE_OFFs
+     * @param timing the measures the events fall in
+     */
+    public void apply(EventBuilder events, TimingModel timing) {
+        int ppq = timing.getResolution();
+        int half = ppq / 2;
+        int swung = (int) Math.round(swing * ppq);
+        int maxJitter = (int) (jitter * ppq);
+        boolean warp = swung != half && half > 0;
+        // the bounds of the measure of the previous event, so events in order rarely search the timing
+        long start = 0;
+        long end = 0;
+        for (int i = 0; i < events.size(); i++) {
+            long tick = events.getTick(i);
+            if (tick >= end || tick < start) {
+                long measure = timing.measureAt(tick);
+                start = timing.measureStart(measure);
+                end = timing.measureEnd(measure);
+            }
+            long offset = tick - start;
+
+            int command = events.getCommand(i);
+            int velocity = events.getData2(i);
+            if (command == ShortMessage.NOTE_ON && velocity > 0) {
+                int eighth = (int) (offset / Math.max(half, 1));
+                velocity += accents.length == 0 ? 0 : accents[eighth % accents.length];
+                velocity += spread(ContentHash.mix(hash(tick) + events.getData1(i)), velocityJitter);
+                events.setData2(i, curveTable[Math.max(1, Math.min(127, velocity))]);
+            }
+
+            long moved = tick;
+            long beat = start + offset / ppq * ppq;
+            if (warp && beat + ppq <= end) {
+                long within = tick - beat;
+                moved = beat + (within <= half
+                        ? within * swung / half
+                        : swung + (within - half) * (ppq - swung) / (ppq - half));
+            }
+            moved += spread(hash(tick), maxJitter);
+            if (moved != tick) {
+                events.setTick(i, Math.max(0, moved));
+            }
+        }
+    }
+
+    private long hash(long tick) {
+        return ContentHash.mix(seed + tick * GOLDEN);
+    }
+
+    /**
+     * @return a value from -range to range picked by a hash
+     */
+    private static int spread(long hash, int range) {
+        return range == 0 ? 0 : (int) Math.floorMod(hash, 2L * range + 1) - range;
+    }
+
+    /**
+     * Feeds everything that decides how a backing is humanized into a hash
+     * @param hash the hash to be fed
+     */
+    public void hashInto(ContentHash hash) {
+        hash.add(Double.doubleToLongBits(swing)).add(Double.doubleToLongBits(jitter)).add(velocityJitter)
+                .add(Double.doubleToLongBits(curve)).add(seed).add(accents.length);
+        for (int accent : accents) {
+            hash.add(accent);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "swing=" + swing + " jitter=" + jitter + " velocityJitter=" + velocityJitter + " curve=" + curve
+                + " accents=" + accents.length + " seed=" + seed;
+    }
+}
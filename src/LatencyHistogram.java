@@ -0,0 +1,99 @@
+import java.util.Arrays;
+
+/**
+ * A fixed-size latency histogram with microsecond buckets.
+ * Recording never allocates, so it can sit on a real-time thread; it is meant
+ * to have a single writer and be read once recording has stopped.
+ */
+public class LatencyHistogram {
+
+    private final long[] buckets;
+    private long count;
+    private long overflow;
+    private long maxNanos;
+    private long totalNanos;
+
+    /**
+     * @param maxMicros the largest latency with its own bucket; anything slower is counted as overflow
+     */
+    public LatencyHistogram(int maxMicros) {
+        buckets = new long[maxMicros + 1];
+    }
+
+    public LatencyHistogram() {
+        this(100_000);
+    }
+
+    /**
+     * Records a single latency
+     * @param nanos the latency in nanoseconds; negative values count as zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        if (micros < buckets.length) {
+            buckets[(int) micros]++;
+        } else {
+            overflow++;
+        }
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100
+     * @return the latency in microseconds below which the given share of samples fall,
+     *         or -1 if it lies in the overflow
+     */
+    public long percentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        overflow = 0;
+        maxNanos = 0;
+        totalNanos = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getOverflow() {
+        return overflow;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos / 1000;
+    }
+
+    public double getMeanMicros() {
+        return count == 0 ? 0 : totalNanos / 1000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus",
+                count, getMeanMicros(), percentileMicros(50), percentileMicros(90), percentileMicros(99),
+                percentileMicros(99.9), getMaxMicros());
+    }
+}
@@ -0,0 +1,385 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Comps live behind a soloist. Notes from a Transmitter are handed to a dedicated
+ * timing thread through a lock-free ring; at every bar line the timing thread runs
+ * generateRhythm over the bar just played and schedules that backing for the next
+ * bar, then sends each hit to the output Receiver when it falls due. The chord of
+ * the next bar is picked by a HarmonyAnalyzer from the bar just played, in the key
+ * of everything heard so far, as StreamingAccompanist picks its chords.
+ *
+ * Nothing on the timing thread allocates once started: the measure grids, the
+ * schedule and one ShortMessage per (command, pitch) are all made up front. The
+ * messages are reused, so the output Receiver must not hold on to them.
+ */
+public class LiveComper implements Receiver {
+
+    private static final int RING_SIZE = 1024;
+    private static final int SCHEDULE_SIZE = 512;
+    private static final long SPIN_NANOS = 200_000;
+
+    private final Receiver out;
+    private final int rootNote;
+    private final HarmonyAnalyzer harmony = new HarmonyAnalyzer(RhythmGenerator.CHORD_REGISTER);
+    private final long slotNanos;
+    private final long measureNanos;
+    private final long eighthNanos;
+    private final long wholeNanos;
+
+    // single-producer single-consumer ring of incoming notes
+    private final long[] ringNanos = new long[RING_SIZE];
+    private final int[] ringPitches = new int[RING_SIZE];
+    private final AtomicLong ringHead = new AtomicLong();
+    private final AtomicLong ringTail = new AtomicLong();
+    // written only by the Transmitter's thread
+    private volatile long droppedNotes;
+
+    // prev and current measures, measure m kept at m % 2
+    private final MeasureGrid window = new MeasureGrid(2, RhythmGenerator.noteRes);
+    private final int[][] rhythm = new int[2][8];
+    private long currentMeasure;
+    private long nextBarLine;
+
+    // backing events waiting to be sent, sorted by due time
+    private final long[] dueNanos = new long[SCHEDULE_SIZE];
+    private final ShortMessage[] dueMessages = new ShortMessage[SCHEDULE_SIZE];
+    private int scheduled;
+    // written only by the timing thread
+    private volatile long droppedBacking;
+    private volatile long failures;
+    private volatile RuntimeException lastFailure;
+
+    private final ShortMessage[] noteOns = new ShortMessage[128];
+    private final ShortMessage[] noteOffs = new ShortMessage[128];
+
+    private final LatencyHistogram inputLatency = new LatencyHistogram();
+    private final LatencyHistogram outputLatency = new LatencyHistogram();
+
+    private volatile boolean running;
+    private volatile long startNanos;
+    private volatile Thread timingThread;
+
+    /**
+     * @param out where the backing chords are sent
+     * @param rootNote The root note of the chord played until the first note of the solo
+     * @param tempo the tempo of the solo in microseconds per quarter note
+     * @param velocity the velocity of the backing chords
+     * @param channel the MIDI channel of the backing chords
+     */
+    public LiveComper(Receiver out, int rootNote, int tempo, int velocity, int channel)
+            throws InvalidMidiDataException {
+        this.out = out;
+        this.rootNote = rootNote;
+        long quarterNanos = tempo * 1000L;
+        slotNanos = quarterNanos / (RhythmGenerator.noteRes / 4);
+        measureNanos = slotNanos * RhythmGenerator.noteRes;
+        eighthNanos = quarterNanos / 2;
+        wholeNanos = quarterNanos * 4;
+        for (int pitch = 0; pitch < 128; pitch++) {
+            noteOns[pitch] = new ShortMessage(ShortMessage.NOTE_ON, channel, pitch, velocity);
+            noteOffs[pitch] = new ShortMessage(ShortMessage.NOTE_OFF, channel, pitch, 0);
+        }
+    }
+
+    public LiveComper(Receiver out, int rootNote, int tempo) throws InvalidMidiDataException {
+        this(out, rootNote, tempo, 60, 0);
+    }
+
+    /**
+     * Starts the clock at the first bar line and the timing thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        running = true;
+        timingThread = new Thread(this::runTimingLoop, "live-comper-timing");
+        timingThread.setDaemon(true);
+        timingThread.setPriority(Thread.MAX_PRIORITY);
+        timingThread.start();
+    }
+
+    /**
+     * Stops the timing thread and silences any chord still sounding
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(timingThread);
+        timingThread.join();
+        for (int i = 0; i < scheduled; i++) {
+            if (dueMessages[i].getCommand() == ShortMessage.NOTE_OFF) {
+                out.send(dueMessages[i], -1);
+            }
+        }
+        scheduled = 0;
+    }
+
+    /**
+     * Receives a solo note on the Transmitter's thread
+     */
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        long arrival = System.nanoTime();
+        if (!running || !(message instanceof ShortMessage)) {
+            return;
+        }
+        ShortMessage sm = (ShortMessage) message;
+        if (sm.getCommand() != ShortMessage.NOTE_ON || sm.getData2() == 0) {
+            return;
+        }
+        long tail = ringTail.get();
+        if (tail - ringHead.get() == RING_SIZE) {
+            droppedNotes++;
+            return;
+        }
+        int i = (int) (tail & (RING_SIZE - 1));
+        ringNanos[i] = arrival;
+        ringPitches[i] = sm.getData1();
+        ringTail.lazySet(tail + 1);
+        LockSupport.unpark(timingThread);
+    }
+
+    @Override
+    public void close() {
+        try {
+            stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runTimingLoop() {
+        nextBarLine = startNanos + measureNanos;
+        while (running) {
+            long now = System.nanoTime();
+            drainInput(now);
+            while (now >= nextBarLine) {
+                closeMeasure();
+            }
+            while (scheduled > 0 && dueNanos[0] <= now) {
+                try {
+                    out.send(dueMessages[0], -1);
+                } catch (RuntimeException e) {
+                    recordFailure(e);
+                }
+                outputLatency.record(System.nanoTime() - dueNanos[0]);
+                removeFirst();
+            }
+            long wake = scheduled > 0 ? Math.min(dueNanos[0], nextBarLine) : nextBarLine;
+            long wait = wake - System.nanoTime();
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_NANOS);
+            } else if (wait > 0) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void drainInput(long now) {
+        long head = ringHead.get();
+        long tail = ringTail.get();
+        while (head < tail) {
+            int i = (int) (head & (RING_SIZE - 1));
+            long arrival = ringNanos[i];
+            long slot = (arrival - startNanos) / slotNanos;
+            long measure = slot / RhythmGenerator.noteRes;
+            while (measure > currentMeasure) {
+                closeMeasure();
+            }
+            if (measure == currentMeasure) {
+                window.addOnset((int) (measure & 1), (int) (slot % RhythmGenerator.noteRes), ringPitches[i]);
+            }
+            inputLatency.record(now - arrival);
+            head++;
+        }
+        ringHead.lazySet(head);
+    }
+
+    /**
+     * Comps the bar that just ended into the bar that starts at the next bar line. A bar that fails to comp is
+     * recorded and left silent, so one bad bar does not stop the timing thread
+     */
+    private void closeMeasure() {
+        try {
+            compMeasure(nextBarLine);
+        } catch (RuntimeException e) {
+            recordFailure(e);
+        }
+        window.clearMeasure((int) ((currentMeasure + 1) & 1));
+        currentMeasure++;
+        nextBarLine += measureNanos;
+    }
+
+    private void compMeasure(long barLine) {
+        RhythmGenerator.generateRhythm(window, (int) (currentMeasure & 1), rhythm);
+        Chord chord = harmony.nextChord(window, (int) (currentMeasure & 1));
+        if (chord == null) {
+            chord = Chord.folded(rootNote, "");
+        }
+        for (int i = 0; i < rhythm[0].length; i++) {
+            if (rhythm[0][i] == 0) {
+                continue;
+            }
+            long on = barLine + i * eighthNanos;
+            long off = on + wholeNanos / rhythm[1][i];
+            for (int n = 0; n < chord.size(); n++) {
+                int pitch = chord.getNote(n);
+                if (pitch < 128) {
+                    scheduleNote(on, off, pitch);
+                }
+            }
+        }
+    }
+
+    private void recordFailure(RuntimeException e) {
+        lastFailure = e;
+        failures++;
+    }
+
+    /**
+     * Schedules a NOTE_ON and its NOTE_OFF, or neither if the schedule has no room for both, so a full
+     * schedule drops whole notes and never leaves one sounding
+     */
+    private void scheduleNote(long on, long off, int pitch) {
+        if (scheduled + 2 > SCHEDULE_SIZE) {
+            droppedBacking++;
+            return;
+        }
+        schedule(on, noteOns[pitch]);
+        schedule(off, noteOffs[pitch]);
+    }
+
+    private void schedule(long due, ShortMessage message) {
+        int i = scheduled++;
+        while (i > 0 && dueNanos[i - 1] > due) {
+            dueNanos[i] = dueNanos[i - 1];
+            dueMessages[i] = dueMessages[i - 1];
+            i--;
+        }
+        dueNanos[i] = due;
+        dueMessages[i] = message;
+    }
+
+    private void removeFirst() {
+        scheduled--;
+        System.arraycopy(dueNanos, 1, dueNanos, 0, scheduled);
+        System.arraycopy(dueMessages, 1, dueMessages, 0, scheduled);
+        dueMessages[scheduled] = null;
+    }
+
+    /**
+     * @return the time from a note arriving to it being placed in the measure grid
+     */
+    public LatencyHistogram getInputLatency() {
+        return inputLatency;
+    }
+
+    /**
+     * @return how late each backing event was sent relative to its place on the beat
+     */
+    public LatencyHistogram getOutputLatency() {
+        return outputLatency;
+    }
+
+    /**
+     * @return how many solo notes were dropped because the input ring was full
+     */
+    public long getDroppedNotes() {
+        return droppedNotes;
+    }
+
+    /**
+     * @return how many backing notes were dropped because the schedule was full
+     */
+    public long getDroppedBacking() {
+        return droppedBacking;
+    }
+
+    /**
+     * @return how many bars failed to comp or backing events failed to send on the timing thread
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the last exception the timing thread caught, or null if nothing has failed
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Comps live from the default MIDI devices, or with -loopback replays a solo file in
+     * real time into a counting Receiver and prints the latency percentiles
+     * @param args [-loopback [file] [-speed n]]
+     */
+    public static void main(String[] args) throws Exception {
+        boolean loopback = args.length > 0 && args[0].equals("-loopback");
+        String fileName = "Parker,_Charlie_-_Donna_Lee.midi";
+        double speed = 1.0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-speed") && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else {
+                fileName = args[i];
+            }
+        }
+
+        if (!loopback) {
+            Transmitter in = MidiSystem.getTransmitter();
+            Receiver out = MidiSystem.getReceiver();
+            LiveComper comper = new LiveComper(out, 60, StreamingAccompanist.DEFAULT_TEMPO);
+            in.setReceiver(comper);
+            comper.start();
+            System.out.println("Comping, press enter to stop");
+            System.in.read();
+            comper.stop();
+            if (comper.getLastFailure() != null) {
+                System.out.println(comper.getFailures() + " failures, the last: " + comper.getLastFailure());
+            }
+            System.out.println("input:  " + comper.getInputLatency());
+            System.out.println("output: " + comper.getOutputLatency());
+            return;
+        }
+
+        Sequence sequence = MidiSystem.getSequence(new File(fileName));
+        NoteEvents events = RhythmGenerator.readMIDI(sequence);
+        SequenceTransmitter in = new SequenceTransmitter(sequence, speed);
+        long[] sent = new long[1];
+        Receiver out = new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                sent[0]++;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        LiveComper comper = new LiveComper(out, RhythmGenerator.getKey(events),
+                (int) (SequenceTransmitter.firstTempo(sequence) / speed));
+        in.setReceiver(comper);
+        comper.start();
+        in.start();
+        in.join();
+        comper.stop();
+        System.out.println(sent[0] + " backing events, " + comper.getDroppedNotes() + " dropped notes, "
+                + comper.getDroppedBacking() + " dropped backing notes, " + comper.getFailures() + " failures");
+        System.out.println("input:  " + comper.getInputLatency());
+        System.out.println("output: " + comper.getOutputLatency());
+    }
+}
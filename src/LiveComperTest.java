@@ -0,0 +1,170 @@
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the live comper at a fast tempo, so a few bars take a fraction of a
+ * second: it comps the root chord until the solo starts, on its own channel and
+ * velocity, takes in every solo note while running and none before, carries on
+ * past an output that throws, and leaves no chord sounding once stopped.
+ */
+public class LiveComperTest {
+
+    // a quarter note of 20 ms, a bar of 80 ms
+    private static final int TEMPO = 20_000;
+    private static final long WAIT_MILLIS = 10_000;
+
+    @Test
+    public void compsTheRootChordUntilTheSoloStarts() throws Exception {
+        Recorder out = new Recorder();
+        LiveComper comper = new LiveComper(out, 62, TEMPO, 70, 4);
+        comper.start();
+        try {
+            out.awaitNoteOns(12);
+        } finally {
+            comper.stop();
+        }
+        Chord root = Chord.of(62);
+        for (int[] message : out.messages()) {
+            assertEquals(4, message[1]);
+            assertTrue("pitch " + message[2], contains(root, message[2]));
+            if (message[0] == ShortMessage.NOTE_ON) {
+                assertEquals(70, message[3]);
+            }
+        }
+        assertNothingSounds(out);
+        assertEquals(0, comper.getDroppedBacking());
+        assertTrue(comper.getOutputLatency().getCount() > 0);
+    }
+
+    @Test
+    public void takesInEverySoloNoteWhileRunning() throws Exception {
+        Recorder out = new Recorder();
+        LiveComper comper = new LiveComper(out, 60, TEMPO);
+        ShortMessage note = new ShortMessage(ShortMessage.NOTE_ON, 0, 64, 100);
+        // not started yet
+        comper.send(note, -1);
+        comper.start();
+        int notes = 40;
+        try {
+            for (int i = 0; i < notes; i++) {
+                comper.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 100), -1);
+                // a NOTE_OFF and a controller are not solo notes
+                comper.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 0), -1);
+                comper.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 64, 127), -1);
+                Thread.sleep(5);
+            }
+            out.awaitNoteOns(12);
+        } finally {
+            comper.stop();
+        }
+        comper.send(note, -1);
+        assertEquals(notes, comper.getInputLatency().getCount());
+        assertEquals(0, comper.getDroppedNotes());
+        assertNothingSounds(out);
+    }
+
+    @Test
+    public void keepsCompingAfterTheOutputFails() throws Exception {
+        Recorder out = new Recorder(5);
+        LiveComper comper = new LiveComper(out, 60, TEMPO);
+        comper.start();
+        try {
+            out.awaitNoteOns(12);
+        } finally {
+            comper.stop();
+        }
+        assertEquals(5, comper.getFailures());
+        assertEquals("output failure 1", comper.getLastFailure().getMessage());
+        assertNothingSounds(out);
+    }
+
+    @Test
+    public void stopAndCloseCanBeRepeated() throws Exception {
+        Recorder out = new Recorder();
+        LiveComper comper = new LiveComper(out, 60, TEMPO);
+        comper.stop();
+        comper.start();
+        comper.start();
+        comper.stop();
+        comper.stop();
+        comper.close();
+        int sent = out.messages().size();
+        Thread.sleep(4 * TEMPO / 1000 * 2);
+        assertEquals(sent, out.messages().size());
+    }
+
+    private static void assertNothingSounds(Recorder out) {
+        boolean[] sounding = new boolean[128];
+        for (int[] message : out.messages()) {
+            sounding[message[2]] = message[0] == ShortMessage.NOTE_ON;
+        }
+        for (int pitch = 0; pitch < 128; pitch++) {
+            assertFalse("pitch " + pitch + " still sounds", sounding[pitch]);
+        }
+    }
+
+    private static boolean contains(Chord chord, int pitch) {
+        for (int n = 0; n < chord.size(); n++) {
+            if (chord.getNote(n) == pitch) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the messages it is sent, as the comper reuses them, after refusing the first few
+     */
+    private static final class Recorder implements Receiver {
+        // command, channel, pitch and velocity of every message
+        private final List<int[]> messages = new ArrayList<>();
+        private int noteOns;
+        private int refusals;
+
+        Recorder() {
+            this(0);
+        }
+
+        Recorder(int refusals) {
+            this.refusals = refusals;
+        }
+
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp) {
+            if (refusals > 0) {
+                throw new IllegalStateException("output failure " + refusals--);
+            }
+            ShortMessage sm = (ShortMessage) message;
+            messages.add(new int[]{sm.getCommand(), sm.getChannel(), sm.getData1(), sm.getData2()});
+            if (sm.getCommand() == ShortMessage.NOTE_ON) {
+                noteOns++;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        synchronized void awaitNoteOns(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+            while (noteOns < count) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                assertTrue("only " + noteOns + " chord notes were played", left > 0);
+                wait(left);
+            }
+        }
+
+        synchronized List<int[]> messages() {
+            return new ArrayList<>(messages);
+        }
+    }
+}
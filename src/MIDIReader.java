@@ -1,17 +1,32 @@
-import java.io.File;
-import java.util.Queue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Track;
 
+/**
+ * Reads the note events of a Standard MIDI File straight from a memory-mapped
+ * buffer into NoteEvents, without building a Sequence or any object per event.
+ */
 public class MIDIReader {
     public static final int NOTE_ON = 0x90;
     public static final int NOTE_OFF = 0x80;
     public static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
 
+    private static final int MTHD = 0x4D546864;
+    private static final int MTRK = 0x4D54726B;
+
     private String fileName;
 
     public MIDIReader(String fileName) {
@@ -22,19 +37,251 @@ public class MIDIReader {
         this("Parker,_Charlie_-_Donna_Lee.midi");
     }
 
-    public static void readMIDI(Queue<MidiEvent> noteOn, Queue<MidiEvent> noteOff) throws Exception {
-        Sequence sequence = MidiSystem.getSequence(new File("Parker,_Charlie_-_Donna_Lee.midi"));
-        Track t = sequence.createTrack();
-        for (int i = 0; i < t.size(); i++) {
-            MidiEvent event = t.get(i);
-            if (event.getMessage() instanceof ShortMessage) {
-                ShortMessage sm = (ShortMessage) event.getMessage();
-                if (sm.getCommand() == 0x90 && sm.getData2() != 0) {
-                    noteOn.add(event);
-                } else {
-                    noteOff.add(event);
+    /**
+     * Reads the note events of the file of this reader
+     * @return the note events of every track, ordered by tick
+     * @throws IOException if the file cannot be read
+     * @throws InvalidMidiDataException if the file is not a valid PPQ Standard MIDI File
+     */
+    public NoteEvents readMIDI() throws IOException, InvalidMidiDataException {
+        return read(fileName);
+    }
+
+    /**
+     * Reads the note events of a MIDI file through a memory map
+     * @param fileName the name of the file
+     * @return the note events of every track, ordered by tick
+     * @throws IOException if the file cannot be read
+     * @throws InvalidMidiDataException if the file is not a valid PPQ Standard MIDI File
+     */
+    public static NoteEvents read(String fileName) throws IOException, InvalidMidiDataException {
+        return parse(map(fileName));
+    }
+
+    /**
+     * Maps a file into memory; the mapping stays valid after the file is closed
+     * @param fileName the name of the file
+     * @return the bytes of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static ByteBuffer map(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Finds the MTrk chunks of a Standard MIDI File, so tracks can be copied without decoding them
+     * @param buffer the bytes of the file, from its position to its limit; the position is not moved
+     * @return one view per track holding its whole chunk, header included, in file order
+     * @throws InvalidMidiDataException if the bytes are not a Standard MIDI File
+     */
+    public static List<ByteBuffer> trackChunks(ByteBuffer buffer) throws InvalidMidiDataException {
+        int pos = firstChunk(buffer);
+        int limit = buffer.limit();
+        List<ByteBuffer> chunks = new ArrayList<>();
+        while (limit - pos >= 8) {
+            int end = chunkEnd(buffer, pos);
+            if (buffer.getInt(pos) == MTRK) {
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.limit(end).position(pos);
+                chunks.add(chunk.slice());
+            }
+            pos = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Decodes the note events of a Standard MIDI File
+     * @param buffer the bytes of the file, from its position to its limit; the position is not moved
+     * @return the note events of every track, ordered by tick
+     * @throws InvalidMidiDataException if the bytes are not a valid PPQ Standard MIDI File
+     */
+    public static NoteEvents parse(ByteBuffer buffer) throws InvalidMidiDataException {
+        int pos = firstChunk(buffer);
+        int division = resolution(buffer);
+        int limit = buffer.limit();
+
+        // a note event takes at least three bytes, so this rarely needs to grow
+        NoteEvents events = new NoteEvents(division, Math.max(16, (limit - pos) / 4));
+        long tickLength = 0;
+        int track = 0;
+        TimingModel.Builder timing = new TimingModel.Builder(division);
+        while (limit - pos >= 8) {
+            int end = chunkEnd(buffer, pos);
+            if (buffer.getInt(pos) == MTRK) {
+                long trackLength = parseTrack(buffer, pos + 8, end, track, events, timing, null);
+                events.setTrackLength(track++, trackLength);
+                tickLength = Math.max(tickLength, trackLength);
+            }
+            pos = end;
+        }
+        events.setTickLength(Math.max(events.getTickLength(), tickLength));
+        events.setTiming(timing.build());
+        events.sortByTick();
+        return events;
+    }
+
+    /**
+     * Decodes every event of a Standard MIDI File into a Sequence, checking the file as parse does
+     * @param buffer the bytes of the file, from its position to its limit; the position is not moved
+     * @return the sequence, one track per MTrk chunk
+     * @throws InvalidMidiDataException if the bytes are not a valid PPQ Standard MIDI File
+     */
+    public static Sequence readSequence(ByteBuffer buffer) throws InvalidMidiDataException {
+        int pos = firstChunk(buffer);
+        Sequence sequence = new Sequence(Sequence.PPQ, resolution(buffer));
+        int limit = buffer.limit();
+        int track = 0;
+        while (limit - pos >= 8) {
+            int end = chunkEnd(buffer, pos);
+            if (buffer.getInt(pos) == MTRK) {
+                parseTrack(buffer, pos + 8, end, track++, null, null, sequence.createTrack());
+            }
+            pos = end;
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the resolution in pulses per quarter note of a file whose header firstChunk checked
+     */
+    private static int resolution(ByteBuffer buffer) throws InvalidMidiDataException {
+        int division = buffer.getShort(buffer.position() + 12) & 0xFFFF;
+        if ((division & 0x8000) != 0) {
+            throw new InvalidMidiDataException("Cannot handle divisionTypes that are not PPQ");
+        }
+        if (division == 0) {
+            throw new InvalidMidiDataException("Resolution must be positive");
+        }
+        return division;
+    }
+
+    /**
+     * Checks the MThd chunk at the position of a buffer
+     * @return the offset of the chunk after it
+     */
+    private static int firstChunk(ByteBuffer buffer) throws InvalidMidiDataException {
+        int pos = buffer.position();
+        if (buffer.limit() - pos < 14 || buffer.getInt(pos) != MTHD) {
+            throw new InvalidMidiDataException("Not a Standard MIDI File");
+        }
+        int headerLength = buffer.getInt(pos + 4);
+        // the format, track count and division take six bytes
+        if (headerLength < 6 || headerLength > buffer.limit() - pos - 8) {
+            throw new InvalidMidiDataException("Invalid header length " + (headerLength & 0xFFFFFFFFL));
+        }
+        return pos + 8 + headerLength;
+    }
+
+    /**
+     * Checks the length of the chunk at an offset against the end of the buffer
+     * @return the offset of the end of the chunk
+     */
+    private static int chunkEnd(ByteBuffer buffer, int pos) throws InvalidMidiDataException {
+        int length = buffer.getInt(pos + 4);
+        if (length < 0 || length > buffer.limit() - pos - 8) {
+            throw new InvalidMidiDataException("Truncated chunk at byte " + pos);
+        }
+        return pos + 8 + length;
+    }
+
+    /**
+     * Decodes the events of a single MTrk chunk, into note events and a timing model or into a track
+     * @param events where the notes are added, or null
+     * @param timing where the time signatures and tempos are added, or null
+     * @param out where every event is added, or null
+     * @return the tick of the last event of the track
+     */
+    private static long parseTrack(ByteBuffer buffer, int pos, int end, int track, NoteEvents events,
+                                   TimingModel.Builder timing, Track out) throws InvalidMidiDataException {
+        long tick = 0;
+        int running = 0;
+        while (pos < end) {
+            // variable-length delta time
+            int delta = 0;
+            int b;
+            do {
+                if (pos >= end) {
+                    throw new InvalidMidiDataException("Truncated delta time in track " + track);
                 }
+                b = buffer.get(pos++) & 0xFF;
+                delta = (delta << 7) | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            tick += delta;
+            if (pos >= end) {
+                throw new InvalidMidiDataException("Truncated event in track " + track);
+            }
+
+            int status = buffer.get(pos) & 0xFF;
+            if ((status & 0x80) != 0) {
+                pos++;
+            } else if (running != 0) {
+                status = running;
+            } else {
+                throw new InvalidMidiDataException("Data byte without a status in track " + track);
+            }
+
+            if (status == 0xFF || status == 0xF0 || status == 0xF7) {
+                int type = -1;
+                if (status == 0xFF) {
+                    if (pos >= end) {
+                        throw new InvalidMidiDataException("Truncated meta event in track " + track);
+                    }
+                    type = buffer.get(pos++) & 0xFF;
+                }
+                // meta and sysex events carry a variable-length size and cancel running status
+                int length = 0;
+                do {
+                    if (pos >= end) {
+                        throw new InvalidMidiDataException("Truncated event length in track " + track);
+                    }
+                    b = buffer.get(pos++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while ((b & 0x80) != 0);
+                if (length < 0 || length > end - pos) {
+                    throw new InvalidMidiDataException("Truncated " + (type < 0 ? "sysex" : "meta") + " event in track "
+                            + track);
+                }
+                if (out != null || (type == 0x51 || type == 0x58) && timing != null) {
+                    byte[] data = new byte[length];
+                    for (int k = 0; k < length; k++) {
+                        data[k] = buffer.get(pos + k);
+                    }
+                    if (out != null) {
+                        MidiMessage message = type >= 0 ? new MetaMessage(type, data, length)
+                                : new SysexMessage(status, data, length);
+                        out.add(new MidiEvent(message, tick));
+                    } else {
+                        timing.meta(tick, type, data);
+                    }
+                }
+                pos += length;
+                running = 0;
+                continue;
+            }
+            if (status >= 0xF0) {
+                // system common and real-time messages do not belong in a file; skip the status byte
+                continue;
+            }
+
+            running = status;
+            int command = status & 0xF0;
+            int dataBytes = command == 0xC0 || command == 0xD0 ? 1 : 2;
+            if (pos + dataBytes > end) {
+                throw new InvalidMidiDataException("Truncated channel event in track " + track);
+            }
+            if (out != null) {
+                int data2 = dataBytes == 2 ? buffer.get(pos + 1) & 0x7F : 0;
+                out.add(new MidiEvent(new ShortMessage(status, buffer.get(pos) & 0x7F, data2), tick));
+            } else if (command == NOTE_ON || command == NOTE_OFF) {
+                int pitch = buffer.get(pos) & 0x7F;
+                int velocity = buffer.get(pos + 1) & 0x7F;
+                events.add(tick, track, status & 0x0F, pitch, velocity, command == NOTE_ON && velocity != 0);
             }
+            pos += dataBytes;
         }
+        return tick;
     }
 }
@@ -0,0 +1,180 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the memory-mapped reader against MidiSystem.getSequence: every bundled
+ * file decodes to the same notes, track lengths, timing and events either way,
+ * and the track chunks it finds are the tracks MidiSystem reads. Lengths in the
+ * file that run past the end of their chunk or of the file are refused.
+ */
+public class MIDIReaderTest {
+
+    private static final String[] BUNDLED = {
+            "FreddyGreen.mid", "Charleston.mid", "up13.mid", "up24.mid", "ChordProgression1.mid",
+            "ChordProgression2.mid", "compSolo.mid", "compSolo1.mid", "compSolo2.mid",
+            "Parker,_Charlie_-_Donna_Lee.midi"
+    };
+
+    @Test
+    public void readsTheBundledFilesAsMidiSystemDoes() throws Exception {
+        for (String file : BUNDLED) {
+            NoteEvents expected = RhythmGenerator.readMIDI(MidiSystem.getSequence(new File(file)));
+            NoteEvents actual = MIDIReader.read(file);
+            assertEquals(file, expected.getResolution(), actual.getResolution());
+            assertEquals(file, expected.getTickLength(), actual.getTickLength());
+            assertEquals(file, expected.getTrackCount(), actual.getTrackCount());
+            for (int t = 0; t < expected.getTrackCount(); t++) {
+                assertEquals(file + " track " + t, expected.getTrackLength(t), actual.getTrackLength(t));
+            }
+            assertEquals(file, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                String context = file + " event " + i;
+                assertEquals(context, expected.getTick(i), actual.getTick(i));
+                assertEquals(context, expected.getTrack(i), actual.getTrack(i));
+                assertEquals(context, expected.getChannel(i), actual.getChannel(i));
+                assertEquals(context, expected.getPitch(i), actual.getPitch(i));
+                assertEquals(context, expected.getVelocity(i), actual.getVelocity(i));
+                assertEquals(context, expected.isNoteOn(i), actual.isNoteOn(i));
+            }
+            assertEquals(file, hash(expected.getTiming()), hash(actual.getTiming()));
+        }
+    }
+
+    @Test
+    public void decodesTheSequencesMidiSystemReads() throws Exception {
+        for (String file : BUNDLED) {
+            Sequence expected = MidiSystem.getSequence(new File(file));
+            Sequence actual = MIDIReader.readSequence(MIDIReader.map(file));
+            assertEquals(file, expected.getResolution(), actual.getResolution());
+            assertEquals(file, expected.getTickLength(), actual.getTickLength());
+            assertEquals(file, expected.getTracks().length, actual.getTracks().length);
+            for (int t = 0; t < expected.getTracks().length; t++) {
+                Track e = expected.getTracks()[t];
+                Track a = actual.getTracks()[t];
+                assertEquals(file + " track " + t, e.size(), a.size());
+                for (int i = 0; i < e.size(); i++) {
+                    String context = file + " track " + t + " event " + i;
+                    assertEquals(context, e.get(i).getTick(), a.get(i).getTick());
+                    assertArrayEquals(context, e.get(i).getMessage().getMessage(),
+                            a.get(i).getMessage().getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void refusesLengthsPastTheEnd() {
+        byte[] valid = smf(6, 0x00, 0xFF, 0x03, 0x01, 'a');
+        byte[][] invalid = {
+                // a header too short for its division, longer than the file, or negative
+                smf(5, 0x00, 0xFF, 0x03, 0x01, 'a'),
+                smf(0x7FFFFFF0, 0x00, 0xFF, 0x03, 0x01, 'a'),
+                smf(-1, 0x00, 0xFF, 0x03, 0x01, 'a'),
+                // a track chunk longer than the file, or negative
+                withTrackLength(valid, 100),
+                withTrackLength(valid, -4),
+                // a meta event or sysex longer than the rest of its track
+                smf(6, 0x00, 0xFF, 0x03, 0x20, 'a'),
+                smf(6, 0x00, 0xF0, 0x7F, 0xF7)
+        };
+        try {
+            MIDIReader.parse(ByteBuffer.wrap(valid));
+            MIDIReader.readSequence(ByteBuffer.wrap(valid));
+        } catch (InvalidMidiDataException e) {
+            throw new AssertionError(e);
+        }
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                MIDIReader.parse(ByteBuffer.wrap(invalid[i]));
+                fail("parse accepted file " + i);
+            } catch (InvalidMidiDataException e) {
+                // expected
+            }
+            try {
+                MIDIReader.readSequence(ByteBuffer.wrap(invalid[i]));
+                fail("readSequence accepted file " + i);
+            } catch (InvalidMidiDataException e) {
+                // expected
+            }
+        }
+        // the chunks are found without decoding the tracks, so only the lengths of the chunks are checked
+        for (int i = 0; i < 5; i++) {
+            try {
+                MIDIReader.trackChunks(ByteBuffer.wrap(invalid[i]));
+                fail("trackChunks accepted file " + i);
+            } catch (InvalidMidiDataException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void findsTheTracksMidiSystemReads() throws Exception {
+        for (String file : BUNDLED) {
+            Sequence sequence = MidiSystem.getSequence(new File(file));
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file)));
+            List<ByteBuffer> chunks = MIDIReader.trackChunks(bytes);
+            assertEquals(file, sequence.getTracks().length, chunks.size());
+            assertEquals(file, 0, bytes.position());
+            for (ByteBuffer chunk : chunks) {
+                assertEquals(file, 0x4D54726B, chunk.getInt(0));
+                assertEquals(file, chunk.remaining() - 8, chunk.getInt(4));
+            }
+        }
+    }
+
+    @Test
+    public void parsesFromThePositionOfTheBuffer() throws Exception {
+        byte[] file = Files.readAllBytes(Paths.get("compSolo2.mid"));
+        ByteBuffer padded = ByteBuffer.allocate(file.length + 7);
+        padded.position(7);
+        padded.put(file).position(7);
+        NoteEvents events = MIDIReader.parse(padded);
+        assertEquals(MIDIReader.read("compSolo2.mid").size(), events.size());
+        assertEquals(7, padded.position());
+    }
+
+    /**
+     * A Standard MIDI File of one track at 96 pulses per quarter: a middle C, whatever events are given after
+     * it, each with its delta time, and the end of the track
+     * @param headerLength the length the MThd chunk claims
+     */
+    private static byte[] smf(int headerLength, int... events) {
+        int[] note = {0x00, 0x90, 0x3C, 0x40, 0x60, 0x80, 0x3C, 0x00};
+        int[] end = {0x00, 0xFF, 0x2F, 0x00};
+        int trackLength = note.length + events.length + end.length;
+        ByteBuffer file = ByteBuffer.allocate(14 + 8 + trackLength);
+        file.putInt(0x4D546864).putInt(headerLength).putShort((short) 0).putShort((short) 1).putShort((short) 96);
+        file.putInt(0x4D54726B).putInt(trackLength);
+        for (int[] bytes : new int[][]{note, events, end}) {
+            for (int b : bytes) {
+                file.put((byte) b);
+            }
+        }
+        return file.array();
+    }
+
+    private static byte[] withTrackLength(byte[] smf, int length) {
+        byte[] copy = Arrays.copyOf(smf, smf.length);
+        ByteBuffer.wrap(copy).putInt(18, length);
+        return copy;
+    }
+
+    private static String hash(TimingModel timing) {
+        ContentHash hash = new ContentHash();
+        timing.hashInto(hash);
+        return hash.toHex();
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Writes a Standard MIDI File track by track, encoding delta times and running
+ * status straight into a reusable ByteBuffer that is flushed to a channel once
+ * per track. Backing rhythms can be written from primitive event arrays without
+ * building a Sequence or any object per event.
+ */
+public class MIDIWriter implements Closeable {
+
+    private static final int DEFAULT_BUFFER = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(DEFAULT_BUFFER));
+
+    private final WritableByteChannel channel;
+    private final int format;
+    private final int numTracks;
+    private ByteBuffer buffer;
+    private boolean sharedBuffer;
+    private int tracksWritten;
+    private boolean inTrack;
+    private long lastTick;
+    private int runningStatus;
+
+    /**
+     * Writes the file header
+     * @param channel where the file is written
+     * @param format 0 for a single multi-channel track, 1 for several simultaneous tracks
+     * @param numTracks the number of tracks that will be written
+     * @param ppq the resolution in pulses per quarter note
+     * @param buffer the buffer used to encode each track; it grows if a track does not fit
+     * @throws IOException if the header cannot be written
+     */
+    public MIDIWriter(WritableByteChannel channel, int format, int numTracks, int ppq, ByteBuffer buffer)
+            throws IOException {
+        if (format != 0 && format != 1) {
+            throw new IllegalArgumentException("Only formats 0 and 1 are supported");
+        }
+        if (format == 0 && numTracks != 1) {
+            throw new IllegalArgumentException("Format 0 files have exactly one track");
+        }
+        if (ppq <= 0 || ppq > 0x7FFF) {
+            throw new IllegalArgumentException("Resolution must be between 1 and 32767");
+        }
+        this.channel = channel;
+        this.format = format;
+        this.numTracks = numTracks;
+        this.buffer = buffer;
+        buffer.clear();
+        buffer.putInt(0x4D546864).putInt(6).putShort((short) format).putShort((short) numTracks)
+                .putShort((short) ppq);
+        flush();
+    }
+
+    public MIDIWriter(WritableByteChannel channel, int format, int numTracks, int ppq) throws IOException {
+        this(channel, format, numTracks, ppq, BUFFERS.get());
+        sharedBuffer = true;
+    }
+
+    /**
+     * Opens a file for writing, replacing it if it exists
+     * @param fileName the name of the file
+     * @param format 0 or 1
+     * @param numTracks the number of tracks that will be written
+     * @param ppq the resolution in pulses per quarter note
+     * @return the writer, which closes the file when closed
+     * @throws IOException if the file cannot be opened
+     */
+    public static MIDIWriter open(String fileName, int format, int numTracks, int ppq) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new MIDIWriter(channel, format, numTracks, ppq);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a new track
+     */
+    public void beginTrack() {
+        if (inTrack) {
+            throw new IllegalStateException("The previous track has not ended");
+        }
+        if (tracksWritten == numTracks) {
+            throw new IllegalStateException("All " + numTracks + " tracks have been written");
+        }
+        buffer.clear();
+        buffer.putInt(0x4D54726B).putInt(0);
+        inTrack = true;
+        lastTick = 0;
+        runningStatus = -1;
+    }
+
+    /**
+     * Writes a channel event
+     * @param tick the tick of the event, not before the previous event of the track
+     * @param status the status byte, command and channel
+     * @param data1 the first data byte
+     * @param data2 the second data byte, ignored for program change and channel pressure
+     */
+    public void shortMessage(long tick, int status, int data1, int data2) {
+        delta(tick);
+        ensure(3);
+        if (status != runningStatus) {
+            buffer.put((byte) status);
+            runningStatus = status;
+        }
+        buffer.put((byte) (data1 & 0x7F));
+        int command = status & 0xF0;
+        if (command != ShortMessage.PROGRAM_CHANGE && command != ShortMessage.CHANNEL_PRESSURE) {
+            buffer.put((byte) (data2 & 0x7F));
+        }
+    }
+
+    /**
+     * Writes a meta event
+     * @param tick the tick of the event
+     * @param type the type of the meta event
+     * @param data the data of the meta event
+     */
+    public void meta(long tick, int type, byte[] data) {
+        delta(tick);
+        ensure(6 + data.length);
+        buffer.put((byte) 0xFF).put((byte) type);
+        varLength(data.length);
+        buffer.put(data);
+        runningStatus = -1;
+    }
+
+    /**
+     * Writes a system exclusive event
+     * @param tick the tick of the event
+     * @param message the whole message, starting with its 0xF0 or 0xF7 status byte
+     */
+    public void sysex(long tick, byte[] message) {
+        delta(tick);
+        ensure(6 + message.length);
+        buffer.put(message[0]);
+        varLength(message.length - 1);
+        buffer.put(message, 1, message.length - 1);
+        runningStatus = -1;
+    }
+
+    /**
+     * Writes the end of track and flushes the track to the channel
+     * @param tick the tick of the end of track; it is moved to the last event if that is later
+     * @throws IOException if the track cannot be written
+     */
+    public void endTrack(long tick) throws IOException {
+        meta(Math.max(tick, lastTick), 0x2F, new byte[0]);
+        buffer.putInt(4, buffer.position() - 8);
+        flush();
+        inTrack = false;
+        tracksWritten++;
+    }
+
+    /**
+     * Writes the events of a builder as a whole track
+     * @param events the events, sorted on the way
+     * @param endTick the tick of the end of track
+     * @throws IOException if the track cannot be written
+     */
+    public void writeTrack(EventBuilder events, long endTick) throws IOException {
+        beginTrack();
+        writeEvents(events);
+        endTrack(endTick);
+    }
+
+    /**
+     * Writes the events of a builder into the current track
+     * @param events the events, sorted on the way
+     */
+    public void writeEvents(EventBuilder events) {
+        events.sort();
+        for (int i = 0; i < events.size(); i++) {
+            shortMessage(events.getTick(i), events.getStatus(i), events.getData1(i), events.getData2(i));
+        }
+    }
+
+    /**
+     * Copies a whole track chunk from another file as it is
+     * @param chunk the MTrk chunk, header included, from its position to its limit; the position is not moved
+     * @throws IOException if the track cannot be written
+     */
+    public void copyTrack(ByteBuffer chunk) throws IOException {
+        if (inTrack) {
+            throw new IllegalStateException("The previous track has not ended");
+        }
+        if (tracksWritten == numTracks) {
+            throw new IllegalStateException("All " + numTracks + " tracks have been written");
+        }
+        if (chunk.remaining() < 8 || chunk.getInt(chunk.position()) != 0x4D54726B) {
+            throw new IllegalArgumentException("Not an MTrk chunk");
+        }
+        ByteBuffer source = chunk.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+        tracksWritten++;
+    }
+
+    /**
+     * Writes a javax track as a whole track
+     * @param t the track
+     * @throws IOException if the track cannot be written
+     */
+    public void writeTrack(Track t) throws IOException {
+        beginTrack();
+        long end = 0;
+        for (int i = 0; i < t.size(); i++) {
+            MidiEvent event = t.get(i);
+            MidiMessage message = event.getMessage();
+            if (message instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage) message;
+                shortMessage(event.getTick(), sm.getStatus(), sm.getData1(), sm.getData2());
+            } else if (message instanceof MetaMessage) {
+                MetaMessage mm = (MetaMessage) message;
+                if (mm.getType() == 0x2F) {
+                    end = event.getTick();
+                } else {
+                    meta(event.getTick(), mm.getType(), mm.getData());
+                }
+            } else if (message instanceof SysexMessage) {
+                sysex(event.getTick(), message.getMessage());
+            }
+        }
+        endTrack(end);
+    }
+
+    /**
+     * Writes every track of a sequence to a file
+     * @param s the sequence
+     * @param format 0 or 1
+     * @param fileName the name of the file
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Sequence s, int format, String fileName) throws IOException {
+        if (s.getDivisionType() != Sequence.PPQ) {
+            throw new IllegalArgumentException("Cannot handle divisionTypes that are not PPQ");
+        }
+        Track[] tracks = s.getTracks();
+        try (MIDIWriter writer = open(fileName, format, tracks.length, s.getResolution())) {
+            for (Track t : tracks) {
+                writer.writeTrack(t);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (inTrack || tracksWritten != numTracks) {
+                throw new IllegalStateException("Wrote " + tracksWritten + " of " + numTracks + " tracks");
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    private void delta(long tick) {
+        if (!inTrack) {
+            throw new IllegalStateException("No track has been started");
+        }
+        if (tick < lastTick) {
+            throw new IllegalArgumentException("Events must be written in tick order");
+        }
+        long delta = tick - lastTick;
+        if (delta > 0x0FFFFFFF) {
+            throw new IllegalArgumentException("Delta time too large: " + delta);
+        }
+        ensure(4);
+        varLength((int) delta);
+        lastTick = tick;
+    }
+
+    private void varLength(int value) {
+        if (value >= 1 << 21) {
+            buffer.put((byte) (0x80 | (value >>> 21)));
+        }
+        if (value >= 1 << 14) {
+            buffer.put((byte) (0x80 | ((value >>> 14) & 0x7F)));
+        }
+        if (value >= 1 << 7) {
+            buffer.put((byte) (0x80 | ((value >>> 7) & 0x7F)));
+        }
+        buffer.put((byte) (value & 0x7F));
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+            if (sharedBuffer) {
+                BUFFERS.set(bigger);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
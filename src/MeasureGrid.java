@@ -0,0 +1,205 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The onsets of a solo, measure by measure: one bit per slot, plus a histogram of
+ * the pitch classes played in each measure. Every note counts, so chords and fast
+ * runs that share a slot are kept in the histogram, and rests, onset density and
+ * gaps come from popcounts and trailing-zero counts over a few words per measure.
+ * Measures can differ in length, in whole eighth notes, to follow the time
+ * signatures of a TimingModel; every measure has room for the longest one.
+ */
+public class MeasureGrid {
+
+    private final int measures;
+    private final int slotsPerMeasure;
+    private final int slotsPerEighth;
+    private final int wordsPerMeasure;
+    // the length of each measure in eighths, or null when every measure fills slotsPerMeasure
+    private final int[] eighths;
+    private final long[] onsets;
+    private final int[] histograms;
+
+    /**
+     * @param measures the number of measures
+     * @param slotsPerMeasure the number of onset slots in a measure, a multiple of 8
+     */
+    public MeasureGrid(int measures, int slotsPerMeasure) {
+        this(measures, slotsPerMeasure, null);
+    }
+
+    /**
+     * A grid whose measures follow the time signatures of a sequence
+     * @param timing the measures of the sequence
+     * @param measures the number of measures, from the first
+     * @param slotsPerEighth the number of onset slots in an eighth note
+     */
+    public MeasureGrid(TimingModel timing, int measures, int slotsPerEighth) {
+        this(measures, slotsPerEighth * 8, eighths(timing, measures));
+    }
+
+    private MeasureGrid(int measures, int slotsPerMeasure, int[] eighths) {
+        if (slotsPerMeasure <= 0 || slotsPerMeasure % 8 != 0) {
+            throw new IllegalArgumentException("Slots per measure must be a positive multiple of 8");
+        }
+        this.measures = measures;
+        this.slotsPerEighth = slotsPerMeasure / 8;
+        this.eighths = eighths;
+        int longest = 8;
+        if (eighths != null) {
+            for (int e : eighths) {
+                longest = Math.max(longest, e);
+            }
+        }
+        this.slotsPerMeasure = slotsPerEighth * longest;
+        wordsPerMeasure = (this.slotsPerMeasure + 63) / 64;
+        onsets = new long[measures * wordsPerMeasure];
+        histograms = new int[measures * 12];
+    }
+
+    private static int[] eighths(TimingModel timing, int measures) {
+        if (timing.isCommonTime()) {
+            return null;
+        }
+        int[] eighths = new int[measures];
+        for (int m = 0; m < measures; m++) {
+            eighths[m] = timing.eighthsIn(m);
+        }
+        return eighths;
+    }
+
+    /**
+     * Marks a note starting on a slot
+     * @param measure the measure of the note
+     * @param slot the slot of the note within the measure
+     * @param pitch the pitch of the note
+     */
+    public void addOnset(int measure, int slot, int pitch) {
+        onsets[measure * wordsPerMeasure + (slot >>> 6)] |= 1L << slot;
+        histograms[measure * 12 + pitch % 12]++;
+    }
+
+    /**
+     * Forgets every note of a measure, so the grid can be reused as a ring of measures
+     * @param measure the measure to be cleared
+     */
+    public void clearMeasure(int measure) {
+        Arrays.fill(onsets, measure * wordsPerMeasure, (measure + 1) * wordsPerMeasure, 0L);
+        Arrays.fill(histograms, measure * 12, (measure + 1) * 12, 0);
+    }
+
+    public boolean hasOnset(int measure, int slot) {
+        return (onsets[measure * wordsPerMeasure + (slot >>> 6)] & (1L << slot)) != 0;
+    }
+
+    /**
+     * @param measure the measure
+     * @return the number of slots of the measure with at least one note starting on them
+     */
+    public int onsetCount(int measure) {
+        int count = 0;
+        for (int w = measure * wordsPerMeasure, end = w + wordsPerMeasure; w < end; w++) {
+            count += Long.bitCount(onsets[w]);
+        }
+        return count;
+    }
+
+    /**
+     * @param measure the measure
+     * @param from the first slot to look at
+     * @return the first slot at or after from with a note starting on it, or -1 if there is none
+     */
+    public int nextOnset(int measure, int from) {
+        if (from >= slotsPerMeasure) {
+            return -1;
+        }
+        int base = measure * wordsPerMeasure;
+        int w = from >>> 6;
+        long bits = onsets[base + w] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                return slot < slotsPerMeasure ? slot : -1;
+            }
+            if (++w == wordsPerMeasure) {
+                return -1;
+            }
+            bits = onsets[base + w];
+        }
+    }
+
+    /**
+     * @param measure the measure
+     * @param word the index of the word within the measure
+     * @return 64 slots of onset bits, the lowest bit being the first slot
+     */
+    public long getWord(int measure, int word) {
+        return onsets[measure * wordsPerMeasure + word];
+    }
+
+    /**
+     * @param measure the measure
+     * @param pitchClass the pitch class, 0 for C to 11 for B
+     * @return how many notes of that pitch class start in the measure
+     */
+    public int getPitchClassCount(int measure, int pitchClass) {
+        return histograms[measure * 12 + pitchClass];
+    }
+
+    public int size() {
+        return measures;
+    }
+
+    /**
+     * @return the number of slots every measure has room for
+     */
+    public int getSlotsPerMeasure() {
+        return slotsPerMeasure;
+    }
+
+    public int getSlotsPerEighth() {
+        return slotsPerEighth;
+    }
+
+    /**
+     * @param measure the measure
+     * @return the length of the measure in eighth notes
+     */
+    public int getEighths(int measure) {
+        return eighths == null ? slotsPerMeasure / slotsPerEighth : eighths[measure];
+    }
+
+    public int getWordsPerMeasure() {
+        return wordsPerMeasure;
+    }
+
+    /**
+     * @return the number of bytes encode writes, a multiple of 8 since every measure has 12 counts
+     */
+    public long encodedSize() {
+        return onsets.length * 8L + histograms.length * 4L;
+    }
+
+    /**
+     * Writes the onsets and histograms of every measure as they are held, in the order of the buffer
+     * @param buffer the buffer written to from its position
+     */
+    public void encode(ByteBuffer buffer) {
+        buffer.asLongBuffer().put(onsets);
+        buffer.position(buffer.position() + onsets.length * 8);
+        buffer.asIntBuffer().put(histograms);
+        buffer.position(buffer.position() + histograms.length * 4);
+    }
+
+    /**
+     * Replaces the onsets and histograms of every measure with ones written by encode from a grid of the
+     * same shape. Both are copied in bulk, so reading a mapped file costs no more than a copy.
+     * @param buffer the buffer read from its position, which is moved past the grid
+     */
+    public void decode(ByteBuffer buffer) {
+        buffer.asLongBuffer().get(onsets);
+        buffer.position(buffer.position() + onsets.length * 8);
+        buffer.asIntBuffer().get(histograms);
+        buffer.position(buffer.position() + histograms.length * 4);
+    }
+}
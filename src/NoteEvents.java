@@ -0,0 +1,242 @@
+import java.util.Arrays;
+
+/**
+ * The note events of a MIDI sequence, decoded into primitive parallel arrays and ordered by tick
+ */
+public class NoteEvents {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private long[] ticks;
+    private int[] pitches;
+    private int[] velocities;
+    private int[] channels;
+    private int[] tracks;
+    private boolean[] noteOn;
+    private int size;
+    private int resolution;
+    private long tickLength;
+    private TimingModel timing;
+    // the tick of the end of each track, for tracks that were read whole
+    private long[] trackLengths = new long[0];
+
+    public NoteEvents(int resolution) {
+        this(resolution, DEFAULT_CAPACITY);
+    }
+
+    public NoteEvents(int resolution, int capacity) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive");
+        }
+        this.resolution = resolution;
+        capacity = Math.max(capacity, 1);
+        ticks = new long[capacity];
+        pitches = new int[capacity];
+        velocities = new int[capacity];
+        channels = new int[capacity];
+        tracks = new int[capacity];
+        noteOn = new boolean[capacity];
+    }
+
+    /**
+     * Appends a note event
+     * @param tick the tick of the event
+     * @param track the index of the track the event came from
+     * @param channel the MIDI channel of the event
+     * @param pitch the pitch of the note
+     * @param velocity the velocity of the note
+     * @param on true for a NOTE_ON, false for a NOTE_OFF (or a NOTE_ON with velocity 0)
+     */
+    public void add(long tick, int track, int channel, int pitch, int velocity, boolean on) {
+        if (size == ticks.length) {
+            grow();
+        }
+        ticks[size] = tick;
+        tracks[size] = track;
+        channels[size] = channel;
+        pitches[size] = pitch;
+        velocities[size] = velocity;
+        noteOn[size] = on;
+        size++;
+        if (tick > tickLength) {
+            tickLength = tick;
+        }
+    }
+
+    /**
+     * Orders the events by tick, keeping events on the same tick in insertion order.
+     * Events appended track by track are already sorted within each track, so a
+     * single-track sequence costs one linear check.
+     */
+    public void sortByTick() {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            sorted = ticks[i - 1] <= ticks[i];
+        }
+        if (sorted) {
+            return;
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+
+        long[] sortedTicks = new long[ticks.length];
+        int[] sortedPitches = new int[ticks.length];
+        int[] sortedVelocities = new int[ticks.length];
+        int[] sortedChannels = new int[ticks.length];
+        int[] sortedTracks = new int[ticks.length];
+        boolean[] sortedNoteOn = new boolean[ticks.length];
+        for (int i = 0; i < size; i++) {
+            int j = order[i];
+            sortedTicks[i] = ticks[j];
+            sortedPitches[i] = pitches[j];
+            sortedVelocities[i] = velocities[j];
+            sortedChannels[i] = channels[j];
+            sortedTracks[i] = tracks[j];
+            sortedNoteOn[i] = noteOn[j];
+        }
+        ticks = sortedTicks;
+        pitches = sortedPitches;
+        velocities = sortedVelocities;
+        channels = sortedChannels;
+        tracks = sortedTracks;
+        noteOn = sortedNoteOn;
+    }
+
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, buffer, from, mid);
+        mergeSort(order, buffer, mid, to);
+        if (ticks[order[mid - 1]] <= ticks[order[mid]]) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && ticks[buffer[left]] <= ticks[buffer[right]])) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = ticks.length * 2;
+        ticks = Arrays.copyOf(ticks, capacity);
+        pitches = Arrays.copyOf(pitches, capacity);
+        velocities = Arrays.copyOf(velocities, capacity);
+        channels = Arrays.copyOf(channels, capacity);
+        tracks = Arrays.copyOf(tracks, capacity);
+        noteOn = Arrays.copyOf(noteOn, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTick(int i) {
+        return ticks[i];
+    }
+
+    public int getPitch(int i) {
+        return pitches[i];
+    }
+
+    public int getVelocity(int i) {
+        return velocities[i];
+    }
+
+    public int getChannel(int i) {
+        return channels[i];
+    }
+
+    public int getTrack(int i) {
+        return tracks[i];
+    }
+
+    public boolean isNoteOn(int i) {
+        return noteOn[i];
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    public void setTickLength(long tickLength) {
+        this.tickLength = tickLength;
+    }
+
+    /**
+     * Records the end of a track that was read whole, even if it holds no notes
+     * @param track the index of the track
+     * @param length the tick of the end of the track
+     */
+    public void setTrackLength(int track, long length) {
+        if (track >= trackLengths.length) {
+            trackLengths = Arrays.copyOf(trackLengths, track + 1);
+        }
+        trackLengths[track] = length;
+    }
+
+    /**
+     * @return the number of tracks recorded with setTrackLength
+     */
+    public int getTrackCount() {
+        return trackLengths.length;
+    }
+
+    public long getTrackLength(int track) {
+        return trackLengths[track];
+    }
+
+    /**
+     * Copies out the events of one track, keeping their order
+     * @param track the index of the track
+     * @return the events of the track, with the timing of these events and the length of the track
+     */
+    public NoteEvents forTrack(int track) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (tracks[i] == track) {
+                count++;
+            }
+        }
+        NoteEvents events = new NoteEvents(resolution, count);
+        for (int i = 0; i < size; i++) {
+            if (tracks[i] == track) {
+                events.add(ticks[i], track, channels[i], pitches[i], velocities[i], noteOn[i]);
+            }
+        }
+        if (track < trackLengths.length) {
+            events.setTickLength(Math.max(events.getTickLength(), trackLengths[track]));
+            events.setTrackLength(track, trackLengths[track]);
+        }
+        events.timing = timing;
+        return events;
+    }
+
+    /**
+     * @return the measures and tempo of the sequence, or 4/4 at 120 bpm if none were read
+     */
+    public TimingModel getTiming() {
+        return timing != null ? timing : new TimingModel(resolution);
+    }
+
+    public void setTiming(TimingModel timing) {
+        if (timing != null && timing.getResolution() != resolution) {
+            throw new IllegalArgumentException("Timing must have the resolution of the events");
+        }
+        this.timing = timing;
+    }
+}
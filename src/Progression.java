@@ -0,0 +1,66 @@
+/**
+ * A backing rhythm laid out on a grid of eighth-note slots.
+ * Each slot holds the chord struck on it, or null, and the length of that hit
+ * as a note value (1 = whole, 4 = quarter, 8 = eighth), and optionally its velocity.
+ */
+public class Progression {
+
+    private final Chord[] chords;
+    private final int[] lengths;
+    private final int[] velocities;
+
+    public Progression(int slots) {
+        chords = new Chord[slots];
+        lengths = new int[slots];
+        velocities = new int[slots];
+    }
+
+    /**
+     * Puts a hit on a slot
+     * @param slot the slot to be played on
+     * @param chord the chord to be played, or null to clear the slot
+     * @param length the length of the hit, ignored when chord is null
+     */
+    public void set(int slot, Chord chord, int length) {
+        set(slot, chord, length, 0);
+    }
+
+    /**
+     * Puts a hit with its own velocity on a slot
+     * @param slot the slot to be played on
+     * @param chord the chord to be played, or null to clear the slot
+     * @param length the length of the hit, ignored when chord is null
+     * @param velocity the velocity of the hit, or 0 to play it at the velocity of the backing
+     */
+    public void set(int slot, Chord chord, int length, int velocity) {
+        if (chord != null && length <= 0) {
+            throw new IllegalArgumentException("A chord must have a positive length");
+        }
+        if (velocity < 0 || velocity > 127) {
+            throw new IllegalArgumentException("Velocity must be between 0 and 127");
+        }
+        chords[slot] = chord;
+        lengths[slot] = chord == null ? 0 : length;
+        velocities[slot] = chord == null ? 0 : velocity;
+    }
+
+    public Chord getChord(int slot) {
+        return chords[slot];
+    }
+
+    public int getLength(int slot) {
+        return lengths[slot];
+    }
+
+    /**
+     * @param slot the slot
+     * @return the velocity of the hit, or 0 if it is played at the velocity of the backing
+     */
+    public int getVelocity(int slot) {
+        return velocities[slot];
+    }
+
+    public int size() {
+        return chords.length;
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of backing tracks, so unchanged solos are not accompanied again.
+ * An entry is keyed by a hash of the decoded notes, timing and track lengths of a
+ * solo together with everything in GeneratorSettings that changes the backing,
+ * and holds the backing events of every backing track. Entries are written to a
+ * temporary file and moved into place, so concurrent workers, in this process or
+ * another, only ever see whole entries. The cache is bounded in bytes and evicts
+ * the least recently used entries; recency survives restarts through the
+ * modification times of the entry files.
+ */
+public class ResultCache {
+
+    // bump whenever the generator produces different backing for the same input
+    public static final int FORMAT = 2;
+
+    private static final int MAGIC = 0x43534243;
+    private static final String SUFFIX = ".backing";
+    private static final int EVENT_BYTES = 11;
+
+    private final Path directory;
+    private final long maxBytes;
+    // entry key to size in bytes, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Opens a cache directory, creating it if needed, and indexes the entries already in it
+     * @param directory the directory holding the entries
+     * @param maxBytes the most bytes the entries may take up
+     * @throws IOException if the directory cannot be created or listed
+     */
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The cache size must be positive");
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        List<long[]> order = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                order.add(new long[]{Files.getLastModifiedTime(files.get(i)).toMillis(), Files.size(files.get(i)), i});
+            } catch (NoSuchFileException e) {
+                // removed by another process since it was listed
+            }
+        }
+        order.sort((x, y) -> Long.compare(x[0], y[0]));
+        synchronized (this) {
+            for (long[] entry : order) {
+                String name = files.get((int) entry[2]).getFileName().toString();
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), entry[1]);
+                bytes += entry[1];
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Computes the key of a solo under some settings
+     * @param events the note events of the solo, with their timing and track lengths
+     * @param settings the settings the backing is generated with
+     * @return the key, 32 hexadecimal digits
+     */
+    public static String key(NoteEvents events, GeneratorSettings settings) {
+        ContentHash hash = new ContentHash();
+        hash.add(FORMAT).add(RhythmGenerator.noteRes).add(RhythmGenerator.CHORD_REGISTER);
+        addSettings(hash, settings);
+        hash.add(events.getResolution()).add(events.getTickLength());
+        events.getTiming().hashInto(hash);
+        hash.add(events.getTrackCount());
+        for (int t = 0; t < events.getTrackCount(); t++) {
+            hash.add(events.getTrackLength(t));
+        }
+        hash.add(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            hash.add(events.getTick(i));
+            hash.add(((long) events.getTrack(i) << 32) | (events.getChannel(i) << 16) | (events.getPitch(i) << 8)
+                    | (events.getVelocity(i) << 1) | (events.isNoteOn(i) ? 1 : 0));
+        }
+        return hash.toHex();
+    }
+
+    /**
+     * Computes the key of an analyzed solo under some settings. The backing of a solo depends only on its
+     * analysis and the settings, so the key covers no more than those; it never equals the key of notes.
+     * @param analysis the analysis of the solo
+     * @param settings the settings the backing is generated with
+     * @return the key, 32 hexadecimal digits
+     */
+    public static String key(AnalysisFile analysis, GeneratorSettings settings) {
+        ContentHash hash = new ContentHash();
+        hash.add(FORMAT).add(-1);
+        addSettings(hash, settings);
+        analysis.hashInto(hash);
+        return hash.toHex();
+    }
+
+    private static void addSettings(ContentHash hash, GeneratorSettings settings) {
+        hash.add(settings.getLayout().ordinal()).add(settings.getVelocity()).add(settings.getChannel())
+                .add(settings.isVoiceLeading() ? 1 : 0).add(settings.isWalkingBass() ? settings.getBassChannel() : -1);
+        if (settings.getStyles() == null) {
+            hash.add(-1);
+        } else {
+            settings.getStyles().hashInto(hash);
+        }
+        if (settings.getHumanizer() == null) {
+            hash.add(-1);
+        } else {
+            settings.getHumanizer().hashInto(hash);
+        }
+    }
+
+    /**
+     * Looks up the backing tracks of a solo
+     * @param key the key of the solo
+     * @return fresh copies of the backing tracks, or null if they are not cached
+     */
+    public EventBuilder[] get(String key) {
+        Path file = file(key);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            synchronized (this) {
+                Long size = entries.remove(key);
+                if (size != null) {
+                    bytes -= size;
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        EventBuilder[] tracks = decode(key, ByteBuffer.wrap(data));
+        if (tracks == null) {
+            // a corrupt or stale entry is dropped rather than trusted
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        synchronized (this) {
+            Long size = entries.put(key, (long) data.length);
+            bytes += data.length - (size == null ? 0 : size);
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // recency across restarts is best effort
+        }
+        hits.incrementAndGet();
+        return tracks;
+    }
+
+    /**
+     * Stores the backing tracks of a solo, evicting the least recently used entries if the cache is full
+     * @param key the key of the solo
+     * @param tracks the backing tracks, sorted on the way
+     * @throws IOException if the entry cannot be written
+     */
+    public void put(String key, EventBuilder[] tracks) throws IOException {
+        byte[] data = encode(key, tracks);
+        if (data.length > maxBytes) {
+            return;
+        }
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, file(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        synchronized (this) {
+            Long size = entries.put(key, (long) data.length);
+            bytes += data.length - (size == null ? 0 : size);
+            evict();
+        }
+    }
+
+    /**
+     * Removes an entry
+     * @param key the key of the solo
+     */
+    public void remove(String key) {
+        synchronized (this) {
+            Long size = entries.remove(key);
+            if (size != null) {
+                bytes -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException e) {
+            // another process may be replacing it; it is found again on the next lookup
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue();
+            try {
+                Files.deleteIfExists(file(eldest.getKey()));
+            } catch (IOException e) {
+                // left for the next eviction
+            }
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    private static byte[] encode(String key, EventBuilder[] tracks) {
+        int length = 12 + key.length();
+        for (EventBuilder track : tracks) {
+            length += 4 + track.size() * EVENT_BYTES;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(MAGIC).putInt(FORMAT).put(key.getBytes(StandardCharsets.US_ASCII)).putInt(tracks.length);
+        for (EventBuilder track : tracks) {
+            track.sort();
+            buffer.putInt(track.size());
+            for (int i = 0; i < track.size(); i++) {
+                buffer.putLong(track.getTick(i)).put((byte) track.getStatus(i)).put((byte) track.getData1(i))
+                        .put((byte) track.getData2(i));
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the tracks of an entry, or null if it is not a whole entry of this format for the key
+     */
+    private static EventBuilder[] decode(String key, ByteBuffer buffer) {
+        byte[] expected = key.getBytes(StandardCharsets.US_ASCII);
+        if (buffer.remaining() < 12 + expected.length || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+            return null;
+        }
+        for (byte b : expected) {
+            if (buffer.get() != b) {
+                return null;
+            }
+        }
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            return null;
+        }
+        EventBuilder[] tracks = new EventBuilder[count];
+        for (int t = 0; t < count; t++) {
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining() / EVENT_BYTES) {
+                return null;
+            }
+            tracks[t] = new EventBuilder(size);
+            for (int i = 0; i < size; i++) {
+                long tick = buffer.getLong();
+                int status = buffer.get() & 0xFF;
+                int data1 = buffer.get() & 0xFF;
+                int data2 = buffer.get() & 0xFF;
+                tracks[t].send(tick, status & 0xF0, status & 0x0F, data1, data2);
+            }
+        }
+        return buffer.hasRemaining() ? null : tracks;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the bytes the indexed entries take up
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of indexed entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,250 @@
+import javax.sound.midi.MidiSystem;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the on-disk cache of backing tracks: entries come back as they were put,
+ * the least recently used entries are evicted once the entries take up more than
+ * the bytes allowed, recency survives opening the directory again, and damaged
+ * or mismatched entries are dropped rather than trusted.
+ */
+public class ResultCacheTest {
+
+    private static final String A = key('a');
+    private static final String B = key('b');
+    private static final String C = key('c');
+
+    @Test
+    public void entriesComeBackAsTheyWerePut() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            ResultCache cache = new ResultCache(dir, 1 << 20);
+            assertNull(cache.get(A));
+            EventBuilder[] tracks = {backing(60, 4), backing(48, 2), new EventBuilder()};
+            cache.put(A, tracks);
+            EventBuilder[] cached = cache.get(A);
+            assertEquals(tracks.length, cached.length);
+            for (int t = 0; t < tracks.length; t++) {
+                assertSameEvents(tracks[t], cached[t]);
+            }
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            assertEquals(Files.size(entry(dir, A)), cache.getBytes());
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntriesByBytes() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            long size = entrySize(dir);
+            // room for two entries, not three
+            ResultCache cache = new ResultCache(dir, size * 2 + size / 2);
+            cache.put(A, new EventBuilder[]{backing(60, 4)});
+            cache.put(B, new EventBuilder[]{backing(62, 4)});
+            assertNotNull(cache.get(A));
+            cache.put(C, new EventBuilder[]{backing(64, 4)});
+
+            assertEquals(2, cache.size());
+            assertEquals(size * 2, cache.getBytes());
+            assertFalse(Files.exists(entry(dir, B)));
+            assertNull(cache.get(B));
+            assertNotNull(cache.get(A));
+            assertNotNull(cache.get(C));
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void entriesLargerThanTheCacheAreNotKept() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            ResultCache cache = new ResultCache(dir, entrySize(dir) - 1);
+            cache.put(A, new EventBuilder[]{backing(60, 4)});
+            assertEquals(0, cache.size());
+            assertNull(cache.get(A));
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void recencySurvivesAReopen() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            long size = entrySize(dir);
+            ResultCache cache = new ResultCache(dir, size * 2);
+            cache.put(A, new EventBuilder[]{backing(60, 4)});
+            cache.put(B, new EventBuilder[]{backing(62, 4)});
+            // both entries written long ago, A before B, then A used again
+            Files.setLastModifiedTime(entry(dir, A), FileTime.fromMillis(1_000_000));
+            Files.setLastModifiedTime(entry(dir, B), FileTime.fromMillis(2_000_000));
+            assertNotNull(cache.get(A));
+
+            ResultCache reopened = new ResultCache(dir, size * 2);
+            assertEquals(2, reopened.size());
+            assertEquals(size * 2, reopened.getBytes());
+            reopened.put(C, new EventBuilder[]{backing(64, 4)});
+            assertFalse(Files.exists(entry(dir, B)));
+            assertNotNull(reopened.get(A));
+            assertNotNull(reopened.get(C));
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void reopeningASmallerCacheEvictsTheOldestEntries() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            long size = entrySize(dir);
+            ResultCache cache = new ResultCache(dir, size * 3);
+            cache.put(A, new EventBuilder[]{backing(60, 4)});
+            cache.put(B, new EventBuilder[]{backing(62, 4)});
+            Files.setLastModifiedTime(entry(dir, A), FileTime.fromMillis(2_000_000));
+            Files.setLastModifiedTime(entry(dir, B), FileTime.fromMillis(1_000_000));
+
+            ResultCache reopened = new ResultCache(dir, size);
+            assertEquals(1, reopened.size());
+            assertFalse(Files.exists(entry(dir, B)));
+            assertNotNull(reopened.get(A));
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void corruptEntriesAreDropped() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            ResultCache cache = new ResultCache(dir, 1 << 20);
+            cache.put(A, new EventBuilder[]{backing(60, 4)});
+            byte[] whole = Files.readAllBytes(entry(dir, A));
+
+            byte[][] damaged = new byte[4][];
+            // cut short in the middle of an event
+            damaged[0] = Arrays.copyOf(whole, whole.length - 5);
+            // a byte too many
+            damaged[1] = Arrays.copyOf(whole, whole.length + 1);
+            // another format
+            damaged[2] = whole.clone();
+            damaged[2][7]++;
+            // an event count past the end, after the magic number, format, key and track count
+            damaged[3] = whole.clone();
+            damaged[3][8 + A.length() + 4] = 0x7F;
+            for (int i = 0; i < damaged.length; i++) {
+                Files.write(entry(dir, A), damaged[i]);
+                assertNull("damage " + i, cache.get(A));
+                assertFalse("damage " + i, Files.exists(entry(dir, A)));
+            }
+            assertEquals(damaged.length, cache.getMisses());
+            assertEquals(0, cache.getHits());
+            assertEquals(0, cache.size());
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void entriesFiledUnderAnotherKeyAreDropped() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            ResultCache cache = new ResultCache(dir, 1 << 20);
+            cache.put(A, new EventBuilder[]{backing(60, 4)});
+            Files.copy(entry(dir, A), entry(dir, B));
+            assertNull(cache.get(B));
+            assertFalse(Files.exists(entry(dir, B)));
+            assertNotNull(cache.get(A));
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void keysFollowTheNotesAndTheSettings() throws Exception {
+        NoteEvents events = RhythmGenerator.readMIDI(
+                MidiSystem.getSequence(new File("Parker,_Charlie_-_Donna_Lee.midi")));
+        GeneratorSettings settings = new GeneratorSettings();
+        String key = ResultCache.key(events, settings);
+        assertEquals(32, key.length());
+        assertEquals(key, ResultCache.key(events, new GeneratorSettings()));
+        assertNotEquals(key, ResultCache.key(events, new GeneratorSettings().setVelocity(61)));
+        assertNotEquals(key, ResultCache.key(events, new GeneratorSettings().setVoiceLeading(true)));
+        NoteEvents shorter = RhythmGenerator.readMIDI(MidiSystem.getSequence(new File("up13.mid")));
+        assertNotEquals(key, ResultCache.key(shorter, settings));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyCache() throws Exception {
+        new ResultCache(Files.createTempDirectory("cache"), 0);
+    }
+
+    private static String key(char c) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 32; i++) {
+            key.append(c);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return a measure of quarter-note chords on a root
+     */
+    private static EventBuilder backing(int root, int hits) {
+        EventBuilder events = new EventBuilder();
+        for (int i = 0; i < hits; i++) {
+            for (int n = 0; n < 3; n++) {
+                events.addNote(i * 480L + 1, i * 480L + 481, 0, root + 4 * n, 60);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return the bytes an entry of one backing of four hits takes up
+     */
+    private static long entrySize(Path dir) throws IOException {
+        Path probe = Files.createDirectory(dir.resolve("probe"));
+        ResultCache cache = new ResultCache(probe, 1 << 20);
+        cache.put(A, new EventBuilder[]{backing(60, 4)});
+        long size = cache.getBytes();
+        deleteAll(probe.toFile());
+        return size;
+    }
+
+    private static Path entry(Path dir, String key) {
+        return dir.resolve(key + ".backing");
+    }
+
+    private static void assertSameEvents(EventBuilder expected, EventBuilder actual) {
+        expected.sort();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTick(i), actual.getTick(i));
+            assertEquals(expected.getStatus(i), actual.getStatus(i));
+            assertEquals(expected.getData1(i), actual.getData1(i));
+            assertEquals(expected.getData2(i), actual.getData2(i));
+        }
+    }
+
+    private static void deleteAll(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+}
@@ -1,12 +1,15 @@
-import javax.sound.midi.MetaMessage;
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
-import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Track;
-import java.io.File;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 
 public class RhythmGenerator {
     // beats[0]: Freddy Green
@@ -32,22 +35,40 @@ public class RhythmGenerator {
 
     public static final int noteRes = 24;
 
+    // the lowest root a backing chord is voiced on
+    public static final int CHORD_REGISTER = 55;
+    // the most distinct measures a track remembers the rhythm of
+    public static final int RHYTHM_MEMO_CAPACITY = 4096;
+
+    // the voicings of chords placed from CHORD_REGISTER, shared by every track
+    private static final VoicingEngine VOICING = new VoicingEngine(CHORD_REGISTER);
+
     /**
      * Generate a single measure of backing rhythm
      * @param chord
      * @param beatType The style of the rhythm
      * @return A measure with the implemented rhythm style and note
      */
-    public static Chord[] generateMeasure(Chord chord, int beatType) {
-        int[] beat = beats[beatType];
-        Chord[] measure = new Chord[beat.length];
-        for (int i = 0; i < measure.length; i++) {
-            if (beat[i] != 0) {
-                measure[i] = chord;
-                measure[i].setLength(beatLengths[beatType][i]);
-            } else {
-                measure[i] = null;
-            }
+    public static Progression generateMeasure(Chord chord, int beatType) {
+        return generateMeasure(chord, beats[beatType], beatLengths[beatType]);
+    }
+
+    /**
+     * Generate a single measure of backing rhythm in a named style
+     * @param chord the chord to be played on every beat
+     * @param styles the registry holding the style
+     * @param styleName the name of the style, such as "charleston"
+     * @return A measure with the style's rhythm, accents and note
+     */
+    public static Progression generateMeasure(Chord chord, StyleRegistry styles, String styleName) {
+        int style = styles.indexOf(styleName);
+        if (style < 0) {
+            throw new IllegalArgumentException("No style named " + styleName);
+        }
+        Progression measure = new Progression(styles.getEighths(style));
+        for (int i = 0; i < measure.size(); i++) {
+            int length = styles.getLength(style, i);
+            measure.set(i, length != 0 ? chord : null, length, styles.getVelocity(style, i));
         }
         return measure;
     }
@@ -60,20 +81,33 @@ public class RhythmGenerator {
      *               the beat array, and each entry must correspond to an entry in beat
      * @return A measure with the implemented rhythm style and note
      */
-    public static Chord[] generateMeasure(Chord chord, int[] beat, int[] lengths) {
-        Chord[] measure = new Chord[beat.length];
-        for (int i = 0; i < measure.length; i++) {
+    public static Progression generateMeasure(Chord chord, int[] beat, int[] lengths) {
+        Progression measure = new Progression(beat.length);
+        generateMeasure(measure, 0, chord, beat, lengths, null);
+        return measure;
+    }
+
+    /**
+     * Writes a single measure of backing rhythm with accents into a progression in place
+     * @param progression the progression to be written to
+     * @param offset the first slot of the measure in the progression
+     * @param chord the chord to be played on every beat
+     * @param beat the beat to be played
+     * @param lengths lengths of the beat to be played; each entry must correspond to an entry in beat
+     * @param velocities the velocity of each beat, 0 for the velocity of the backing; may be null
+     */
+    public static void generateMeasure(Progression progression, int offset, Chord chord, int[] beat, int[] lengths,
+                                       int[] velocities) {
+        for (int i = 0; i < beat.length; i++) {
             if (beat[i] != 0) {
                 if (lengths[i] == 0) {
                     throw new IllegalArgumentException("Beats and Lengths must match up");
                 }
-                measure[i] = chord;
-                measure[i].setLength(lengths[i]);
+                progression.set(offset + i, chord, lengths[i], velocities == null ? 0 : velocities[i]);
             } else {
-                measure[i] = null;
+                progression.set(offset + i, null, 0);
             }
         }
-        return measure;
     }
 
     /**
@@ -85,6 +119,20 @@ public class RhythmGenerator {
      */
     public static int[][] generateRhythm(int[] prevMeasure, int[] measure, int[] nextMeasure) {
         int[][] rhythm = new int[2][8];
+        generateRhythm(prevMeasure, measure, nextMeasure, rhythm);
+        return rhythm;
+    }
+
+    /**
+     * Generates a rhythm pattern for a measure into an existing array, without allocating
+     * @param prevMeasure the measure previous to the current measure, can be null if current measure is the first measure
+     * @param measure the current measure to write a rhythm to, cannot be null
+     * @param nextMeasure the measure after the current measure, can be null if the current measure is the last measure
+     * @param rhythm a 2 x 8 array that receives the rhythm pattern and the beat lengths
+     */
+    private static void generateRhythm(int[] prevMeasure, int[] measure, int[] nextMeasure, int[][] rhythm) {
+        Arrays.fill(rhythm[0], 0);
+        Arrays.fill(rhythm[1], 0);
         boolean emptySpace = false;
         int emptyLength = 0;
         int firstChord = 0;
@@ -104,277 +152,696 @@ public class RhythmGenerator {
         }
         rhythm[0][0] = 1;
             rhythm[1][0] = firstChord < 2 ? 8 : 4;
+    }
+
+    /**
+     * Generates a rhythm pattern for a measure of an onset grid into an existing array.
+     * Gaps between onsets are read off the onset bits with trailing-zero counts, so the
+     * cost is one step per note rather than one per slot.
+     * @param grid the onsets of the solo; the neighbouring measures of the grid are the previous and next measures
+     * @param measure the measure to write a rhythm to
+     * @param rhythm a 2 x n array, n at least the eighths of the measure, that receives the rhythm
+     *               pattern and the beat lengths
+     */
+    public static void generateRhythm(MeasureGrid grid, int measure, int[][] rhythm) {
+        Arrays.fill(rhythm[0], 0);
+        Arrays.fill(rhythm[1], 0);
+        int eighth = grid.getSlotsPerEighth();
+        int firstChord = 0;
+        int previous = -1;
+        for (int w = 0; w < grid.getWordsPerMeasure(); w++) {
+            long bits = grid.getWord(measure, w);
+            while (bits != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (i - previous - 1 > eighth * 2) {
+                    int beat = i / eighth - 1;
+                    rhythm[0][beat] = 1;
+                    rhythm[1][beat] = 8;
+                    firstChord = firstChord == 0 ? beat : firstChord;
+                }
+                previous = i;
+            }
+        }
+        rhythm[0][0] = 1;
+        rhythm[1][0] = firstChord < 2 ? 8 : 4;
+    }
+
+    /**
+     * Generates the rhythm pattern of every measure of an onset grid
+     * @param grid the onsets of the solo
+     * @return for every measure, a 2D array with the rhythm pattern and the beat lengths, one per eighth
+     */
+    public static int[][][] generateRhythm(MeasureGrid grid) {
+        int[][][] rhythm = new int[grid.size()][][];
+        for (int i = 0; i < grid.size(); i++) {
+            rhythm[i] = new int[2][grid.getEighths(i)];
+            generateRhythm(grid, i, rhythm[i]);
+        }
+        return rhythm;
+    }
+
+    /**
+     * Plays a measure in the style its solo density calls for.
+     * The density is the onset count of the measure scaled to a 4/4 measure of noteRes slots,
+     * so picking the style is a popcount and a table lookup.
+     * @param grid the onsets of the solo
+     * @param measure the measure to write a rhythm to
+     * @param styles the styles to choose from
+     * @param rhythm a 2 or 3 x n array, n at least the eighths of the measure, that receives the rhythm
+     *               pattern, the beat lengths and, if there is a third row, the velocities
+     * @return the style played
+     */
+    private static int generateRhythm(MeasureGrid grid, int measure, StyleRegistry styles, int[][] rhythm) {
+        int slots = grid.getEighths(measure) * grid.getSlotsPerEighth();
+        int density = (int) ((long) grid.onsetCount(measure) * noteRes / slots);
+        int style = styles.styleFor(density);
+        int eighths = grid.getEighths(measure);
+        for (int i = 0; i < eighths; i++) {
+            int length = styles.getLength(style, i);
+            rhythm[0][i] = length != 0 ? 1 : 0;
+            rhythm[1][i] = length;
+            if (rhythm.length > 2) {
+                rhythm[2][i] = styles.getVelocity(style, i);
+            }
+        }
+        return style;
+    }
+
+    /**
+     * Generates the rhythm pattern of every measure of an onset grid as the settings call for: with styles, each
+     * measure is played in the style its solo density calls for; without, the backing comps into the gaps of the
+     * solo, working out each distinct measure only once
+     * @param grid the onsets of the solo
+     * @param settings the styles to choose from, if any
+     * @return for every measure, a 2D array with the rhythm pattern and the beat lengths, one per eighth, and with
+     *         styles a third row of velocities; without styles, measures with the same onsets share their arrays
+     */
+    public static int[][][] generateRhythm(MeasureGrid grid, GeneratorSettings settings) {
+        StyleRegistry styles = settings.getStyles();
+        RhythmMemo memo = styles == null ? new RhythmMemo(grid, RHYTHM_MEMO_CAPACITY) : null;
+        int[][][] rhythm = new int[grid.size()][][];
+        for (int i = 0; i < grid.size(); i++) {
+            if (memo != null) {
+                rhythm[i] = memo.rhythmFor(grid, i);
+            } else {
+                rhythm[i] = new int[3][grid.getEighths(i)];
+                generateRhythm(grid, i, styles, rhythm[i]);
+            }
+        }
         return rhythm;
     }
 
     /**
      * Divides a MIDI sequence into separate measures
      * @param s the sequence to be divided
-     * @return an array of measures filled with each of their respective notes
-     */
-    public static int[][] divideSequence(Sequence s){
-        LinkedList<MidiEvent> noteOn = new LinkedList<>();
-        LinkedList<MidiEvent> noteOff = new LinkedList<>();
-        readMIDI(noteOn, noteOff, s);
-        int length = (int) s.getTickLength() / s.getResolution();
-
-        int[][] measures = new int[length / 4 + 1][noteRes];
-        for (int m = 0; m < measures.length; m++) {
-            for (int n = 0; n < measures[0].length; n++) {
-                while (!noteOn.isEmpty() &&
-                        (int) noteOn.getFirst().getTick() < (n + 1 + m * noteRes) * (int) s.getResolution() / (noteRes / 4) ) {
-                    MidiEvent me = noteOn.remove();
-                    if (me.getMessage() instanceof ShortMessage) {
-                        ShortMessage sm = (ShortMessage) me.getMessage();
-                        measures[m][n] = sm.getData1();
-                    }
+     * @return the onsets and pitch classes of every measure
+     */
+    public static MeasureGrid divideSequence(Sequence s){
+        return divideSequence(readMIDI(s));
+    }
+
+    /**
+     * Divides decoded note events into separate measures in a single pass
+     * @param events the note events of the sequence, ordered by tick
+     * @return the onsets and pitch classes of every measure, noteRes slots per measure
+     */
+    public static MeasureGrid divideSequence(NoteEvents events) {
+        return divideSequence(events, noteRes);
+    }
+
+    /**
+     * Divides decoded note events into separate measures in a single pass, following
+     * the time signatures of their timing model
+     * @param events the note events of the sequence, ordered by tick
+     * @param slotsPerMeasure the resolution of the grid in a measure of 4/4, a multiple of 8
+     * @return the onsets and pitch classes of every measure
+     */
+    public static MeasureGrid divideSequence(NoteEvents events, int slotsPerMeasure) {
+        if (slotsPerMeasure <= 0 || slotsPerMeasure % 8 != 0) {
+            throw new IllegalArgumentException("Slots per measure must be a positive multiple of 8");
+        }
+        int ppq = events.getResolution();
+        TimingModel timing = events.getTiming();
+        int slotsPerQuarter = slotsPerMeasure / 4;
+        long measureCount = timing.measureAt(events.getTickLength()) + 1;
+        if (measureCount > Integer.MAX_VALUE / 12) {
+            throw new IllegalArgumentException("Too many measures: " + measureCount);
+        }
+
+        MeasureGrid measures = new MeasureGrid(timing, (int) measureCount, slotsPerMeasure / 8);
+        // the bounds of the measure of the previous note, so sorted notes rarely search the timing
+        int m = -1;
+        long start = 0;
+        long end = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if (!events.isNoteOn(i)) {
+                continue;
+            }
+            long tick = events.getTick(i);
+            if (tick >= end || tick < start) {
+                long measure = timing.measureAt(tick);
+                if (measure >= measures.size()) {
+                    break;
                 }
+                m = (int) measure;
+                start = timing.measureStart(m);
+                end = timing.measureEnd(m);
             }
+            // slot n ends at (n + 1) * ppq / slotsPerQuarter ticks into the measure, rounded down
+            long offset = tick - start;
+            long slot = offset * slotsPerQuarter / ppq;
+            while (offset >= (slot + 1) * ppq / slotsPerQuarter) {
+                slot++;
+            }
+            measures.addOnset(m, (int) Math.min(slot, measures.getSlotsPerMeasure() - 1), events.getPitch(i));
         }
         return measures;
     }
 
     /**
-     * Creates a backing rhythm for a MIDI track
+     * Creates a backing rhythm for a MIDI track, in the measures of its own time signatures
      * @param t The track for which the backing rhythm is to be played
      * @param ppq the resolution of the sequence in pulses per quarter note
      * @param rootNote The root note of the chord progression
-     * @return A Chord array representing the chord progression of the backing rhythm
+     * @return A progression of chords representing the backing rhythm
      */
-    public static Chord[] fillSequence(Track t, int ppq, int rootNote) {
-        int trackLength = ((int) t.ticks()) / ppq;
-        int numMeasures = trackLength / 4;
-        Chord[] sequence = new Chord[8 * numMeasures];
-        for (int i = 0; i < numMeasures; i++) {
-            Chord[] measure = new Chord[8];
-            int keySelect = i % 4;
-            switch (keySelect) {
-                case 0:
-                    measure = generateMeasure(new Chord(rootNote + 2, "m"), 2);
-                    break;
-                case 1:
-                    measure = generateMeasure(new Chord(rootNote + 7), 2);
-                    break;
-                case 2:
-                case 3:
-                    measure = generateMeasure(new Chord(rootNote), 2);
-                    break;
-            }
-            for (int j = 0; j < measure.length; j++) {
-                sequence[i*8 + j] = measure[j];
-            }
+    public static Progression fillSequence(Track t, int ppq, int rootNote) {
+        TimingModel timing = TimingModel.read(t, ppq);
+        int[][][] rhythm = new int[measuresBefore(timing, t.ticks())][][];
+        for (int i = 0; i < rhythm.length; i++) {
+            int eighths = timing.eighthsIn(i);
+            rhythm[i] = new int[][]{Arrays.copyOf(beats[2], eighths), Arrays.copyOf(beatLengths[2], eighths)};
         }
-        return sequence;
+        return fillSequence(timing, t.ticks(), progression(rootNote, rhythm.length), rhythm);
     }
 
     /**
-     * Creates a backing rhythm for a MIDI track
+     * Creates a backing rhythm for a MIDI track, in the measures of its own time signatures
      * @param t The track for which the backing rhythm is to be played
      * @param ppq the resolution of the sequence in pulses per quarter note
      * @param rootNote The root note of the chord progression
-     * @param rhythm The array of rhythms and beats
-     * @return A Chord array representing the chord progression of the backing rhythm
+     * @param rhythm The array of rhythms and beats, one entry per eighth of each measure
+     * @return A progression of chords representing the backing rhythm
      */
-    public static Chord[] fillSequence(Track t, int ppq, int rootNote, int[][][] rhythm) {
-        int trackLength = ((int) t.ticks()) / ppq;
-        int numMeasures = trackLength / 4;
-        Chord[] sequence = new Chord[8 * numMeasures];
+    public static Progression fillSequence(Track t, int ppq, int rootNote, int[][][] rhythm) {
+        TimingModel timing = TimingModel.read(t, ppq);
+        int measures = (int) Math.min(measuresBefore(timing, t.ticks()), rhythm.length);
+        return fillSequence(timing, t.ticks(), progression(rootNote, measures), rhythm);
+    }
+
+    /**
+     * @return the number of complete measures before a tick
+     */
+    private static int measuresBefore(TimingModel timing, long endTick) {
+        long measures = timing.measureAt(endTick);
+        if (measures > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("Too many measures: " + measures);
+        }
+        return (int) measures;
+    }
+
+    /**
+     * @return the chords of a ii-V-I-I cycle on the root note for a number of measures
+     */
+    private static Chord[] progression(int rootNote, int measures) {
+        Chord[] chords = new Chord[measures];
+        for (int i = 0; i < measures; i++) {
+            chords[i] = progressionChord(rootNote, i);
+        }
+        return chords;
+    }
+
+    /**
+     * Creates a backing rhythm over a chord per measure for every complete measure before a tick
+     * @param timing the measures of the sequence
+     * @param endTick the end of the track for which the backing rhythm is to be played
+     * @param chords The chord of each measure, as found by HarmonyAnalyzer
+     * @param rhythm The array of rhythms and beats, one entry per eighth of each measure, and optionally
+     *               a third row of velocities
+     * @return A progression of chords representing the backing rhythm, one slot per eighth note
+     */
+    public static Progression fillSequence(TimingModel timing, long endTick, Chord[] chords, int[][][] rhythm) {
+        long numMeasures = Math.min(timing.measureAt(endTick), Math.min(chords.length, rhythm.length));
+        long slots = timing.firstEighth(numMeasures);
+        if (slots > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many eighth notes: " + slots);
+        }
+        Progression sequence = new Progression((int) slots);
         for (int i = 0; i < numMeasures; i++) {
-            Chord[] measure = new Chord[8];
-            int keySelect = i % 4;
-            switch (keySelect) {
-                case 0:
-                    measure = generateMeasure(new Chord(rootNote + 2, "m"), rhythm[i][0], rhythm[i][1]);
-                    break;
-                case 1:
-                    measure = generateMeasure(new Chord(rootNote + 7), rhythm[i][0], rhythm[i][1]);
-                    break;
-                case 2:
-                case 3:
-                    measure = generateMeasure(new Chord(rootNote), rhythm[i][0], rhythm[i][1]);
-                    break;
-            }
-            for (int j = 0; j < measure.length; j++) {
-                sequence[i*8 + j] = measure[j];
-            }
+            generateMeasure(sequence, (int) timing.firstEighth(i), chords[i], rhythm[i][0], rhythm[i][1],
+                    rhythm[i].length > 2 ? rhythm[i][2] : null);
         }
         return sequence;
     }
 
+    /**
+     * Picks the chord of a measure from a ii-V-I-I cycle on the root note, moved by octaves to fit the keyboard
+     * @param rootNote The root note of the chord progression
+     * @param measure the index of the measure
+     * @return the shared chord for the measure
+     */
+    static Chord progressionChord(int rootNote, long measure) {
+        switch ((int) (measure % 4)) {
+            case 0:
+                return Chord.folded(rootNote + 2, "m");
+            case 1:
+                return Chord.folded(rootNote + 7, "");
+            default:
+                return Chord.folded(rootNote, "");
+        }
+    }
+
     /**
      * Writes the chord sequence to a MIDI file
      * @param sequence the sequence to be written
      * @param ppq the resolution of the sequence in pules per quarter note
      * @param fileName the name of the file to be written
+     * @throws IOException if the file cannot be written
      */
-    public static void writeToMIDI(Chord[] sequence, int ppq, String fileName) {
-        try {
-            Sequence s = new Sequence(Sequence.PPQ, ppq);
-            Track t = s.createTrack();
+    public static void writeToMIDI(Progression sequence, int ppq, String fileName) throws IOException {
+        try (MIDIWriter writer = MIDIWriter.open(fileName, 1, 1, ppq)) {
+            writer.beginTrack();
 
             //****  General MIDI sysex -- turn on General MIDI sound set  ****
             byte[] b = {(byte)0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte)0xF7};
-            SysexMessage sm = new SysexMessage();
-            sm.setMessage(b, 6);
-            MidiEvent me = new MidiEvent(sm,(long)0);
-            t.add(me);
+            writer.sysex(0, b);
 
             //****  set track name (meta event)  ****
-            MetaMessage mt = new MetaMessage();
             String TrackName = "midifile track";
-            mt.setMessage(0x03 ,TrackName.getBytes(), TrackName.length());
-            me = new MidiEvent(mt,(long)0);
-            t.add(me);
+            writer.meta(0, 0x03, TrackName.getBytes());
 
             //****  set omni on  ****
-            ShortMessage mm = new ShortMessage();
-            mm.setMessage(0xB0, 0x7D,0x00);
-            me = new MidiEvent(mm,(long)0);
-            t.add(me);
+            writer.shortMessage(0, 0xB0, 0x7D, 0x00);
 
             //****  set poly on  ****
-            mm = new ShortMessage();
-            mm.setMessage(0xB0, 0x7F,0x00);
-            me = new MidiEvent(mm,(long)0);
-            t.add(me);
+            writer.shortMessage(0, 0xB0, 0x7F, 0x00);
 
             //****  set instrument to Piano  ****
-            mm = new ShortMessage();
-            mm.setMessage(0xC0, 0x00, 0x00);
-            me = new MidiEvent(mm,(long)0);
-            t.add(me);
-
-            for (int i = 0; i < sequence.length; i++) {
-                if (sequence[i] != null) {
-                    for (int note : sequence[i].getNotes()) {
-                        mm = new ShortMessage();
-                        mm.setMessage(0x90, note, 94);
-                        me = new MidiEvent(mm, ((long) i * (ppq/2) + 1));
-                        t.add(me);
-                        mm = new ShortMessage();
-                        mm.setMessage(0x80, note, 94);
-                        me = new MidiEvent(mm, ((long) i * (ppq/2)
-                                + (ppq*4/sequence[i].getLength()) + 1));
-                        t.add(me);
-                    }
-                }
-            }
+            writer.shortMessage(0, 0xC0, 0x00, 0x00);
 
-            //****  set end of track (meta event) 19 ticks later  ****
-            mt = new MetaMessage();
-            byte[] bet = {}; // empty array
-            mt.setMessage(0x2F,bet,0);
-            me = new MidiEvent(mt, ((long) (sequence.length + 8)* ppq));
-            t.add(me);
+            EventBuilder backing = new EventBuilder();
+            addBacking(sequence, new TimingModel(ppq), new GeneratorSettings().setVelocity(94), backing);
+            writer.writeEvents(backing);
 
-            //****  write the MIDI sequence to a MIDI file  ****
-            File f = new File(fileName);
-            MidiSystem.write(s,1,f);
-
-        } catch (Exception e) {
-            System.out.println("Exception caught: " + e.getMessage());
+            //****  set end of track (meta event) at the end of the last measure and write the track to the file  ****
+            writer.endTrack(new TimingModel(ppq).tickOfEighth(sequence.size()));
         }
     }
 
     /**
-     *  Writes a backing rhythm onto a solo
+     *  Writes a backing rhythm onto a solo, one separate backing track per solo track
      * @param fileName the name of the file of the solo
      * @return a MIDI sequence of the solo and backing rhythm combined
      * @throws Exception if the file is invalid
      */
     public static Sequence writeOnSolo(String fileName) throws Exception {
-        Sequence sequence = MidiSystem.getSequence(new File(fileName));
-        int ppq = 0;
-        if (sequence.getDivisionType() == 0.0f) {
-            ppq = sequence.getResolution();
-        } else {
+        return writeOnSolo(fileName, new GeneratorSettings(), RunMetrics.DISABLED);
+    }
+
+    /**
+     *  Writes a backing rhythm onto a solo, recording how long each stage takes
+     * @param fileName the name of the file of the solo
+     * @param settings the layout of the backing tracks and how they are produced
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @return a MIDI sequence of the solo and backing rhythm combined
+     * @throws Exception if the file is invalid
+     */
+    public static Sequence writeOnSolo(String fileName, GeneratorSettings settings, RunMetrics metrics)
+            throws Exception {
+        long start = metrics.start();
+        long allocated = metrics.allocated();
+        ByteBuffer smf = MIDIReader.map(fileName);
+        NoteEvents events = MIDIReader.parse(smf);
+        Sequence sequence = MIDIReader.readSequence(smf);
+        metrics.stop(RunMetrics.Stage.READ, start, allocated);
+        metrics.count(RunMetrics.Counter.EVENTS, events.size());
+        return combine(sequence, accompany(events, settings, metrics));
+    }
+
+    /**
+     * Writes a backing rhythm onto a solo, recording how long each stage takes.
+     * Every track holding notes is analyzed on its own, so each backing follows the rhythm and
+     * harmony of its own part; tracks without notes, such as a conductor track, get no backing.
+     * The solo tracks are copied first, followed by the backing tracks.
+     * @param sequence the solo
+     * @param settings the layout of the backing tracks and how they are produced
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @return a MIDI sequence of the solo and backing rhythm combined
+     * @throws Exception if the sequence is invalid
+     */
+    public static Sequence writeOnSolo(Sequence sequence, GeneratorSettings settings, RunMetrics metrics)
+            throws Exception {
+        if (sequence.getDivisionType() != Sequence.PPQ) {
             throw new IllegalArgumentException("Cannot handle divisionTypes that are not PPQ");
         }
-        int[][] measures = divideSequence(sequence);
-        int[][][] rhythm = new int[measures.length][2][measures[0].length];
-        for (int i = 0; i < measures.length; i++) {
-            if (i == 0) {
-                rhythm[i] = generateRhythm(null, measures[i], measures[i + 1]);
-            } else if (i + 1 == measures.length) {
-                rhythm[i] = generateRhythm(measures[i - 1], measures [i], null);
+        long start = metrics.start();
+        long allocated = metrics.allocated();
+        NoteEvents events = readMIDI(sequence);
+        metrics.stop(RunMetrics.Stage.READ, start, allocated);
+        metrics.count(RunMetrics.Counter.EVENTS, events.size());
+        // the same analysis, generation and layout as every other entry point
+        return combine(sequence, accompany(events, settings, metrics));
+    }
+
+    /**
+     * @return a new sequence of the solo tracks followed by the backing tracks
+     */
+    private static Sequence combine(Sequence solo, EventBuilder[] backings) throws InvalidMidiDataException {
+        Sequence result = new Sequence(solo.getDivisionType(), solo.getResolution());
+        for (Track t : solo.getTracks()) {
+            Track copy = result.createTrack();
+            for (int e = 0; e < t.size(); e++) {
+                copy.add(t.get(e));
+            }
+        }
+        for (EventBuilder backing : backings) {
+            backing.appendTo(result.createTrack());
+        }
+        return result;
+    }
+
+    /**
+     * Analyzes the notes of a single track and builds its backing and, optionally, its bass line. Both are
+     * built from the one set of chords found for the track, so the bass adds no analysis.
+     * @param events the note events of the track, with the timing of its sequence
+     * @param endTick the tick of the end of the track
+     * @param settings the velocity, channels and styles of the backing and bass
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @param bass the builder the bass line is added to, or null for none
+     * @return the backing events, or null if the track has no NOTE_ON
+     */
+    public static EventBuilder accompanyTrack(NoteEvents events, long endTick, GeneratorSettings settings,
+                                              RunMetrics metrics, EventBuilder bass) {
+        AnalysisFile.AnalyzedTrack analysis = analyzeTrack(events, endTick, metrics);
+        return analysis == null ? null : accompanyTrack(analysis, events.getTiming(), settings, metrics, bass);
+    }
+
+    /**
+     * Analyzes the notes of a single track: divides them into measures and finds the key and the chord of
+     * every measure, which is all of the work on a track that does not depend on the settings
+     * @param events the note events of the track, with the timing of its sequence
+     * @param endTick the tick of the end of the track
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @return the analysis, or null if the track has no NOTE_ON
+     */
+    public static AnalysisFile.AnalyzedTrack analyzeTrack(NoteEvents events, long endTick, RunMetrics metrics) {
+        if (!hasNotes(events)) {
+            return null;
+        }
+        long start = metrics.start();
+        long allocated = metrics.allocated();
+        MeasureGrid measures = divideSequence(events);
+        metrics.stop(RunMetrics.Stage.DIVIDE, start, allocated);
+
+        start = metrics.start();
+        allocated = metrics.allocated();
+        int key = HarmonyAnalyzer.detectKey(measures);
+        Chord[] chords = HarmonyAnalyzer.detectChords(measures, key, CHORD_REGISTER);
+        metrics.stop(RunMetrics.Stage.ANALYZE, start, allocated);
+        return new AnalysisFile.AnalyzedTrack(measures, key, chords, endTick);
+    }
+
+    /**
+     * Builds the backing and, optionally, the bass line of an analyzed track, without looking at its notes
+     * @param analysis the measures and chords of the track
+     * @param timing the measures of the sequence
+     * @param settings the velocity, channels and styles of the backing and bass
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @param bass the builder the bass line is added to, or null for none
+     * @return the backing events
+     */
+    public static EventBuilder accompanyTrack(AnalysisFile.AnalyzedTrack analysis, TimingModel timing,
+                                              GeneratorSettings settings, RunMetrics metrics, EventBuilder bass) {
+        MeasureGrid measures = analysis.getMeasures();
+        long endTick = analysis.getEndTick();
+        long start = metrics.start();
+        long allocated = metrics.allocated();
+        int[][][] rhythm = generateRhythm(measures, settings);
+        metrics.stop(RunMetrics.Stage.RHYTHM, start, allocated);
+
+        Chord[] chords = analysis.getChords();
+        if (settings.isVoiceLeading()) {
+            start = metrics.start();
+            allocated = metrics.allocated();
+            chords = VOICING.voice(HarmonyAnalyzer.extendChords(measures, chords));
+            metrics.stop(RunMetrics.Stage.VOICE, start, allocated);
+        }
+
+        start = metrics.start();
+        allocated = metrics.allocated();
+        Progression progression = fillSequence(timing, endTick, chords, rhythm);
+        EventBuilder backing = new EventBuilder(Math.max(measures.size() * 16, 16));
+        addBacking(progression, timing, settings, backing);
+        if (bass != null) {
+            WalkingBass.walk(timing, endTick, chords, settings.getVelocity(), settings.getBassChannel(), bass);
+        }
+        if (settings.getHumanizer() != null) {
+            settings.getHumanizer().apply(backing, timing);
+            if (bass != null) {
+                settings.getHumanizer().apply(bass, timing);
+            }
+        }
+        metrics.stop(RunMetrics.Stage.FILL, start, allocated);
+
+        metrics.count(RunMetrics.Counter.TRACKS, 1);
+        metrics.count(RunMetrics.Counter.MEASURES, measures.size());
+        // addBacking adds a NOTE_OFF for every NOTE_ON
+        metrics.count(RunMetrics.Counter.NOTES_EMITTED, (backing.size() + (bass != null ? bass.size() : 0)) / 2);
+        return backing;
+    }
+
+    private static boolean hasNotes(NoteEvents events) {
+        for (int i = 0; i < events.size(); i++) {
+            if (events.isNoteOn(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the backing tracks of decoded note events the way writeOnSolo does, without a Sequence.
+     * Every track recorded in the events is analyzed on its own, in parallel if the settings say so.
+     * @param events the note events of every track, with their timing and track lengths
+     * @param settings the layout of the backing tracks and how they are produced
+     * @return the backing tracks in the order writeOnSolo adds them after the solo tracks
+     */
+    public static EventBuilder[] accompany(NoteEvents events, GeneratorSettings settings) {
+        return accompany(events, settings, RunMetrics.DISABLED);
+    }
+
+    /**
+     * Builds the backing tracks of decoded note events, recording how long each stage takes
+     * @param events the note events of every track, with their timing and track lengths
+     * @param settings the layout of the backing tracks and how they are produced
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @return the backing tracks, then any bass tracks, in the order writeOnSolo adds them after the solo tracks
+     */
+    public static EventBuilder[] accompany(NoteEvents events, GeneratorSettings settings, RunMetrics metrics) {
+        return accompany(analyze(events, settings, metrics), settings, metrics);
+    }
+
+    /**
+     * Analyzes every track recorded in decoded note events, in parallel if the settings say so, into the form
+     * AnalysisFile saves, so the solo can be accompanied in any number of styles without being analyzed again
+     * @param events the note events of every track, with their timing and track lengths
+     * @param settings whether the tracks are analyzed in parallel
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @return the analysis of the solo
+     */
+    public static AnalysisFile analyze(NoteEvents events, GeneratorSettings settings, RunMetrics metrics) {
+        int trackCount = events.getTrackCount();
+        AnalysisFile.AnalyzedTrack[] tracks = new AnalysisFile.AnalyzedTrack[trackCount];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            int track = i;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                tracks[track] = analyzeTrack(events.forTrack(track), events.getTrackLength(track), metrics);
+            }));
+        }
+        invoke(tasks, settings);
+        return new AnalysisFile(events.getTiming(), events.getTickLength(), tracks);
+    }
+
+    /**
+     * Builds the backing tracks of an analyzed solo, without reading or analyzing its notes
+     * @param analysis the analysis of the solo, from analyze or AnalysisFile.read
+     * @param settings the layout of the backing tracks and how they are produced
+     * @param metrics where the stages and counts are recorded, or RunMetrics.DISABLED
+     * @return the backing tracks, then any bass tracks, in the order writeOnSolo adds them after the solo tracks
+     */
+    public static EventBuilder[] accompany(AnalysisFile analysis, GeneratorSettings settings, RunMetrics metrics) {
+        int trackCount = analysis.getTrackCount();
+        EventBuilder[] backings = new EventBuilder[trackCount];
+        EventBuilder[] basses = settings.isWalkingBass() ? new EventBuilder[trackCount] : null;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            int track = i;
+            if (analysis.getTrack(track) == null) {
+                continue;
+            }
+            tasks.add(ForkJoinTask.adapt(() -> {
+                EventBuilder bass = basses != null ? new EventBuilder() : null;
+                backings[track] = accompanyTrack(analysis.getTrack(track), analysis.getTiming(), settings, metrics,
+                        bass);
+                if (basses != null) {
+                    basses[track] = bass;
+                }
+            }));
+        }
+        invoke(tasks, settings);
+
+        List<EventBuilder> result = new ArrayList<>(trackCount);
+        layOut(backings, settings.getLayout(), result);
+        if (basses != null) {
+            layOut(basses, settings.getLayout(), result);
+        }
+        return result.toArray(new EventBuilder[0]);
+    }
+
+    private static void invoke(List<ForkJoinTask<?>> tasks, GeneratorSettings settings) {
+        if (settings.isParallel() && tasks.size() > 1) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (ForkJoinTask<?> task : tasks) {
+                task.invoke();
+            }
+        }
+    }
+
+    /**
+     * Adds the parts of every track that has one to a list of tracks, each on its own or merged into one
+     */
+    private static void layOut(EventBuilder[] parts, GeneratorSettings.Layout layout, List<EventBuilder> tracks) {
+        EventBuilder merged = null;
+        for (EventBuilder part : parts) {
+            if (part == null) {
+                continue;
+            }
+            if (layout == GeneratorSettings.Layout.SEPARATE) {
+                tracks.add(part);
+            } else if (merged == null) {
+                merged = new EventBuilder();
+                merged.addAll(part);
+                tracks.add(merged);
             } else {
-                rhythm[i] = generateRhythm(measures[i - 1], measures[i], measures[i + 1]);
+                merged.addAll(part);
             }
         }
-        LinkedList<MidiEvent> noteOn = new LinkedList<>();
-        LinkedList<MidiEvent> noteOff = new LinkedList<>();
-        readMIDI(noteOn, noteOff, sequence);
-        int key = getKey(noteOn);
-        int trackNumber = 0;
-        for (Track t : sequence.getTracks()) {
-            trackNumber++;
-            Chord[] progression = fillSequence(t, ppq, key,rhythm);
-            for (int i = 0; i < progression.length; i++) {
-                if (progression[i] != null) {
-                    for (int note : progression[i].getNotes()) {
-                        ShortMessage mm = new ShortMessage();
-                        mm.setMessage(0x90, note, 60);
-                        MidiEvent me = new MidiEvent(mm, ((long) i * (ppq/2) + 1));
-                        t.add(me);
-                        mm = new ShortMessage();
-                        mm.setMessage(0x80, note, 60);
-                        me = new MidiEvent(mm, ((long) i * (ppq/2)
-                                + (ppq*4/progression[i].getLength()) + 1));
-                        t.add(me);
-                    }
+    }
+
+    /**
+     * Adds the NOTE_ON and NOTE_OFF events of a backing rhythm to an event builder
+     * @param progression the backing rhythm, one slot per eighth note of the timing's measures
+     * @param timing the measures of the sequence
+     * @param settings the velocity of the chords without a velocity of their own, and their MIDI channel
+     * @param events the builder the events are added to
+     */
+    public static void addBacking(Progression progression, TimingModel timing, GeneratorSettings settings,
+                                  EventBuilder events) {
+        int ppq = timing.getResolution();
+        int channel = settings.getChannel();
+        for (int i = 0; i < progression.size(); i++) {
+            Chord chord = progression.getChord(i);
+            if (chord != null) {
+                long on = timing.tickOfEighth(i) + 1;
+                long off = on + ppq*4/progression.getLength(i);
+                int v = progression.getVelocity(i) != 0 ? progression.getVelocity(i) : settings.getVelocity();
+                for (int n = 0; n < chord.size(); n++) {
+                    events.addNote(on, off, channel, chord.getNote(n), v);
                 }
             }
         }
-        return sequence;
     }
 
     /**
-     * Reads a MIDI sequence and writes its NOTE_ON and NOTE_OFF events to lists
-     * @param noteOn the list of NOTE_ON events
-     * @param noteOff the list of NOTE_OFF events
+     * Reads the NOTE_ON and NOTE_OFF events of every track of a MIDI sequence in a single pass
      * @param s the sequence to be read
-     * @throws Exception if the file is invalid
+     * @return the note events of the sequence, ordered by tick
      */
-    public static void readMIDI(LinkedList<MidiEvent> noteOn, LinkedList<MidiEvent> noteOff,
-                                Sequence s) {
-        //Sequence sequence = MidiSystem.getSequence(new File(fileName));
+    public static NoteEvents readMIDI(Sequence s) {
+        int capacity = 0;
         for (Track t : s.getTracks()) {
-            for (int i = 0; i < t.size(); i++) {
-                MidiEvent event = t.get(i);
-                if (event.getMessage() instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage) event.getMessage();
-                    if (sm.getCommand() == 0x90) {
-                        if (sm.getData2() != 0) {
-                            noteOn.add(event);
-                        } else {
-                            noteOff.add(event);
-                        }
-                    } else if (sm.getCommand() == 0x80){
-                        noteOff.add(event);
-                    }
+            capacity += t.size();
+        }
+        NoteEvents events = new NoteEvents(s.getResolution(), capacity);
+        Track[] tracks = s.getTracks();
+        for (int track = 0; track < tracks.length; track++) {
+            addNotes(tracks[track], track, events);
+            events.setTrackLength(track, tracks[track].ticks());
+        }
+        events.setTickLength(Math.max(events.getTickLength(), s.getTickLength()));
+        events.setTiming(TimingModel.read(s));
+        events.sortByTick();
+        return events;
+    }
+
+    /**
+     * Reads the NOTE_ON and NOTE_OFF events of a single track
+     * @param t the track to be read
+     * @param track the index of the track in its sequence
+     * @param ppq the resolution of the sequence in pulses per quarter note
+     * @return the note events of the track, ordered by tick
+     */
+    public static NoteEvents readMIDI(Track t, int track, int ppq) {
+        NoteEvents events = new NoteEvents(ppq, t.size());
+        addNotes(t, track, events);
+        events.setTrackLength(track, t.ticks());
+        events.setTickLength(Math.max(events.getTickLength(), t.ticks()));
+        events.sortByTick();
+        return events;
+    }
+
+    private static void addNotes(Track t, int track, NoteEvents events) {
+        for (int i = 0; i < t.size(); i++) {
+            MidiEvent event = t.get(i);
+            if (event.getMessage() instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage) event.getMessage();
+                if (sm.getCommand() == 0x90) {
+                    events.add(event.getTick(), track, sm.getChannel(), sm.getData1(), sm.getData2(),
+                            sm.getData2() != 0);
+                } else if (sm.getCommand() == 0x80){
+                    events.add(event.getTick(), track, sm.getChannel(), sm.getData1(), sm.getData2(), false);
                 }
             }
         }
     }
 
     /**
-     * A primitive method of finding the key
-     * @param noteOn the list of NOTE_ON events
-     * @return the key
+     * Finds the key of a solo from the pitch classes of all of its notes
+     * @param events the note events of the sequence, ordered by tick
+     * @return the MIDI note of the tonic, placed at or above CHORD_REGISTER
+     */
+    public static int getKey(NoteEvents events) {
+        return getKey(divideSequence(events));
+    }
+
+    /**
+     * Finds the key of a solo from the pitch-class histograms of its measures
+     * @param measures the measures of the solo
+     * @return the MIDI note of the tonic, placed at or above CHORD_REGISTER
      */
-    public static int getKey(LinkedList<MidiEvent> noteOn) {
-        if (noteOn.getLast().getMessage() instanceof ShortMessage) {
-            ShortMessage lastNote = (ShortMessage) noteOn.getLast().getMessage();
-            return lastNote.getData1();
-        } else throw new IllegalArgumentException("Input list must contain only ShortMessages");
+    public static int getKey(MeasureGrid measures) {
+        int total = 0;
+        for (int m = 0; m < measures.size(); m++) {
+            for (int pc = 0; pc < 12; pc++) {
+                total += measures.getPitchClassCount(m, pc);
+            }
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("Input must contain at least one NOTE_ON event");
+        }
+        return HarmonyAnalyzer.placeRoot(HarmonyAnalyzer.tonic(HarmonyAnalyzer.detectKey(measures)), CHORD_REGISTER);
     }
 
     /**
      * A debugging tool for viewing a measure on the console
      * @param measure the measure to be printed
      */
-    private static void printMeasure(Chord[] measure) {
-        for (Chord chord : measure) {
+    private static void printMeasure(Progression measure) {
+        for (int i = 0; i < measure.size(); i++) {
+            Chord chord = measure.getChord(i);
             if (chord == null) {
                 System.out.print("-");
             } else {
@@ -385,13 +852,12 @@ public class RhythmGenerator {
     }
 
     public static void main(String[] args) throws Exception {
-        try {
-            Sequence sequence = writeOnSolo("Parker,_Charlie_-_Donna_Lee.midi");
-            File f = new File("compSolo2.mid");
-            MidiSystem.write(sequence,1,f);
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+        if (args.length > 0) {
+            BatchRunner.main(args);
+            return;
         }
+        Sequence sequence = writeOnSolo("Parker,_Charlie_-_Donna_Lee.midi");
+        MIDIWriter.write(sequence, 1, "compSolo2.mid");
 //        Sequence sequence = MidiSystem.getSequence(new File("Parker,_Charlie_-_Donna_Lee.midi"));
 //        int[][] measures = divideSequence(sequence);
 //        int[][][] rhythm = new int[measures.length][2][measures[0].length];
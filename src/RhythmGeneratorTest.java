@@ -1,49 +1,701 @@
-//import javax.sound.midi.MidiEvent;
-//import javax.sound.midi.ShortMessage;
-//import java.util.LinkedList;
-//import java.util.Queue;
-//
-//import static org.junit.Assert.*;
-//
-//public class RhythmGeneratorTest {
-//    @org.junit.Test
-//    public void generateMeasure() throws Exception {
-//    }
-//
-//    @org.junit.Test
-//    public void generateMeasure1() throws Exception {
-//    }
-//
-//    @org.junit.Test
-//    public void fillSequence() throws Exception {
-//    }
-//
-//    @org.junit.Test
-//    public void writeToMIDI() throws Exception {
-//    }
-//
-//    @org.junit.Test
-//    public void readMIDITest() throws Exception {
-//        LinkedList<ShortMessage> noteOn = new LinkedList<>();
-//        LinkedList<ShortMessage> noteOff = new LinkedList<>();
-//        RhythmGenerator.readMIDI(noteOn, noteOff, "Parker,_Charlie_-_Donna_Lee.midi");
-//        assertEquals(noteOn.size(), noteOff.size());
-//    }
-//
-//    @org.junit.Test
-//    public void getKeyTest() throws Exception {
-//        LinkedList<ShortMessage> noteOn = new LinkedList<>();
-//        LinkedList<ShortMessage> noteOff = new LinkedList<>();
-//        RhythmGenerator.readMIDI(noteOn, noteOff, "Parker,_Charlie_-_Donna_Lee.midi");
-//        int key = RhythmGenerator.getKey(noteOn);
-//    }
-//
-//    @org.junit.Test
-//    public void printMeasure() throws Exception {
-//    }
-//
-//    @org.junit.Test
-//    public void main() throws Exception {
-//    }
-//
-//}
\ No newline at end of file
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Guards the output of the pipeline while it is optimized.
+ * Golden tests pin a digest of the notes written onto the bundled solos, so any
+ * change to what is played shows up; property tests check what must hold of
+ * the backing of any solo, on random sequences. Reference tests rebuild the
+ * bundled files the generator once wrote, from the inputs that wrote them, and
+ * compare them note by note. Throughput is left to the JMH benchmarks. Run from
+ * the project directory, which holds the bundled files.
+ */
+public class RhythmGeneratorTest {
+
+    private static final String[] GOLDEN_FILES = {
+            "FreddyGreen.mid", "Charleston.mid", "up13.mid", "up24.mid", "compSolo2.mid",
+            "Parker,_Charlie_-_Donna_Lee.midi"
+    };
+
+    // the digests of the notes of every track of writeOnSolo on GOLDEN_FILES with the default settings
+    private static final String[] GOLDEN = {
+            "9bd602c2c426380dcfe6a1459b3ede79", "893b2eaa8b92f435e0c36c5b2039488c", "125f9ed03ca30988caf14a25b4900e97",
+            "7692db59891fe86f8ee138c24835547b", "b198d9681db361da3270e705281f763e", "990b60cb1c8d9d3ebdf525900d6d94d9"
+    };
+
+    // the same with voice leading; solos that stay on one chord keep their root-position voicing
+    private static final String[] GOLDEN_VOICED = {
+            "9bd602c2c426380dcfe6a1459b3ede79", "893b2eaa8b92f435e0c36c5b2039488c", "125f9ed03ca30988caf14a25b4900e97",
+            "7692db59891fe86f8ee138c24835547b", "115c6a864c1ae9c69bfea064be05fb6b", "505b50a5642821d66e5b6c168f7f0216"
+    };
+
+    private static final int RANDOM_SOLOS = 40;
+
+    @Test
+    public void goldenOutputs() throws Exception {
+        for (int i = 0; i < GOLDEN_FILES.length; i++) {
+            Sequence s = RhythmGenerator.writeOnSolo(GOLDEN_FILES[i]);
+            assertEquals(GOLDEN_FILES[i], GOLDEN[i], digest(s));
+        }
+    }
+
+    @Test
+    public void goldenVoicedOutputs() throws Exception {
+        GeneratorSettings settings = new GeneratorSettings().setVoiceLeading(true);
+        for (int i = 0; i < GOLDEN_FILES.length; i++) {
+            Sequence s = RhythmGenerator.writeOnSolo(GOLDEN_FILES[i], settings, RunMetrics.DISABLED);
+            assertEquals(GOLDEN_FILES[i], GOLDEN_VOICED[i], digest(s));
+        }
+    }
+
+    @Test
+    public void goldenBatchOutputs() throws Exception {
+        Path dir = Files.createTempDirectory("compsolo");
+        try {
+            for (int i = 0; i < GOLDEN_FILES.length; i++) {
+                File input = dir.resolve(GOLDEN_FILES[i]).toFile();
+                Files.copy(new File(GOLDEN_FILES[i]).toPath(), input.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                BatchRunner.Result result = BatchRunner.accompany(input, new GeneratorSettings());
+                assertNull(GOLDEN_FILES[i], result.getError());
+                assertEquals(GOLDEN_FILES[i], GOLDEN[i], digest(MidiSystem.getSequence(result.getOutput())));
+            }
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    /**
+     * FreddyGreen.mid, Charleston.mid, up13.mid and up24.mid are single measures on A-flat written by writeToMIDI.
+     * The first version shared one chord between the hits of a measure and set its length on every hit, so each
+     * hit took the length of the last one: both Charleston hits are eighths, not a dotted quarter and an eighth.
+     * FreddyGreen.mid is older than the patterns in the history, which strike sus4 quarters; it holds the sus2
+     * eighths rebuilt here.
+     */
+    @Test
+    public void bundledPatternsMatchTheMeasuresThatWroteThem() throws Exception {
+        Chord sus4 = Chord.of(80, "sus4");
+        Progression[] measures = {
+                RhythmGenerator.generateMeasure(Chord.of(80, "sus2"), RhythmGenerator.beats[0],
+                        new int[]{8, 0, 8, 0, 8, 0, 8, 0}),
+                RhythmGenerator.generateMeasure(sus4, RhythmGenerator.beats[1], new int[]{8, 0, 0, 8, 0, 0, 0, 0}),
+                RhythmGenerator.generateMeasure(sus4, 2),
+                RhythmGenerator.generateMeasure(sus4, 3)
+        };
+        String[] files = {"FreddyGreen.mid", "Charleston.mid", "up13.mid", "up24.mid"};
+        Path dir = Files.createTempDirectory("compsolo");
+        try {
+            for (int i = 0; i < files.length; i++) {
+                String file = dir.resolve(files[i]).toString();
+                RhythmGenerator.writeToMIDI(measures[i], 960, file);
+                Sequence expected = MidiSystem.getSequence(new File(file));
+                Sequence bundled = MidiSystem.getSequence(new File(files[i]));
+                assertEquals(files[i], expected.getResolution(), bundled.getResolution());
+                assertEquals(files[i], expected.getTracks().length, bundled.getTracks().length);
+                assertEquals(files[i], notes(expected.getTracks()[0]), notes(bundled.getTracks()[0]));
+            }
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    /**
+     * compSolo2.mid is the first writeOnSolo on Parker,_Charlie_-_Donna_Lee.midi, which is a recording and not a
+     * generator output. That version keyed a ii-V-I-I cycle on the last note of the solo, which the legacy
+     * fillSequence still plays, and added the backing at velocity 60 into the solo track itself. Like the
+     * patterns, every hit of a measure took the length of its last hit. compSolo.mid and compSolo1.mid come from
+     * versions that are not in the history, so there is nothing to rebuild them from.
+     */
+    @Test
+    public void compSolo2MatchesTheFirstBackingOfTheSolo() throws Exception {
+        Sequence solo = MidiSystem.getSequence(new File("Parker,_Charlie_-_Donna_Lee.midi"));
+        int ppq = solo.getResolution();
+        int[][][] rhythm = RhythmGenerator.generateRhythm(RhythmGenerator.divideSequence(solo));
+        for (int[][] measure : rhythm) {
+            int last = 0;
+            for (int length : measure[1]) {
+                last = length != 0 ? length : last;
+            }
+            for (int i = 0; i < measure[1].length; i++) {
+                measure[1][i] = measure[1][i] != 0 ? last : 0;
+            }
+        }
+        NoteEvents events = RhythmGenerator.readMIDI(solo);
+        int key = -1;
+        for (int i = 0; i < events.size(); i++) {
+            key = events.isNoteOn(i) ? events.getPitch(i) : key;
+        }
+
+        Sequence bundled = MidiSystem.getSequence(new File("compSolo2.mid"));
+        assertEquals(ppq, bundled.getResolution());
+        assertEquals(solo.getTracks().length, bundled.getTracks().length);
+        for (int track = 0; track < solo.getTracks().length; track++) {
+            Track t = solo.getTracks()[track];
+            EventBuilder backing = new EventBuilder();
+            RhythmGenerator.addBacking(RhythmGenerator.fillSequence(t, ppq, key, rhythm), new TimingModel(ppq),
+                    new GeneratorSettings(), backing);
+            List<String> expected = notes(t);
+            for (int i = 0; i < backing.size(); i++) {
+                expected.add(note(backing.getTick(i), backing.getStatus(i), backing.getData1(i),
+                        backing.getData2(i)));
+            }
+            expected.sort(BY_TICK);
+            assertEquals("track " + track, expected, notes(bundled.getTracks()[track]));
+        }
+    }
+
+    @Test
+    public void randomSolosHaveWellFormedBackings() throws Exception {
+        for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+            Sequence solo = randomSolo(new Random(seed), 16);
+            for (GeneratorSettings settings : settingsVariants()) {
+                String context = "seed " + seed + ", " + settings;
+                Sequence s = accompanied(solo, settings);
+                checkBacking(context, solo, s, settings);
+            }
+        }
+    }
+
+    @Test
+    public void randomSolosAreDeterministic() throws Exception {
+        for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+            Sequence solo = randomSolo(new Random(seed), 16);
+            String parallel = digest(accompanied(solo, new GeneratorSettings()));
+            String serial = digest(accompanied(solo, new GeneratorSettings().setParallel(false)));
+            assertEquals("seed " + seed, parallel, serial);
+            assertEquals("seed " + seed, parallel, digest(accompanied(solo, new GeneratorSettings())));
+        }
+    }
+
+    @Test
+    public void randomSolosSurviveTheBatchRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("compsolo");
+        try {
+            for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+                Sequence solo = randomSolo(new Random(seed), 16);
+                File input = dir.resolve("solo" + seed + ".mid").toFile();
+                MIDIWriter.write(solo, 1, input.getPath());
+                GeneratorSettings settings = new GeneratorSettings();
+                BatchRunner.Result result = BatchRunner.accompany(input, settings);
+                assertNull("seed " + seed, result.getError());
+                Sequence written = MidiSystem.getSequence(result.getOutput());
+                checkBacking("seed " + seed, solo, written, settings);
+                assertEquals("seed " + seed, digest(accompanied(solo, settings)), digest(written));
+            }
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void savedAnalysesAccompanyLikeTheSolo() throws Exception {
+        Path dir = Files.createTempDirectory("compsolo");
+        Path analyses = Files.createDirectory(dir.resolve("analyses"));
+        try {
+            for (int seed = 0; seed < RANDOM_SOLOS; seed += 4) {
+                Sequence solo = randomSolo(new Random(seed), 16);
+                File input = dir.resolve("solo" + seed + ".mid").toFile();
+                MIDIWriter.write(solo, 1, input.getPath());
+                GeneratorSettings[] variants = settingsVariants();
+                for (int v = 0; v < variants.length; v++) {
+                    String context = "seed " + seed + ", " + variants[v];
+                    RunMetrics metrics = new RunMetrics(input.getPath());
+                    BatchRunner.Result result = BatchRunner.accompany(input, variants[v].setAnalyses(analyses),
+                            metrics);
+                    assertNull(context, result.getError());
+                    assertEquals(context, digest(accompanied(solo, variants[v])),
+                            digest(MidiSystem.getSequence(result.getOutput())));
+                    // only the first settings analyze the solo; the rest generate from the saved analysis
+                    assertEquals(context, v == 0 ? 0 : 1, metrics.getCount(RunMetrics.Counter.ANALYSIS_HITS));
+                    // voicing the chords is timed on its own, not as analysis
+                    assertEquals(context, v == 0, metrics.getNanos(RunMetrics.Stage.ANALYZE) > 0);
+                    assertEquals(context, variants[v].isVoiceLeading(), metrics.getNanos(RunMetrics.Stage.VOICE) > 0);
+                }
+            }
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void analysisFilesRoundTripAndRefuseDamage() throws Exception {
+        Path dir = Files.createTempDirectory("compsolo");
+        try {
+            for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+                NoteEvents events = RhythmGenerator.readMIDI(randomSolo(new Random(seed), 16));
+                GeneratorSettings settings = new GeneratorSettings();
+                AnalysisFile analysis = RhythmGenerator.analyze(events, settings, RunMetrics.DISABLED);
+                Path file = dir.resolve(seed + AnalysisFile.SUFFIX);
+                analysis.write(file);
+                AnalysisFile read = AnalysisFile.read(file);
+                assertEquals("seed " + seed, ResultCache.key(analysis, settings), ResultCache.key(read, settings));
+                assertEquals("seed " + seed, digest(RhythmGenerator.accompany(events, settings)),
+                        digest(RhythmGenerator.accompany(read, settings, RunMetrics.DISABLED)));
+
+                byte[] bytes = Files.readAllBytes(file);
+                for (int cut : new int[]{0, 4, 40, bytes.length / 2, bytes.length - 1}) {
+                    try {
+                        AnalysisFile.decode(ByteBuffer.wrap(bytes, 0, cut));
+                        fail("seed " + seed + ", cut at " + cut);
+                    } catch (IOException e) {
+                        // expected
+                    }
+                }
+                bytes[4]++;
+                try {
+                    AnalysisFile.decode(ByteBuffer.wrap(bytes));
+                    fail("seed " + seed + ", another format");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void divideSequenceMarksEveryOnset() throws Exception {
+        for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+            Sequence solo = randomSolo(new Random(seed), 16);
+            NoteEvents events = RhythmGenerator.readMIDI(solo);
+            TimingModel timing = events.getTiming();
+            MeasureGrid grid = RhythmGenerator.divideSequence(events);
+            assertEquals("seed " + seed, timing.measureAt(events.getTickLength()) + 1, grid.size());
+            int perMeasure = 0;
+            for (int m = 0; m < grid.size(); m++) {
+                perMeasure += grid.onsetCount(m);
+            }
+            int onsets = 0;
+            for (int i = 0; i < events.size(); i++) {
+                if (events.isNoteOn(i)) {
+                    onsets++;
+                    long m = timing.measureAt(events.getTick(i));
+                    assertTrue("seed " + seed + ", tick " + events.getTick(i), grid.onsetCount((int) m) > 0);
+                }
+            }
+            assertTrue("seed " + seed, perMeasure > 0 && perMeasure <= onsets);
+        }
+    }
+
+    @Test
+    public void fillSequenceStrikesOnlyWithinTheSolo() throws Exception {
+        for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+            Sequence solo = randomSolo(new Random(seed), 16);
+            NoteEvents events = RhythmGenerator.readMIDI(solo);
+            TimingModel timing = events.getTiming();
+            MeasureGrid grid = RhythmGenerator.divideSequence(events);
+            Chord[] chords = HarmonyAnalyzer.detectChords(grid, HarmonyAnalyzer.detectKey(grid),
+                    RhythmGenerator.CHORD_REGISTER);
+            assertEquals("seed " + seed, grid.size(), chords.length);
+            Progression p = RhythmGenerator.fillSequence(timing, events.getTickLength(), chords,
+                    RhythmGenerator.generateRhythm(grid));
+            for (int i = 0; i < p.size(); i++) {
+                if (p.getChord(i) != null) {
+                    assertTrue("seed " + seed + ", slot " + i, timing.tickOfEighth(i) <= events.getTickLength());
+                    assertTrue("seed " + seed + ", slot " + i, p.getLength(i) > 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void timingKeepsTheEighthsOfACutMeasureWithinIt() throws Exception {
+        int ppq = 480;
+        // the second 4/4 measure is cut short after two beats by a change to 3/4
+        TimingModel timing = new TimingModel.Builder(ppq).timeSignature(6L * ppq, 3, 4).build();
+        assertEquals(4, timing.eighthsIn(1));
+        assertEquals(12, timing.firstEighth(2));
+        for (int m = 0; m < 4; m++) {
+            for (int e = 0; e < timing.eighthsIn(m); e++) {
+                long tick = timing.tickOfEighth(timing.firstEighth(m) + e);
+                assertTrue("measure " + m + ", eighth " + e, tick >= timing.measureStart(m));
+                assertTrue("measure " + m + ", eighth " + e, tick < timing.measureEnd(m));
+            }
+        }
+    }
+
+    @Test
+    public void timingDoesNotDriftWhenMeasuresSplitATick() {
+        // at one pulse per quarter a measure of 7/8 is three and a half ticks
+        TimingModel timing = new TimingModel.Builder(1).timeSignature(0, 7, 8).build();
+        assertEquals(350, timing.measureStart(100));
+        for (int m = 1; m < 1000; m++) {
+            long start = timing.measureStart(m);
+            assertEquals(7 * m / 2, start);
+            assertEquals("measure " + m, m, timing.measureAt(start));
+            assertEquals("measure " + m, m - 1, timing.measureAt(start - 1));
+            assertEquals("measure " + m, start, timing.measureEnd(m - 1));
+        }
+    }
+
+    @Test
+    public void legacyFillSequenceFollowsTheTimeSignatureOfTheTrack() throws Exception {
+        int ppq = 96;
+        Sequence s = new Sequence(Sequence.PPQ, ppq);
+        Track t = s.createTrack();
+        t.add(new MidiEvent(new MetaMessage(0x58, new byte[]{3, 2, 24, 8}, 4), 0));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 4L * 3 * ppq));
+        Progression p = RhythmGenerator.fillSequence(t, ppq, 60);
+        // four measures of six eighths
+        assertEquals(24, p.size());
+        for (int m = 0; m < 4; m++) {
+            for (int i = 0; i < 6; i++) {
+                Chord expected = RhythmGenerator.beats[2][i] != 0 ? RhythmGenerator.progressionChord(60, m) : null;
+                assertSame("measure " + m + ", eighth " + i, expected, p.getChord(m * 6 + i));
+            }
+        }
+    }
+
+    @Test
+    public void writeToMIDIRoundTrips() throws Exception {
+        Path dir = Files.createTempDirectory("compsolo");
+        try {
+            for (int beat = 0; beat < RhythmGenerator.beats.length; beat++) {
+                Progression p = RhythmGenerator.generateMeasure(Chord.of(60, "m7"), beat);
+                String file = dir.resolve("beat" + beat + ".mid").toString();
+                RhythmGenerator.writeToMIDI(p, 96, file);
+                Track t = MidiSystem.getSequence(new File(file)).getTracks()[0];
+                int hits = 0;
+                for (int i = 0; i < p.size(); i++) {
+                    hits += p.getChord(i) == null ? 0 : p.getChord(i).size();
+                }
+                assertEquals("beat " + beat, hits, checkNotes("beat " + beat, t));
+                // the track ends with the measure, or with its last note if that rings on
+                assertEquals("beat " + beat, Math.max(4L * 96, t.get(t.size() - 2).getTick()), t.ticks());
+            }
+        } finally {
+            deleteAll(dir.toFile());
+        }
+    }
+
+    @Test
+    public void humanizerSwingsOffBeatsAndKeepsVelocitiesAudible() throws Exception {
+        int ppq = 480;
+        TimingModel timing = new TimingModel(ppq);
+        EventBuilder events = new EventBuilder();
+        for (int eighth = 0; eighth < 64; eighth++) {
+            long on = timing.tickOfEighth(eighth);
+            events.addNote(on, on + ppq / 2, 0, 60, 1 + eighth % 2 * 126);
+        }
+        new Humanizer().setSwing(2 / 3.0).setVelocityCurve(3).setVelocityJitter(127).apply(events, timing);
+        events.sort();
+        for (int i = 0; i < events.size(); i++) {
+            long tick = events.getTick(i);
+            assertTrue("tick " + tick, tick % ppq == 0 || tick % ppq == 320);
+            if (events.getCommand(i) == ShortMessage.NOTE_ON) {
+                assertTrue("velocity " + events.getData2(i), events.getData2(i) >= 1 && events.getData2(i) <= 127);
+            }
+        }
+    }
+
+    @Test
+    public void humanizerIsDeterministic() throws Exception {
+        Humanizer humanizer = new Humanizer().setJitter(0.05).setVelocityJitter(10).setSeed(3);
+        for (int seed = 0; seed < RANDOM_SOLOS; seed++) {
+            Sequence solo = randomSolo(new Random(seed), 16);
+            String first = digest(accompanied(solo, new GeneratorSettings().setHumanizer(humanizer)));
+            String serial = digest(accompanied(solo,
+                    new GeneratorSettings().setHumanizer(humanizer).setParallel(false)));
+            assertEquals("seed " + seed, first, serial);
+            assertFalse("seed " + seed, first.equals(digest(accompanied(solo,
+                    new GeneratorSettings().setHumanizer(new Humanizer().setJitter(0.05).setSeed(4))))));
+        }
+    }
+
+    @Test
+    public void walkingBassPlaysQuartersFromRootToApproach() throws Exception {
+        int ppq = 480;
+        TimingModel timing = new TimingModel(ppq);
+        Chord[] chords = {Chord.of(60), Chord.of(65, "m"), Chord.of(67, "7"), Chord.of(60)};
+        EventBuilder bass = new EventBuilder();
+        WalkingBass.walk(timing, 4L * 4 * ppq, chords, 80, 1, bass);
+        bass.sort();
+        int[] pitches = new int[16];
+        int notes = 0;
+        for (int i = 0; i < bass.size(); i++) {
+            if (bass.getCommand(i) == ShortMessage.NOTE_ON) {
+                assertEquals(0, (bass.getTick(i) - 1) % ppq);
+                assertEquals(1, bass.getChannel(i));
+                int pitch = bass.getData1(i);
+                assertTrue("pitch " + pitch, pitch >= WalkingBass.LOWEST && pitch <= WalkingBass.HIGHEST);
+                pitches[notes++] = pitch;
+            }
+        }
+        assertEquals(16, notes);
+        for (int m = 0; m < chords.length; m++) {
+            assertEquals("measure " + m, chords[m].getKey() % 12, pitches[m * 4] % 12);
+            if (m + 1 < chords.length) {
+                assertEquals("measure " + m, 1, Math.abs(pitches[m * 4 + 3] - pitches[m * 4 + 4]));
+            }
+        }
+    }
+
+    @Test
+    public void progressionChordsAreFoldedOntoTheKeyboard() {
+        for (int root = -30; root < 160; root++) {
+            for (int m = 0; m < 4; m++) {
+                Chord chord = RhythmGenerator.progressionChord(root, m);
+                int key = m == 0 ? root + 2 : m == 1 ? root + 7 : root;
+                String modifier = m == 0 ? "m" : "";
+                int top = key + Chord.intervals(modifier)[Chord.intervals(modifier).length - 1];
+                assertEquals("root " + root, Math.floorMod(key, 12), chord.getKey() % 12);
+                assertEquals(modifier, chord.getModifier());
+                assertTrue("root " + root, chord.getNote(0) >= 0 && chord.getNote(chord.size() - 1) <= 127);
+                if (key >= 0 && top <= 127) {
+                    assertSame(Chord.of(key, modifier), chord);
+                }
+            }
+        }
+        // the name is the root alone, as it always was
+        assertEquals("D", RhythmGenerator.progressionChord(60, 0).getChordName());
+        assertEquals("m", RhythmGenerator.progressionChord(60, 0).getModifier());
+    }
+
+    /**
+     * @return the solo with its backing, as writeOnSolo writes it
+     */
+    private static Sequence accompanied(Sequence solo, GeneratorSettings settings) throws Exception {
+        return RhythmGenerator.writeOnSolo(solo, settings, RunMetrics.DISABLED);
+    }
+
+    private static GeneratorSettings[] settingsVariants() {
+        return new GeneratorSettings[]{
+                new GeneratorSettings(),
+                new GeneratorSettings().setParallel(false),
+                new GeneratorSettings().setLayout(GeneratorSettings.Layout.MERGED),
+                new GeneratorSettings().setVoiceLeading(true),
+                new GeneratorSettings().setStyles(StyleRegistry.builtIn()).setChannel(1).setVelocity(90),
+                new GeneratorSettings().setHumanizer(new Humanizer().setSwing(Humanizer.MAX_SWING)
+                        .setJitter(Humanizer.MAX_JITTER).setVelocityJitter(20).setVelocityCurve(2)
+                        .setAccents(0, 0, 127, 0, 0, 0, 127, 0).setSeed(7)),
+                new GeneratorSettings().setWalkingBass(true).setBassChannel(2),
+                new GeneratorSettings().setWalkingBass(true).setLayout(GeneratorSettings.Layout.MERGED)
+                        .setHumanizer(new Humanizer().setSwing(2.0 / 3).setJitter(Humanizer.MAX_JITTER).setSeed(3))
+        };
+    }
+
+    /**
+     * Checks the tracks of an accompanied solo: the solo tracks come first and unchanged, then one backing
+     * track per solo track holding notes, or a single one when merged, and as many bass tracks after them
+     * with a walking bass, with only well-formed notes.
+     */
+    private static void checkBacking(String context, Sequence solo, Sequence s, GeneratorSettings settings)
+            throws Exception {
+        Track[] in = solo.getTracks();
+        Track[] out = s.getTracks();
+        int withNotes = 0;
+        for (int i = 0; i < in.length; i++) {
+            assertEquals(context + ", track " + i, digest(in[i]), digest(out[i]));
+            if (noteCount(in[i]) > 0) {
+                withNotes++;
+            }
+        }
+        boolean separate = settings.getLayout() == GeneratorSettings.Layout.SEPARATE;
+        int backings = separate ? withNotes : Math.min(withNotes, 1);
+        assertEquals(context, in.length + backings * (settings.isWalkingBass() ? 2 : 1), out.length);
+        long end = solo.getTickLength();
+        for (int i = in.length; i < out.length; i++) {
+            boolean bass = i >= in.length + backings;
+            String track = context + (bass ? ", bass " : ", backing ") + i;
+            int notes = checkNotes(track, out[i]);
+            assertTrue(track, bass || notes > 0);
+            for (int e = 0; e < out[i].size(); e++) {
+                MidiMessage m = out[i].get(e).getMessage();
+                if (m instanceof ShortMessage && isNoteOn((ShortMessage) m)) {
+                    int channel = bass ? settings.getBassChannel() : settings.getChannel();
+                    assertEquals(track, channel, ((ShortMessage) m).getChannel());
+                    assertTrue(track + ", tick " + out[i].get(e).getTick(), out[i].get(e).getTick() <= end);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the ticks of a track never go back and that every NOTE_ON is ended by a NOTE_OFF of the
+     * same channel and pitch, with none left sounding at the end
+     * @return the number of notes of the track
+     */
+    private static int checkNotes(String context, Track t) {
+        int[] sounding = new int[16 * 128];
+        long last = 0;
+        int notes = 0;
+        for (int e = 0; e < t.size(); e++) {
+            MidiEvent event = t.get(e);
+            assertTrue(context + ", event " + e, event.getTick() >= last);
+            last = event.getTick();
+            if (!(event.getMessage() instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage m = (ShortMessage) event.getMessage();
+            int key = m.getChannel() * 128 + m.getData1();
+            if (isNoteOn(m)) {
+                sounding[key]++;
+                notes++;
+            } else if (isNoteOff(m)) {
+                assertTrue(context + ", NOTE_OFF without NOTE_ON at " + last, sounding[key] > 0);
+                sounding[key]--;
+            }
+        }
+        for (int key = 0; key < sounding.length; key++) {
+            assertEquals(context + ", stuck note " + key % 128 + " on channel " + key / 128, 0, sounding[key]);
+        }
+        return notes;
+    }
+
+    private static boolean isNoteOn(ShortMessage m) {
+        return m.getCommand() == ShortMessage.NOTE_ON && m.getData2() != 0;
+    }
+
+    private static boolean isNoteOff(ShortMessage m) {
+        return m.getCommand() == ShortMessage.NOTE_OFF || m.getCommand() == ShortMessage.NOTE_ON && m.getData2() == 0;
+    }
+
+    private static int noteCount(Track t) {
+        int notes = 0;
+        for (int e = 0; e < t.size(); e++) {
+            MidiMessage m = t.get(e).getMessage();
+            if (m instanceof ShortMessage && isNoteOn((ShortMessage) m)) {
+                notes++;
+            }
+        }
+        return notes;
+    }
+
+    // orders notes by tick, then by the rest of their text
+    private static final Comparator<String> BY_TICK = Comparator.<String>comparingLong(
+            n -> Long.parseLong(n.substring(0, n.indexOf(' ')))).thenComparing(Comparator.naturalOrder());
+
+    /**
+     * @return the notes of a track as text, ordered by tick, read the way digest reads them
+     */
+    private static List<String> notes(Track t) {
+        List<String> notes = new ArrayList<>();
+        for (int e = 0; e < t.size(); e++) {
+            MidiMessage m = t.get(e).getMessage();
+            if (m instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage) m;
+                if (isNoteOn(sm) || isNoteOff(sm)) {
+                    notes.add(note(t.get(e).getTick(), sm.getStatus(), sm.getData1(), sm.getData2()));
+                }
+            }
+        }
+        notes.sort(BY_TICK);
+        return notes;
+    }
+
+    private static String note(long tick, int status, int pitch, int velocity) {
+        boolean on = (status & 0xF0) == ShortMessage.NOTE_ON && velocity != 0;
+        return tick + (on ? " on " : " off ") + (status & 0x0F) + " " + pitch + (on ? " " + velocity : "");
+    }
+
+    /**
+     * A digest of the notes of every track, which does not depend on how the file encodes them:
+     * a NOTE_ON of velocity 0 reads as a NOTE_OFF, and the velocity of a NOTE_OFF is ignored
+     */
+    private static String digest(Sequence s) {
+        ContentHash hash = new ContentHash();
+        hash.add(s.getResolution());
+        for (Track t : s.getTracks()) {
+            hash.add(digest(t));
+        }
+        return hash.toHex();
+    }
+
+    private static String digest(EventBuilder[] tracks) {
+        ContentHash hash = new ContentHash();
+        for (EventBuilder track : tracks) {
+            track.sort();
+            hash.add(track.size());
+            for (int i = 0; i < track.size(); i++) {
+                hash.add(track.getTick(i)).add(track.getStatus(i) << 16 | track.getData1(i) << 8 | track.getData2(i));
+            }
+        }
+        return hash.toHex();
+    }
+
+    private static String digest(Track t) {
+        ContentHash hash = new ContentHash();
+        for (int e = 0; e < t.size(); e++) {
+            MidiMessage m = t.get(e).getMessage();
+            if (!(m instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage note = (ShortMessage) m;
+            if (isNoteOn(note)) {
+                hash.add(t.get(e).getTick()).add(ShortMessage.NOTE_ON | note.getChannel())
+                        .add(note.getData1()).add(note.getData2());
+            } else if (isNoteOff(note)) {
+                hash.add(t.get(e).getTick()).add(ShortMessage.NOTE_OFF | note.getChannel()).add(note.getData1());
+            }
+        }
+        return hash.toHex();
+    }
+
+    /**
+     * A random solo of one to three tracks, one of which may be empty, with overlapping notes, NOTE_ONs of
+     * velocity 0 for NOTE_OFFs, and sometimes a change of time signature halfway
+     */
+    private static Sequence randomSolo(Random random, int measures) throws Exception {
+        int[] resolutions = {96, 120, 480, 960};
+        int ppq = resolutions[random.nextInt(resolutions.length)];
+        Sequence s = new Sequence(Sequence.PPQ, ppq);
+        int tracks = 1 + random.nextInt(3);
+        long end = (long) measures * 4 * ppq;
+        for (int track = 0; track < tracks; track++) {
+            Track t = s.createTrack();
+            if (track == 0 && random.nextBoolean()) {
+                int[][] meters = {{3, 2}, {7, 3}, {5, 2}, {6, 3}};
+                int[] meter = meters[random.nextInt(meters.length)];
+                t.add(new MidiEvent(new MetaMessage(0x58, new byte[]{(byte) meter[0], (byte) meter[1], 24, 8}, 4),
+                        end / 2 / ppq * ppq));
+            }
+            if (track == 2 && random.nextBoolean()) {
+                continue;
+            }
+            int channel = random.nextInt(16);
+            long tick = random.nextInt(ppq);
+            while (tick < end) {
+                int pitch = 40 + random.nextInt(50);
+                long length = 1 + random.nextInt(2 * ppq);
+                t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, pitch, 1 + random.nextInt(127)),
+                        tick));
+                ShortMessage off = random.nextBoolean()
+                        ? new ShortMessage(ShortMessage.NOTE_OFF, channel, pitch, 64)
+                        : new ShortMessage(ShortMessage.NOTE_ON, channel, pitch, 0);
+                t.add(new MidiEvent(off, Math.min(tick + length, end)));
+                tick += random.nextInt(ppq);
+            }
+        }
+        return s;
+    }
+
+    private static void deleteAll(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+}
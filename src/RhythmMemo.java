@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+/**
+ * Remembers the gap rhythm of every distinct measure of onsets, so the repeated
+ * measures of heads and riffs are only worked out once.
+ * The gap rhythm of a measure depends on nothing but its onset bits and its
+ * length, so those are the key. Keys are stored whole in a flat open-addressing
+ * table next to a fingerprint of each, and a lookup compares the fingerprint
+ * first and the onset words only when it matches. The table never grows: a key
+ * that finds no free place within a few probes replaces the one in its home
+ * place. Rhythms are shared between the measures that hit the same entry, so
+ * they must not be written to. A memo is not safe for use by several threads.
+ */
+public class RhythmMemo {
+
+    private static final int MAX_PROBES = 8;
+
+    private final int wordsPerMeasure;
+    private final int slotsPerEighth;
+    private final int mask;
+    // fingerprints[e]: the fingerprint of entry e, 0 for a free place
+    private final long[] fingerprints;
+    // words[e * wordsPerMeasure + w]: the onset words of entry e
+    private final long[] words;
+    private final int[] eighths;
+    private final int[][][] rhythms;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity the most rhythms remembered at once; the table has twice the room, rounded up to a
+     *                 power of two, so probes stay short
+     * @param wordsPerMeasure the onset words of a measure of the grids the memo is used with
+     * @param slotsPerEighth the onset slots of an eighth note of the grids the memo is used with
+     */
+    public RhythmMemo(int capacity, int wordsPerMeasure, int slotsPerEighth) {
+        if (capacity <= 0 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^24");
+        }
+        if (wordsPerMeasure <= 0 || slotsPerEighth <= 0) {
+            throw new IllegalArgumentException("A measure must have at least one word and slot");
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) * 4 - 1);
+        this.wordsPerMeasure = wordsPerMeasure;
+        this.slotsPerEighth = slotsPerEighth;
+        mask = size - 1;
+        fingerprints = new long[size];
+        words = new long[size * wordsPerMeasure];
+        eighths = new int[size];
+        rhythms = new int[size][][];
+    }
+
+    /**
+     * A memo for the measures of a grid, with room for every measure of it up to a bound
+     * @param grid the grid
+     * @param maxCapacity the most rhythms remembered at once
+     */
+    public RhythmMemo(MeasureGrid grid, int maxCapacity) {
+        this(Math.max(1, Math.min(grid.size(), maxCapacity)), grid.getWordsPerMeasure(), grid.getSlotsPerEighth());
+    }
+
+    /**
+     * Looks up the gap rhythm of a measure, working it out on a miss
+     * @param grid the onsets of the solo, shaped like the grids this memo was made for
+     * @param measure the measure
+     * @return a 2 x eighths array with the rhythm pattern and the beat lengths, shared with equal measures
+     */
+    public int[][] rhythmFor(MeasureGrid grid, int measure) {
+        if (grid.getWordsPerMeasure() != wordsPerMeasure || grid.getSlotsPerEighth() != slotsPerEighth) {
+            throw new IllegalArgumentException("The grid does not have the measures this memo was made for");
+        }
+        int length = grid.getEighths(measure);
+        long fingerprint = fingerprint(grid, measure, length);
+        int home = (int) fingerprint & mask;
+        int free = -1;
+        for (int p = 0; p < MAX_PROBES; p++) {
+            int e = (home + p) & mask;
+            if (fingerprints[e] == 0) {
+                free = e;
+                break;
+            }
+            if (fingerprints[e] == fingerprint && eighths[e] == length && sameWords(grid, measure, e)) {
+                hits++;
+                return rhythms[e];
+            }
+        }
+
+        misses++;
+        int[][] rhythm = new int[2][length];
+        RhythmGenerator.generateRhythm(grid, measure, rhythm);
+        int e = free;
+        if (e < 0) {
+            e = home;
+            evictions++;
+        }
+        fingerprints[e] = fingerprint;
+        eighths[e] = length;
+        for (int w = 0; w < wordsPerMeasure; w++) {
+            words[e * wordsPerMeasure + w] = grid.getWord(measure, w);
+        }
+        rhythms[e] = rhythm;
+        return rhythm;
+    }
+
+    private long fingerprint(MeasureGrid grid, int measure, int length) {
+        // one multiply per word; the words themselves are compared on a fingerprint match
+        long h = length * 0x9E3779B97F4A7C15L;
+        for (int w = 0; w < wordsPerMeasure; w++) {
+            h = (h ^ grid.getWord(measure, w)) * 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 29;
+        }
+        // 0 marks a free place
+        return h != 0 ? h : 1;
+    }
+
+    private boolean sameWords(MeasureGrid grid, int measure, int e) {
+        for (int w = 0; w < wordsPerMeasure; w++) {
+            if (words[e * wordsPerMeasure + w] != grid.getWord(measure, w)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets every rhythm, keeping the counters
+     */
+    public void clear() {
+        Arrays.fill(fingerprints, 0L);
+        Arrays.fill(rhythms, null);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return how many rhythms were replaced because their neighbourhood of the table was full
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the share of lookups that found their measure, a measure of how repetitive the solo is
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return the number of places in the table
+     */
+    public int getCapacity() {
+        return fingerprints.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %.1f%% hit rate", hits, misses, evictions,
+                getHitRate() * 100);
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the memo of gap rhythms: it answers what generateRhythm works out for every
+ * measure, works out each distinct measure once, shares the rhythm of equal
+ * measures, and stays correct when its table is too small for the solo.
+ */
+public class RhythmMemoTest {
+
+    private static final int SLOTS = RhythmGenerator.noteRes;
+
+    @Test
+    public void answersWhatGenerateRhythmWorksOut() {
+        MeasureGrid grid = repetitiveGrid(new Random(1), 200, 12);
+        RhythmMemo memo = new RhythmMemo(grid, RhythmGenerator.RHYTHM_MEMO_CAPACITY);
+        int[][][] expected = RhythmGenerator.generateRhythm(grid);
+        for (int m = 0; m < grid.size(); m++) {
+            assertArrayEquals("measure " + m, expected[m][0], memo.rhythmFor(grid, m)[0]);
+            assertArrayEquals("measure " + m, expected[m][1], memo.rhythmFor(grid, m)[1]);
+        }
+    }
+
+    @Test
+    public void worksOutEachDistinctMeasureOnce() {
+        MeasureGrid grid = repetitiveGrid(new Random(2), 200, 12);
+        RhythmMemo memo = new RhythmMemo(grid, RhythmGenerator.RHYTHM_MEMO_CAPACITY);
+        rhythms(grid, memo);
+        int distinct = distinctMeasures(grid);
+        assertEquals(distinct, memo.getMisses());
+        assertEquals(grid.size() - distinct, memo.getHits());
+        assertEquals(0, memo.getEvictions());
+        assertEquals((double) (grid.size() - distinct) / grid.size(), memo.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void equalMeasuresShareTheirRhythm() {
+        MeasureGrid grid = new MeasureGrid(3, SLOTS);
+        for (int m = 0; m < 3; m += 2) {
+            grid.addOnset(m, 0, 60);
+            grid.addOnset(m, 9, 64);
+        }
+        grid.addOnset(1, 3, 62);
+        RhythmMemo memo = new RhythmMemo(grid, 16);
+        int[][] first = memo.rhythmFor(grid, 0);
+        assertNotSame(first, memo.rhythmFor(grid, 1));
+        assertSame(first, memo.rhythmFor(grid, 2));
+    }
+
+    @Test
+    public void staysCorrectWhenTheTableIsFull() {
+        // every measure distinct, far more of them than the smallest table has places
+        MeasureGrid grid = repetitiveGrid(new Random(3), 500, 500);
+        RhythmMemo memo = new RhythmMemo(1, grid.getWordsPerMeasure(), grid.getSlotsPerEighth());
+        assertTrue(memo.getCapacity() < distinctMeasures(grid));
+        int[][][] expected = RhythmGenerator.generateRhythm(grid);
+        int[][][] remembered = rhythms(grid, memo);
+        for (int m = 0; m < grid.size(); m++) {
+            assertArrayEquals("measure " + m, expected[m][0], remembered[m][0]);
+            assertArrayEquals("measure " + m, expected[m][1], remembered[m][1]);
+        }
+        assertTrue(memo.getEvictions() > 0);
+    }
+
+    @Test
+    public void measuresOfOtherLengthsAreNotConfused() {
+        // the same onsets in a measure of 4/4 and one of 3/4
+        TimingModel timing = new TimingModel.Builder(480).timeSignature(4 * 480, 3, 4).build();
+        MeasureGrid grid = new MeasureGrid(timing, 2, SLOTS / 8);
+        grid.addOnset(0, 0, 60);
+        grid.addOnset(1, 0, 60);
+        RhythmMemo memo = new RhythmMemo(grid, 16);
+        assertEquals(8, memo.rhythmFor(grid, 0)[0].length);
+        assertEquals(6, memo.rhythmFor(grid, 1)[0].length);
+        assertEquals(2, memo.getMisses());
+    }
+
+    @Test
+    public void clearForgetsTheRhythmsAndKeepsTheCounters() {
+        MeasureGrid grid = repetitiveGrid(new Random(4), 20, 4);
+        RhythmMemo memo = new RhythmMemo(grid, 64);
+        rhythms(grid, memo);
+        long misses = memo.getMisses();
+        memo.clear();
+        assertEquals(misses, memo.getMisses());
+        memo.rhythmFor(grid, 0);
+        assertEquals(misses + 1, memo.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGridsOfAnotherShape() {
+        RhythmMemo memo = new RhythmMemo(16, 1, SLOTS / 8);
+        memo.rhythmFor(new MeasureGrid(1, SLOTS * 8), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyMemo() {
+        new RhythmMemo(0, 1, SLOTS / 8);
+    }
+
+    /**
+     * A grid of 4/4 measures, each a copy of one of a few random measures
+     */
+    private static MeasureGrid repetitiveGrid(Random random, int measures, int patterns) {
+        boolean[][] onsets = new boolean[patterns][SLOTS];
+        for (boolean[] pattern : onsets) {
+            for (int s = 0; s < SLOTS; s++) {
+                pattern[s] = random.nextInt(3) == 0;
+            }
+        }
+        MeasureGrid grid = new MeasureGrid(measures, SLOTS);
+        for (int m = 0; m < measures; m++) {
+            boolean[] pattern = onsets[m < patterns ? m : random.nextInt(patterns)];
+            for (int s = 0; s < SLOTS; s++) {
+                if (pattern[s]) {
+                    grid.addOnset(m, s, 60 + s);
+                }
+            }
+        }
+        return grid;
+    }
+
+    private static int distinctMeasures(MeasureGrid grid) {
+        int distinct = 0;
+        for (int m = 0; m < grid.size(); m++) {
+            boolean seen = false;
+            for (int earlier = 0; earlier < m && !seen; earlier++) {
+                seen = sameOnsets(grid, m, earlier);
+            }
+            distinct += seen ? 0 : 1;
+        }
+        return distinct;
+    }
+
+    /**
+     * @return the rhythm of every measure of the grid, from the memo
+     */
+    private static int[][][] rhythms(MeasureGrid grid, RhythmMemo memo) {
+        int[][][] rhythm = new int[grid.size()][][];
+        for (int m = 0; m < grid.size(); m++) {
+            rhythm[m] = memo.rhythmFor(grid, m);
+        }
+        return rhythm;
+    }
+
+    private static boolean sameOnsets(MeasureGrid grid, int m, int n) {
+        for (int w = 0; w < grid.getWordsPerMeasure(); w++) {
+            if (grid.getWord(m, w) != grid.getWord(n, w)) {
+                return false;
+            }
+        }
+        return grid.getEighths(m) == grid.getEighths(n);
+    }
+}
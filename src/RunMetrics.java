@@ -0,0 +1,268 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stage timings and counts of accompanying one file, or the totals of a batch.
+ * A stage is timed by taking start() and allocated() before it and passing
+ * them to stop() after it; stages may run at once on several threads, as the
+ * tracks of a file do, and their times and allocations add up. Allocation is
+ * measured per thread where the JVM supports it and reads as 0 elsewhere.
+ * DISABLED records nothing: start() and allocated() return 0 without reading a
+ * clock, and stop() and count() return at once, so instrumented code costs a
+ * field read and a branch per stage when no one is listening.
+ * Metrics can be written as a JSON object or a CSV row.
+ */
+public class RunMetrics {
+
+    /**
+     * The timed stages of the pipeline
+     */
+    public enum Stage {
+        READ, DIVIDE, ANALYZE, RHYTHM, VOICE, FILL, WRITE, RENDER
+    }
+
+    /**
+     * The counted quantities of the pipeline
+     */
+    public enum Counter {
+        /** note events read from the solo */
+        EVENTS,
+        /** tracks given a backing */
+        TRACKS,
+        /** measures analyzed over every track */
+        MEASURES,
+        /** backing NOTE_ONs produced */
+        NOTES_EMITTED,
+        /** files whose backing came from the result cache */
+        CACHE_HITS,
+        /** files whose analysis was read from an analysis file */
+        ANALYSIS_HITS,
+        /** files that failed */
+        FAILURES
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+    public static final RunMetrics DISABLED = new RunMetrics("", false);
+
+    private final String name;
+    private final boolean enabled;
+    private final AtomicLongArray nanos = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray bytes = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray counts = new AtomicLongArray(COUNTERS.length);
+    private volatile long totalNanos;
+
+    private RunMetrics(String name, boolean enabled) {
+        this.name = name;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param name what the metrics are of, usually the path of a file
+     */
+    public RunMetrics(String name) {
+        this(name, true);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        try {
+            if (!bean.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            if (!bean.isThreadAllocatedMemoryEnabled()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+            }
+            return bean;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the start of a stage, to be passed to stop
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, to be passed to stop, or 0 if they cannot be measured
+     */
+    public long allocated() {
+        return enabled && ALLOCATION != null ? ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Records a stage that ran on this thread
+     * @param stage the stage
+     * @param startNanos what start returned before the stage
+     * @param startBytes what allocated returned before the stage
+     */
+    public void stop(Stage stage, long startNanos, long startBytes) {
+        if (!enabled) {
+            return;
+        }
+        nanos.addAndGet(stage.ordinal(), System.nanoTime() - startNanos);
+        if (ALLOCATION != null) {
+            bytes.addAndGet(stage.ordinal(), allocated() - startBytes);
+        }
+    }
+
+    /**
+     * @param counter the counter
+     * @param amount how much to add to it
+     */
+    public void count(Counter counter, long amount) {
+        if (enabled) {
+            counts.addAndGet(counter.ordinal(), amount);
+        }
+    }
+
+    /**
+     * @param nanos the wall-clock time of the whole run, which may be less than the sum of parallel stages
+     */
+    public void setTotalNanos(long nanos) {
+        if (enabled) {
+            totalNanos = nanos;
+        }
+    }
+
+    /**
+     * Adds the stages and counts of other metrics to these, as for the totals of a batch
+     * @param others the metrics to add
+     */
+    public void addAll(List<RunMetrics> others) {
+        if (!enabled) {
+            return;
+        }
+        for (RunMetrics other : others) {
+            for (int s = 0; s < STAGES.length; s++) {
+                nanos.addAndGet(s, other.nanos.get(s));
+                bytes.addAndGet(s, other.bytes.get(s));
+            }
+            for (int c = 0; c < COUNTERS.length; c++) {
+                counts.addAndGet(c, other.counts.get(c));
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getNanos(Stage stage) {
+        return nanos.get(stage.ordinal());
+    }
+
+    public long getBytes(Stage stage) {
+        return bytes.get(stage.ordinal());
+    }
+
+    public long getCount(Counter counter) {
+        return counts.get(counter.ordinal());
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the metrics as a JSON object
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\":").append(quote(name)).append(",\"totalNanos\":").append(totalNanos);
+        json.append(",\"stages\":{");
+        for (int s = 0; s < STAGES.length; s++) {
+            json.append(s == 0 ? "" : ",").append(quote(key(STAGES[s]))).append(":{\"nanos\":")
+                    .append(nanos.get(s)).append(",\"bytes\":").append(bytes.get(s)).append('}');
+        }
+        json.append("},\"counters\":{");
+        for (int c = 0; c < COUNTERS.length; c++) {
+            json.append(c == 0 ? "" : ",").append(quote(key(COUNTERS[c]))).append(':').append(counts.get(c));
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * @return the names of the columns of toCsv
+     */
+    public static String csvHeader() {
+        StringBuilder csv = new StringBuilder("name,totalNanos");
+        for (Stage stage : STAGES) {
+            csv.append(',').append(key(stage)).append("Nanos,").append(key(stage)).append("Bytes");
+        }
+        for (Counter counter : COUNTERS) {
+            csv.append(',').append(key(counter));
+        }
+        return csv.toString();
+    }
+
+    /**
+     * @return the metrics as a CSV row, in the columns of csvHeader
+     */
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder();
+        csv.append('"').append(name.replace("\"", "\"\"")).append("\",").append(totalNanos);
+        for (int s = 0; s < STAGES.length; s++) {
+            csv.append(',').append(nanos.get(s)).append(',').append(bytes.get(s));
+        }
+        for (int c = 0; c < COUNTERS.length; c++) {
+            csv.append(',').append(counts.get(c));
+        }
+        return csv.toString();
+    }
+
+    private static String key(Enum<?> value) {
+        String[] words = value.name().toLowerCase(Locale.ROOT).split("_");
+        StringBuilder key = new StringBuilder(words[0]);
+        for (int i = 1; i < words.length; i++) {
+            key.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return a JSON string literal of a value
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(name);
+        for (int s = 0; s < STAGES.length; s++) {
+            text.append(String.format(" %s=%.2fms", key(STAGES[s]), nanos.get(s) / 1e6));
+        }
+        for (int c = 0; c < COUNTERS.length; c++) {
+            text.append(' ').append(key(COUNTERS[c])).append('=').append(counts.get(c));
+        }
+        return text.toString();
+    }
+}
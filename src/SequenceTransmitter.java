@@ -0,0 +1,115 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+/**
+ * A Transmitter that plays the notes of a sequence to its Receiver in real time,
+ * standing in for a live MIDI input so live comping can be tried without hardware.
+ * Timestamps are microseconds since the start of playback.
+ */
+public class SequenceTransmitter implements Transmitter {
+
+    private final NoteEvents events;
+    private final long[] micros;
+    private volatile Receiver receiver;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param sequence the sequence to be played
+     * @param speed how many times faster than written to play
+     */
+    public SequenceTransmitter(Sequence sequence, double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        events = RhythmGenerator.readMIDI(sequence);
+        TimingModel timing = events.getTiming();
+        micros = new long[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            micros[i] = (long) (timing.microsAt(events.getTick(i)) / speed);
+        }
+    }
+
+    public SequenceTransmitter(Sequence sequence) {
+        this(sequence, 1.0);
+    }
+
+    /**
+     * Finds the tempo the sequence starts with
+     * @param sequence the sequence
+     * @return the first tempo in microseconds per quarter note, or 120 bpm if there is none
+     */
+    public static int firstTempo(Sequence sequence) {
+        return TimingModel.read(sequence).tempoAt(0);
+    }
+
+    /**
+     * Starts playing on a new thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::play, "sequence-transmitter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for playback to finish
+     */
+    public void join() throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    private void play() {
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < events.size() && running; i++) {
+                long due = start + micros[i] * 1000;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0 && running) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+                Receiver r = receiver;
+                if (r != null) {
+                    int command = events.isNoteOn(i) ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+                    r.send(new ShortMessage(command, events.getChannel(i), events.getPitch(i),
+                            events.isNoteOn(i) ? events.getVelocity(i) : 0), micros[i]);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            running = false;
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Writes a backing rhythm onto a solo while its notes arrive.
+ * A measure is only ever compared with its neighbours, so the engine keeps a
+ * window of three measures: the last finished one, the one being completed and
+ * the one after it. A measure is finished as soon as a note lands two measures
+ * past it, and its backing events go to the sink right away, in tick order.
+ * Its chord is picked by a HarmonyAnalyzer from the key of everything heard so far.
+ */
+public class StreamingAccompanist implements Receiver {
+
+    public static final int DEFAULT_TEMPO = 500000;
+
+    private final int ppq;
+    private final int rootNote;
+    private final EventSink sink;
+    private final int slotsPerQuarter = RhythmGenerator.noteRes / 4;
+    private final long measureTicks;
+
+    // prev, current and next measures, measure m kept at m % 3
+    private final MeasureGrid window = new MeasureGrid(3, RhythmGenerator.noteRes);
+    private final HarmonyAnalyzer harmony = new HarmonyAnalyzer(RhythmGenerator.CHORD_REGISTER);
+    private final int[][] rhythm = new int[2][8];
+    private long currentMeasure;
+    private long lastTick;
+    private int lateNotes;
+
+    // NOTE_OFFs of emitted hits that end after the events sent so far
+    private long[] pendingTicks = new long[16];
+    private int[] pendingPitches = new int[16];
+    private int pendingSize;
+
+    private int velocity = 60;
+    private int channel = 0;
+    private int tempo = DEFAULT_TEMPO;
+    private long startMicros = -1;
+    private boolean closed;
+
+    /**
+     * @param ppq the resolution of the solo in pulses per quarter note
+     * @param rootNote The root note of the chord played until the first note of the solo
+     * @param sink where the backing events are sent
+     */
+    public StreamingAccompanist(int ppq, int rootNote, EventSink sink) {
+        if (ppq <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive");
+        }
+        this.ppq = ppq;
+        this.rootNote = rootNote;
+        this.sink = sink;
+        measureTicks = 4L * ppq;
+    }
+
+    /**
+     * Adds a note of the solo; notes must arrive in tick order
+     * @param tick the tick of the NOTE_ON
+     * @param pitch the pitch of the note
+     */
+    public void noteOn(long tick, int pitch) {
+        long slot = tick * slotsPerQuarter / ppq;
+        while (tick >= (slot + 1) * ppq / slotsPerQuarter) {
+            slot++;
+        }
+        long measure = slot / RhythmGenerator.noteRes;
+        if (measure < currentMeasure) {
+            lateNotes++;
+            return;
+        }
+        while (measure > currentMeasure + 1) {
+            advance();
+        }
+        window.addOnset((int) (measure % 3), (int) (slot % RhythmGenerator.noteRes), pitch);
+        lastTick = Math.max(lastTick, tick);
+    }
+
+    /**
+     * Finishes every measure that ends by the given tick and flushes the remaining NOTE_OFFs
+     * @param endTick the length of the solo in ticks
+     */
+    public void finish(long endTick) {
+        long numMeasures = endTick / measureTicks;
+        while (currentMeasure < numMeasures) {
+            advance();
+        }
+        flushPending(Long.MAX_VALUE);
+    }
+
+    /**
+     * Finishes every complete measure heard so far
+     */
+    public void finish() {
+        finish(lastTick);
+    }
+
+    /**
+     * Finishes the current measure and moves the window one measure on
+     */
+    private void advance() {
+        RhythmGenerator.generateRhythm(window, (int) (currentMeasure % 3), rhythm);
+        Chord chord = harmony.nextChord(window, (int) (currentMeasure % 3));
+        emit(currentMeasure, chord != null ? chord : Chord.folded(rootNote, ""), rhythm);
+
+        // the previous measure's place becomes the new next measure
+        window.clearMeasure((int) ((currentMeasure + 2) % 3));
+        currentMeasure++;
+    }
+
+    private void emit(long measure, Chord chord, int[][] rhythm) {
+        int[] beat = rhythm[0];
+        int[] lengths = rhythm[1];
+        long start = measure * measureTicks;
+        for (int i = 0; i < beat.length; i++) {
+            if (beat[i] == 0) {
+                continue;
+            }
+            long on = start + (long) i * (ppq / 2) + 1;
+            long off = on + ppq * 4 / lengths[i];
+            flushPending(on);
+            for (int n = 0; n < chord.size(); n++) {
+                sink.send(on, ShortMessage.NOTE_ON, channel, chord.getNote(n), velocity);
+                addPending(off, chord.getNote(n));
+            }
+        }
+        flushPending(start + measureTicks);
+    }
+
+    private void addPending(long tick, int pitch) {
+        if (pendingSize == pendingTicks.length) {
+            pendingTicks = Arrays.copyOf(pendingTicks, pendingSize * 2);
+            pendingPitches = Arrays.copyOf(pendingPitches, pendingSize * 2);
+        }
+        // keep pending NOTE_OFFs sorted by tick; there are only ever a few
+        int i = pendingSize++;
+        while (i > 0 && pendingTicks[i - 1] > tick) {
+            pendingTicks[i] = pendingTicks[i - 1];
+            pendingPitches[i] = pendingPitches[i - 1];
+            i--;
+        }
+        pendingTicks[i] = tick;
+        pendingPitches[i] = pitch;
+    }
+
+    private void flushPending(long upTo) {
+        int flushed = 0;
+        while (flushed < pendingSize && pendingTicks[flushed] <= upTo) {
+            sink.send(pendingTicks[flushed], ShortMessage.NOTE_OFF, channel, pendingPitches[flushed], velocity);
+            flushed++;
+        }
+        if (flushed > 0) {
+            System.arraycopy(pendingTicks, flushed, pendingTicks, 0, pendingSize - flushed);
+            System.arraycopy(pendingPitches, flushed, pendingPitches, 0, pendingSize - flushed);
+            pendingSize -= flushed;
+        }
+    }
+
+    /**
+     * Receives a solo note from a Transmitter. Timestamps are in microseconds and are
+     * converted to ticks with the current tempo, counting from the first timestamp seen.
+     * @param message the message
+     * @param timeStamp the time of the message in microseconds, or -1 if unknown
+     */
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (closed || !(message instanceof ShortMessage)) {
+            return;
+        }
+        ShortMessage sm = (ShortMessage) message;
+        if (sm.getCommand() != ShortMessage.NOTE_ON || sm.getData2() == 0) {
+            return;
+        }
+        long tick = lastTick;
+        if (timeStamp >= 0) {
+            if (startMicros < 0) {
+                startMicros = timeStamp;
+            }
+            tick = (timeStamp - startMicros) * ppq / tempo;
+        }
+        noteOn(tick, sm.getData1());
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            finish();
+        }
+    }
+
+    /**
+     * Streams the notes of a solo through a new accompanist
+     * @param events the note events of the solo, ordered by tick
+     * @param rootNote The root note of the chord played until the first note of the solo
+     * @param sink where the backing events are sent
+     * @return the accompanist, finished at the end of the solo
+     */
+    public static StreamingAccompanist accompany(NoteEvents events, int rootNote, EventSink sink) {
+        StreamingAccompanist accompanist = new StreamingAccompanist(events.getResolution(), rootNote, sink);
+        for (int i = 0; i < events.size(); i++) {
+            if (events.isNoteOn(i)) {
+                accompanist.noteOn(events.getTick(i), events.getPitch(i));
+            }
+        }
+        accompanist.finish(events.getTickLength());
+        return accompanist;
+    }
+
+    public int getLateNotes() {
+        return lateNotes;
+    }
+
+    public long getCurrentMeasure() {
+        return currentMeasure;
+    }
+
+    public void setVelocity(int velocity) {
+        this.velocity = velocity;
+    }
+
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param tempo the tempo used for Receiver timestamps, in microseconds per quarter note
+     */
+    public void setTempo(int tempo) {
+        this.tempo = tempo;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String fileName = args.length > 0 ? args[0] : "Parker,_Charlie_-_Donna_Lee.midi";
+        Sequence sequence = MidiSystem.getSequence(new File(fileName));
+        NoteEvents events = RhythmGenerator.readMIDI(sequence);
+        long[] count = new long[1];
+        accompany(events, RhythmGenerator.getKey(events), (tick, command, channel, data1, data2) -> {
+            count[0]++;
+            System.out.printf("%8d %s %d%n", tick, command == ShortMessage.NOTE_ON ? "on " : "off", data1);
+        });
+        System.out.println(count[0] + " backing events");
+    }
+}
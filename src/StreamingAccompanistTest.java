@@ -0,0 +1,159 @@
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.ShortMessage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the streaming accompanist: it plays the rhythm the whole-solo grid gives
+ * every measure, sends its events in tick order with a NOTE_OFF for every NOTE_ON,
+ * counts notes that arrive too late for their measure, and hears the same solo
+ * through its Receiver as through noteOn.
+ */
+public class StreamingAccompanistTest {
+
+    private static final String SOLO = "Parker,_Charlie_-_Donna_Lee.midi";
+
+    @Test
+    public void playsTheRhythmOfTheWholeSoloGrid() throws Exception {
+        NoteEvents events = RhythmGenerator.readMIDI(MidiSystem.getSequence(new File(SOLO)));
+        int ppq = events.getResolution();
+        List<long[]> sent = new ArrayList<>();
+        StreamingAccompanist.accompany(events, RhythmGenerator.getKey(events), recorder(sent));
+
+        int[][][] rhythm = RhythmGenerator.generateRhythm(RhythmGenerator.divideSequence(events));
+        long measures = events.getTickLength() / (4L * ppq);
+        List<Long> expected = new ArrayList<>();
+        for (int m = 0; m < measures; m++) {
+            for (int i = 0; i < 8; i++) {
+                if (rhythm[m][0][i] != 0) {
+                    expected.add(m * 4L * ppq + i * (ppq / 2) + 1);
+                }
+            }
+        }
+        List<Long> hits = new ArrayList<>();
+        for (long[] event : sent) {
+            if (event[1] == ShortMessage.NOTE_ON && (hits.isEmpty() || hits.get(hits.size() - 1) != event[0])) {
+                hits.add(event[0]);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, hits);
+    }
+
+    @Test
+    public void sendsEveryNoteInTickOrderAndTurnsItOff() throws Exception {
+        NoteEvents events = RhythmGenerator.readMIDI(MidiSystem.getSequence(new File(SOLO)));
+        List<long[]> sent = new ArrayList<>();
+        StreamingAccompanist accompanist = StreamingAccompanist.accompany(events, 60, recorder(sent));
+        int[] sounding = new int[128];
+        long tick = 0;
+        for (long[] event : sent) {
+            assertTrue("out of order at " + event[0], event[0] >= tick);
+            tick = event[0];
+            sounding[(int) event[3]] += event[1] == ShortMessage.NOTE_ON ? 1 : -1;
+            assertTrue(sounding[(int) event[3]] >= 0);
+        }
+        for (int pitch = 0; pitch < 128; pitch++) {
+            assertEquals("pitch " + pitch, 0, sounding[pitch]);
+        }
+        assertEquals(0, accompanist.getLateNotes());
+        assertEquals(events.getTickLength() / (4L * events.getResolution()), accompanist.getCurrentMeasure());
+    }
+
+    @Test
+    public void playsTheRootChordUntilTheSoloStarts() {
+        List<long[]> sent = new ArrayList<>();
+        StreamingAccompanist accompanist = new StreamingAccompanist(480, 62, recorder(sent));
+        accompanist.setVelocity(90);
+        accompanist.setChannel(5);
+        accompanist.finish(2 * 4 * 480);
+        assertFalse(sent.isEmpty());
+        Chord root = Chord.of(62);
+        for (long[] event : sent) {
+            assertEquals(5, event[2]);
+            assertTrue("pitch " + event[3], contains(root, (int) event[3]));
+            assertEquals(90, event[4]);
+        }
+        assertEquals(2, accompanist.getCurrentMeasure());
+    }
+
+    @Test
+    public void foldsARootTooHighForItsChord() {
+        List<long[]> sent = new ArrayList<>();
+        StreamingAccompanist accompanist = new StreamingAccompanist(480, 125, recorder(sent));
+        accompanist.finish(4 * 480);
+        assertFalse(sent.isEmpty());
+        for (long[] event : sent) {
+            assertTrue("pitch " + event[3], contains(Chord.of(113), (int) event[3]));
+        }
+    }
+
+    @Test
+    public void countsNotesTooLateForTheirMeasure() {
+        StreamingAccompanist accompanist = new StreamingAccompanist(480, 60, recorder(new ArrayList<>()));
+        accompanist.noteOn(0, 60);
+        // a note two measures on finishes the first measure
+        accompanist.noteOn(2 * 4 * 480, 64);
+        assertEquals(1, accompanist.getCurrentMeasure());
+        accompanist.noteOn(480, 62);
+        assertEquals(1, accompanist.getLateNotes());
+        accompanist.noteOn(4 * 480, 62);
+        assertEquals(1, accompanist.getLateNotes());
+    }
+
+    @Test
+    public void hearsTheSameSoloThroughItsReceiver() throws Exception {
+        // at 500 pulses per quarter and 120 beats per minute a tick is a millisecond
+        int ppq = 500;
+        long[] ticks = {0, 250, 500, 1000, 1750, 2000, 2125, 3000, 4500, 5000, 6250, 7999, 9000};
+        int[] pitches = {60, 64, 67, 72, 71, 69, 67, 65, 64, 62, 60, 59, 60};
+        List<long[]> direct = new ArrayList<>();
+        StreamingAccompanist byNote = new StreamingAccompanist(ppq, 60, recorder(direct));
+        for (int i = 0; i < ticks.length; i++) {
+            byNote.noteOn(ticks[i], pitches[i]);
+        }
+        byNote.finish();
+
+        List<long[]> received = new ArrayList<>();
+        StreamingAccompanist receiver = new StreamingAccompanist(ppq, 60, recorder(received));
+        receiver.setTempo(StreamingAccompanist.DEFAULT_TEMPO);
+        long start = 1_000_000;
+        for (int i = 0; i < ticks.length; i++) {
+            receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, pitches[i], 100), start + ticks[i] * 1000);
+            // NOTE_OFFs and other messages are not notes of the solo
+            receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, pitches[i], 0), start + ticks[i] * 1000 + 10);
+            receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 64, 127), start + ticks[i] * 1000 + 20);
+        }
+        receiver.close();
+        // closed, it hears nothing more
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), start + 20_000_000);
+
+        assertEquals(direct.size(), received.size());
+        for (int i = 0; i < direct.size(); i++) {
+            assertArrayEquals("event " + i, direct.get(i), received.get(i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsResolutionsBelowOne() {
+        new StreamingAccompanist(0, 60, recorder(new ArrayList<>()));
+    }
+
+    private static EventSink recorder(List<long[]> sent) {
+        return (tick, command, channel, data1, data2) -> sent.add(new long[]{tick, command, channel, data1, data2});
+    }
+
+    private static boolean contains(Chord chord, int pitch) {
+        for (int n = 0; n < chord.size(); n++) {
+            if (chord.getNote(n) == pitch) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The comping styles a backing rhythm can be played in, loaded from a text file
+ * so styles can be added without recompiling.
+ * Each line of the file names a style, the range of solo densities it is played
+ * under, and its pattern, one token per eighth note:
+ * <pre>
+ * # name          densities  pattern
+ * freddy-green    0-2        4@72 . 4 . 4@72 . 4 .
+ * charleston      3-5        3@80 . . 8 . . . .
+ * </pre>
+ * A token is '.' for no hit, or the length of the hit as a note value with an
+ * optional '@' and velocity. The density of a measure is how many onsets the
+ * solo has in it, scaled to a 4/4 measure of RhythmGenerator.noteRes slots, so
+ * it runs from 0 to MAX_DENSITY.
+ * The patterns are compiled into flat tables of lengths and velocities with a
+ * fixed stride per style, and every density is mapped to its style up front, so
+ * choosing and reading a pattern are plain array indexing.
+ */
+public class StyleRegistry {
+
+    public static final int MAX_DENSITY = RhythmGenerator.noteRes;
+
+    private static final String[] BUILT_IN_NAMES = {"freddy-green", "charleston", "up-1-3", "up-2-4", "whole"};
+    private static final int[][] BUILT_IN_DENSITIES = {{0, 2}, {3, 5}, {6, 8}, {9, 11}, {12, MAX_DENSITY}};
+    // BUILT_IN_ACCENTS[style][eighth]: the velocity of the hit, 0 for the velocity of the backing
+    private static final int[][] BUILT_IN_ACCENTS = {
+            {72, 0, 0, 0, 72, 0, 0, 0},
+            {80, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0}
+    };
+
+    private final String[] names;
+    private final int[] eighths;
+    private final int stride;
+    // lengths[style * stride + eighth]: 0 for no hit, else a note value
+    private final int[] lengths;
+    // velocities[style * stride + eighth]: 0 for the velocity of the backing
+    private final int[] velocities;
+    // styleForDensity[density]: the style played under a solo of that density
+    private final int[] styleForDensity;
+
+    private StyleRegistry(List<String> names, List<int[]> lengths, List<int[]> velocities, List<int[]> densities) {
+        int n = names.size();
+        if (n == 0) {
+            throw new IllegalArgumentException("A style registry needs at least one style");
+        }
+        this.names = names.toArray(new String[0]);
+        eighths = new int[n];
+        int longest = 1;
+        for (int s = 0; s < n; s++) {
+            eighths[s] = lengths.get(s).length;
+            longest = Math.max(longest, eighths[s]);
+        }
+        stride = longest;
+        this.lengths = new int[n * stride];
+        this.velocities = new int[n * stride];
+        for (int s = 0; s < n; s++) {
+            System.arraycopy(lengths.get(s), 0, this.lengths, s * stride, eighths[s]);
+            System.arraycopy(velocities.get(s), 0, this.velocities, s * stride, eighths[s]);
+        }
+        // the first style listed for a density wins; densities no style claims get the first style
+        styleForDensity = new int[MAX_DENSITY + 1];
+        Arrays.fill(styleForDensity, -1);
+        for (int s = 0; s < n; s++) {
+            int[] range = densities.get(s);
+            for (int d = Math.max(0, range[0]); d <= Math.min(MAX_DENSITY, range[1]); d++) {
+                if (styleForDensity[d] < 0) {
+                    styleForDensity[d] = s;
+                }
+            }
+        }
+        for (int d = 0; d <= MAX_DENSITY; d++) {
+            if (styleForDensity[d] < 0) {
+                styleForDensity[d] = 0;
+            }
+        }
+    }
+
+    /**
+     * The styles of RhythmGenerator.beats, busier the sparser the solo, with the accents of the bundled
+     * styles.txt
+     * @return the built-in registry
+     */
+    public static StyleRegistry builtIn() {
+        List<String> names = new ArrayList<>();
+        List<int[]> lengths = new ArrayList<>();
+        List<int[]> velocities = new ArrayList<>();
+        List<int[]> densities = new ArrayList<>();
+        for (int s = 0; s < BUILT_IN_NAMES.length; s++) {
+            names.add(BUILT_IN_NAMES[s]);
+            int[] length = new int[RhythmGenerator.beats[s].length];
+            for (int i = 0; i < length.length; i++) {
+                length[i] = RhythmGenerator.beats[s][i] != 0 ? RhythmGenerator.beatLengths[s][i] : 0;
+            }
+            lengths.add(length);
+            velocities.add(BUILT_IN_ACCENTS[s].clone());
+            densities.add(BUILT_IN_DENSITIES[s]);
+        }
+        return new StyleRegistry(names, lengths, velocities, densities);
+    }
+
+    /**
+     * Loads the styles of a file
+     * @param fileName the name of the file
+     * @return the registry
+     * @throws IOException if the file cannot be read
+     */
+    public static StyleRegistry load(String fileName) throws IOException {
+        try (Reader in = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Loads the styles of a file, or the built-in styles if there is no such file
+     * @param fileName the name of the file
+     * @return the registry
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static StyleRegistry loadOrBuiltIn(String fileName) throws IOException {
+        try {
+            return load(fileName);
+        } catch (NoSuchFileException e) {
+            return builtIn();
+        }
+    }
+
+    /**
+     * Parses styles in the text format
+     * @param in the styles
+     * @return the registry
+     * @throws IOException if the styles cannot be read
+     */
+    public static StyleRegistry parse(Reader in) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<int[]> lengths = new ArrayList<>();
+        List<int[]> velocities = new ArrayList<>();
+        List<int[]> densities = new ArrayList<>();
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length == 1 && tokens[0].isEmpty()) {
+                continue;
+            }
+            if (tokens.length < 3) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": expected a name, densities and a pattern");
+            }
+            if (names.contains(tokens[0])) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": style " + tokens[0] + " is already defined");
+            }
+            int[] range = parseRange(tokens[1], lineNumber);
+            int[] length = new int[tokens.length - 2];
+            int[] velocity = new int[tokens.length - 2];
+            for (int i = 0; i < length.length; i++) {
+                parseHit(tokens[i + 2], lineNumber, length, velocity, i);
+            }
+            names.add(tokens[0]);
+            lengths.add(length);
+            velocities.add(velocity);
+            densities.add(range);
+        }
+        return new StyleRegistry(names, lengths, velocities, densities);
+    }
+
+    /**
+     * Parses styles in the text format
+     * @param text the styles
+     * @return the registry
+     */
+    public static StyleRegistry parse(String text) {
+        try {
+            return parse(new StringReader(text));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int[] parseRange(String token, int lineNumber) {
+        try {
+            int dash = token.indexOf('-');
+            int low = Integer.parseInt(dash < 0 ? token : token.substring(0, dash));
+            int high = dash < 0 ? low : Integer.parseInt(token.substring(dash + 1));
+            if (low < 0 || high < low) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": invalid densities " + token);
+            }
+            return new int[]{low, high};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid densities " + token);
+        }
+    }
+
+    private static void parseHit(String token, int lineNumber, int[] lengths, int[] velocities, int i) {
+        if (token.equals(".")) {
+            return;
+        }
+        try {
+            int at = token.indexOf('@');
+            int length = Integer.parseInt(at < 0 ? token : token.substring(0, at));
+            int velocity = at < 0 ? 0 : Integer.parseInt(token.substring(at + 1));
+            if (length <= 0 || velocity < 0 || velocity > 127) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": invalid hit " + token);
+            }
+            lengths[i] = length;
+            velocities[i] = velocity;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid hit " + token);
+        }
+    }
+
+    /**
+     * @param density the number of onsets of a solo measure, scaled to a 4/4 measure of noteRes slots
+     * @return the style played under the measure
+     */
+    public int styleFor(int density) {
+        return styleForDensity[Math.min(Math.max(density, 0), MAX_DENSITY)];
+    }
+
+    /**
+     * @param name the name of a style
+     * @return the style, or -1 if there is none by that name
+     */
+    public int indexOf(String name) {
+        for (int s = 0; s < names.length; s++) {
+            if (names[s].equals(name)) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param style a style
+     * @param eighth an eighth note of a measure; patterns shorter than the measure repeat
+     * @return the length of the hit on the eighth as a note value, or 0 for none
+     */
+    public int getLength(int style, int eighth) {
+        return lengths[style * stride + eighth % eighths[style]];
+    }
+
+    /**
+     * @param style a style
+     * @param eighth an eighth note of a measure; patterns shorter than the measure repeat
+     * @return the velocity of the hit on the eighth, or 0 for the velocity of the backing
+     */
+    public int getVelocity(int style, int eighth) {
+        return velocities[style * stride + eighth % eighths[style]];
+    }
+
+    /**
+     * @param style a style
+     * @return the length of the pattern of the style in eighth notes
+     */
+    public int getEighths(int style) {
+        return eighths[style];
+    }
+
+    /**
+     * Feeds every pattern and the choice of style for every density into a hash
+     * @param hash the hash
+     */
+    public void hashInto(ContentHash hash) {
+        hash.add(names.length).add(stride);
+        for (int s = 0; s < names.length; s++) {
+            hash.add(names[s]).add(eighths[s]);
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            hash.add(((long) lengths[i] << 32) | velocities[i]);
+        }
+        for (int style : styleForDensity) {
+            hash.add(style);
+        }
+    }
+
+    public String getName(int style) {
+        return names[style];
+    }
+
+    public int size() {
+        return names.length;
+    }
+}
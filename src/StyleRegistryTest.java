@@ -0,0 +1,131 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the comping styles: the bundled styles.txt loads into the built-in
+ * styles, the text format is parsed with its comments, accents, repeats and
+ * density ranges, and malformed lines are refused with their line number.
+ */
+public class StyleRegistryTest {
+
+    @Test
+    public void bundledStylesAreTheBuiltInStyles() throws Exception {
+        StyleRegistry bundled = StyleRegistry.load("styles.txt");
+        StyleRegistry builtIn = StyleRegistry.builtIn();
+        assertEquals(builtIn.size(), bundled.size());
+        for (int s = 0; s < builtIn.size(); s++) {
+            assertEquals(builtIn.getName(s), bundled.getName(s));
+            assertEquals(builtIn.getEighths(s), bundled.getEighths(s));
+            for (int i = 0; i < builtIn.getEighths(s); i++) {
+                assertEquals(builtIn.getName(s) + " " + i, builtIn.getLength(s, i), bundled.getLength(s, i));
+                assertEquals(builtIn.getName(s) + " " + i, builtIn.getVelocity(s, i), bundled.getVelocity(s, i));
+            }
+        }
+        for (int d = 0; d <= StyleRegistry.MAX_DENSITY; d++) {
+            assertEquals("density " + d, builtIn.styleFor(d), bundled.styleFor(d));
+        }
+        assertEquals(hash(builtIn), hash(bundled));
+    }
+
+    @Test
+    public void builtInStylesPlayTheBeatsOfTheGenerator() {
+        StyleRegistry styles = StyleRegistry.builtIn();
+        for (int s = 0; s < RhythmGenerator.beats.length; s++) {
+            for (int i = 0; i < 8; i++) {
+                int expected = RhythmGenerator.beats[s][i] != 0 ? RhythmGenerator.beatLengths[s][i] : 0;
+                assertEquals(styles.getName(s) + " " + i, expected, styles.getLength(s, i));
+            }
+        }
+        assertEquals(72, styles.getVelocity(styles.indexOf("freddy-green"), 0));
+        assertEquals(0, styles.getVelocity(styles.indexOf("freddy-green"), 2));
+    }
+
+    @Test
+    public void parsesTheTextFormat() {
+        StyleRegistry styles = StyleRegistry.parse(
+                "# a comment line\n"
+                        + "\n"
+                        + "stabs   4-6   8@90 . 8 .   # a pattern of half a measure\n"
+                        + "  pad   0-20  1\n"
+                        + "late    5     . . . 4@127\n");
+        assertEquals(3, styles.size());
+        assertEquals(0, styles.indexOf("stabs"));
+        assertEquals(-1, styles.indexOf("missing"));
+
+        int stabs = styles.indexOf("stabs");
+        assertEquals(4, styles.getEighths(stabs));
+        int[] lengths = {8, 0, 8, 0, 8, 0, 8, 0};
+        int[] velocities = {90, 0, 0, 0, 90, 0, 0, 0};
+        for (int i = 0; i < 8; i++) {
+            assertEquals("eighth " + i, lengths[i], styles.getLength(stabs, i));
+            assertEquals("eighth " + i, velocities[i], styles.getVelocity(stabs, i));
+        }
+        assertEquals(1, styles.getLength(styles.indexOf("pad"), 0));
+        assertEquals(127, styles.getVelocity(styles.indexOf("late"), 3));
+
+        // the first style listed for a density wins, densities no style claims get the first style, and
+        // densities out of range are clamped
+        assertEquals(styles.indexOf("pad"), styles.styleFor(0));
+        assertEquals(stabs, styles.styleFor(5));
+        assertEquals(styles.indexOf("pad"), styles.styleFor(20));
+        assertEquals(stabs, styles.styleFor(21));
+        assertEquals(styles.indexOf("pad"), styles.styleFor(-1));
+        assertEquals(stabs, styles.styleFor(StyleRegistry.MAX_DENSITY + 1));
+    }
+
+    @Test
+    public void refusesMalformedLines() {
+        String[] malformed = {
+                "short 0-2",
+                "bad-range 2-1 4 . . .",
+                "bad-range x 4 . . .",
+                "bad-hit 0-2 0 . . .",
+                "bad-hit 0-2 4@128 . . .",
+                "bad-hit 0-2 4@x . . .",
+                "twice 0-2 4 . . .\ntwice 3-4 8 . . ."
+        };
+        for (String text : malformed) {
+            try {
+                StyleRegistry.parse("# styles\n" + text);
+                fail(text);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line " + (text.contains("\n") ? 3 : 2)));
+            }
+        }
+        try {
+            StyleRegistry.parse("# no styles at all\n");
+            fail("an empty registry was made");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void fallsBackToTheBuiltInStylesWithoutAFile() throws Exception {
+        Path dir = Files.createTempDirectory("styles");
+        try {
+            StyleRegistry styles = StyleRegistry.loadOrBuiltIn(dir.resolve("styles.txt").toString());
+            assertEquals(hash(StyleRegistry.builtIn()), hash(styles));
+
+            Path file = Files.write(dir.resolve("mine.txt"), "mine 0-24 2 . . .\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("mine", StyleRegistry.loadOrBuiltIn(file.toString()).getName(0));
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                Files.delete(f.toPath());
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static String hash(StyleRegistry styles) {
+        ContentHash hash = new ContentHash();
+        styles.hashInto(hash);
+        return hash.toHex();
+    }
+}
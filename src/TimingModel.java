@@ -0,0 +1,462 @@
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The measures and tempo of a sequence, read once from its time signature and
+ * tempo meta events.
+ * The measures are kept as one segment per time signature: its first tick, first
+ * measure and first eighth note, and the length of its measures. A measure or
+ * tick is found by a binary search over the segments and some arithmetic within
+ * one, so lookups never walk the measures, and measures past the last time
+ * signature carry on in it. A time signature that falls inside a measure cuts
+ * that measure short. Tempo changes are indexed the same way.
+ */
+public class TimingModel {
+
+    public static final int DEFAULT_TEMPO = 500000;
+
+    private static final int META_TEMPO = 0x51;
+    private static final int META_TIME_SIGNATURE = 0x58;
+
+    private final int ppq;
+
+    // one entry per time signature, sorted by tick
+    private final long[] segmentTicks;
+    private final long[] segmentMeasures;
+    private final long[] segmentEighths;
+    // the length of a measure in ticks times the denominator, so measures that do not fill a whole number of ticks
+    // add up without drift; a measure is never shorter than a tick
+    private final long[] measureUnits;
+    private final int[] eighthsPerMeasure;
+    // the eighths of the last measure of each segment, fewer when the next time signature cuts it short
+    private final int[] lastEighths;
+    private final int[] numerators;
+    private final int[] denominators;
+    private final int segments;
+
+    // one entry per tempo, sorted by tick
+    private final long[] tempoTicks;
+    private final long[] tempoMicros;
+    private final int[] tempos;
+    private final int tempoChanges;
+
+    /**
+     * A model in 4/4 at 120 beats per minute throughout
+     * @param ppq the resolution in pulses per quarter note
+     */
+    public TimingModel(int ppq) {
+        this(new Builder(ppq));
+    }
+
+    private TimingModel(Builder builder) {
+        ppq = builder.ppq;
+        int n = builder.signatures;
+        int[] order = order(builder.signatureTicks, n);
+        segmentTicks = new long[n + 1];
+        segmentMeasures = new long[n + 1];
+        segmentEighths = new long[n + 1];
+        measureUnits = new long[n + 1];
+        eighthsPerMeasure = new int[n + 1];
+        lastEighths = new int[n + 1];
+        numerators = new int[n + 1];
+        denominators = new int[n + 1];
+        numerators[0] = 4;
+        denominators[0] = 4;
+        measureUnits[0] = 16L * ppq;
+        eighthsPerMeasure[0] = 8;
+        lastEighths[0] = 8;
+        int segments = 1;
+        for (int k = 0; k < n; k++) {
+            int j = order[k];
+            long tick = builder.signatureTicks[j];
+            int s = segments - 1;
+            long measure;
+            long eighth;
+            if (tick <= segmentTicks[s]) {
+                // replaces the segment starting on the same tick
+                measure = segmentMeasures[s];
+                eighth = segmentEighths[s];
+            } else {
+                // the measures starting before the time signature
+                long measures = ((tick - segmentTicks[s]) * denominators[s] + measureUnits[s] - 1) / measureUnits[s];
+                // only the eighths starting before the time signature are left of its last measure
+                long last = tick - segmentTicks[s] - ticks(s, measures - 1);
+                lastEighths[s] = (int) Math.min(eighthsPerMeasure[s], (2 * last + ppq - 1) / ppq);
+                measure = segmentMeasures[s] + measures;
+                eighth = segmentEighths[s] + (measures - 1) * eighthsPerMeasure[s] + lastEighths[s];
+                s = segments++;
+            }
+            int numerator = builder.numerators[j];
+            int denominator = builder.denominators[j];
+            segmentTicks[s] = Math.max(tick, segmentTicks[s]);
+            segmentMeasures[s] = measure;
+            segmentEighths[s] = eighth;
+            numerators[s] = numerator;
+            denominators[s] = denominator;
+            measureUnits[s] = Math.max(denominator, 4L * ppq * numerator);
+            // a measure of sixteenths that does not fill its last eighth still gets that eighth
+            eighthsPerMeasure[s] = (8 * numerator + denominator - 1) / denominator;
+            lastEighths[s] = eighthsPerMeasure[s];
+        }
+        this.segments = segments;
+
+        int t = builder.tempoCount;
+        order = order(builder.tempoTicks, t);
+        tempoTicks = new long[t + 1];
+        tempoMicros = new long[t + 1];
+        tempos = new int[t + 1];
+        tempos[0] = DEFAULT_TEMPO;
+        int changes = 1;
+        for (int k = 0; k < t; k++) {
+            int j = order[k];
+            long tick = builder.tempoTicks[j];
+            int s = changes - 1;
+            if (tick > tempoTicks[s]) {
+                tempoMicros[changes] = tempoMicros[s] + (tick - tempoTicks[s]) * tempos[s] / ppq;
+                tempoTicks[changes] = tick;
+                s = changes++;
+            }
+            tempos[s] = builder.tempos[j];
+        }
+        this.tempoChanges = changes;
+    }
+
+    /**
+     * Orders events by tick, keeping events on the same tick in the order they were read.
+     * There are only ever a handful, so an insertion sort will do.
+     * @return the indices of the events in tick order
+     */
+    private static int[] order(long[] ticks, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = i;
+            while (j > 0 && ticks[order[j - 1]] > ticks[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Reads the time signatures and tempos of every track of a sequence
+     * @param s the sequence
+     * @return the timing of the sequence
+     */
+    public static TimingModel read(Sequence s) {
+        if (s.getDivisionType() != Sequence.PPQ) {
+            throw new IllegalArgumentException("Cannot handle divisionTypes that are not PPQ");
+        }
+        Builder builder = new Builder(s.getResolution());
+        for (Track t : s.getTracks()) {
+            readMeta(t, builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the time signatures and tempos of a single track, for callers that have no sequence
+     * @param t the track
+     * @param ppq the resolution of the track in pulses per quarter note
+     * @return the timing of the track, 4/4 at 120 beats per minute where it has no meta events
+     */
+    public static TimingModel read(Track t, int ppq) {
+        Builder builder = new Builder(ppq);
+        readMeta(t, builder);
+        return builder.build();
+    }
+
+    private static void readMeta(Track t, Builder builder) {
+        for (int i = 0; i < t.size(); i++) {
+            MidiEvent event = t.get(i);
+            if (event.getMessage() instanceof MetaMessage) {
+                MetaMessage mm = (MetaMessage) event.getMessage();
+                builder.meta(event.getTick(), mm.getType(), mm.getData());
+            }
+        }
+    }
+
+    /**
+     * @param tick a tick
+     * @return the measure holding the tick
+     */
+    public long measureAt(long tick) {
+        int s = search(segmentTicks, segments, tick);
+        // the last measure starting at or before the tick
+        return segmentMeasures[s] + ((tick - segmentTicks[s] + 1) * denominators[s] - 1) / measureUnits[s];
+    }
+
+    /**
+     * @return the ticks from the start of segment s to the start of its given measure, rounded down
+     */
+    private long ticks(int s, long measures) {
+        return measures * measureUnits[s] / denominators[s];
+    }
+
+    /**
+     * @param measure a measure
+     * @return the first tick of the measure
+     */
+    public long measureStart(long measure) {
+        int s = search(segmentMeasures, segments, measure);
+        return segmentTicks[s] + ticks(s, measure - segmentMeasures[s]);
+    }
+
+    /**
+     * @param measure a measure
+     * @return the first tick after the measure; a measure cut short by a time signature ends there
+     */
+    public long measureEnd(long measure) {
+        int s = search(segmentMeasures, segments, measure);
+        long end = segmentTicks[s] + ticks(s, measure - segmentMeasures[s] + 1);
+        return s + 1 < segments ? Math.min(end, segmentTicks[s + 1]) : end;
+    }
+
+    /**
+     * @param measure a measure
+     * @return the number of eighth-note slots of the measure, 8 in 4/4 and 7 in 7/8; a measure cut short by a
+     *         time signature has only the slots starting before it
+     */
+    public int eighthsIn(long measure) {
+        int s = search(segmentMeasures, segments, measure);
+        return s + 1 < segments && measure == segmentMeasures[s + 1] - 1 ? lastEighths[s] : eighthsPerMeasure[s];
+    }
+
+    /**
+     * @param measure a measure
+     * @return the number of eighth-note slots before the measure
+     */
+    public long firstEighth(long measure) {
+        int s = search(segmentMeasures, segments, measure);
+        return segmentEighths[s] + (measure - segmentMeasures[s]) * eighthsPerMeasure[s];
+    }
+
+    /**
+     * @param eighth an eighth-note slot counted from the start of the sequence
+     * @return the tick the slot starts on
+     */
+    public long tickOfEighth(long eighth) {
+        int s = search(segmentEighths, segments, eighth);
+        long inSegment = eighth - segmentEighths[s];
+        long measure = inSegment / eighthsPerMeasure[s];
+        long inMeasure = inSegment % eighthsPerMeasure[s];
+        return segmentTicks[s] + ticks(s, measure) + inMeasure * ppq / 2;
+    }
+
+    /**
+     * @param measure a measure
+     * @return the numerator of the time signature of the measure
+     */
+    public int getNumerator(long measure) {
+        return numerators[search(segmentMeasures, segments, measure)];
+    }
+
+    /**
+     * @param measure a measure
+     * @return the denominator of the time signature of the measure, such as 4 or 8
+     */
+    public int getDenominator(long measure) {
+        return denominators[search(segmentMeasures, segments, measure)];
+    }
+
+    /**
+     * @param tick a tick
+     * @return the tempo at the tick in microseconds per quarter note
+     */
+    public int tempoAt(long tick) {
+        return tempos[search(tempoTicks, tempoChanges, tick)];
+    }
+
+    /**
+     * @param tick a tick
+     * @return the time of the tick in microseconds from the start of the sequence
+     */
+    public long microsAt(long tick) {
+        int s = search(tempoTicks, tempoChanges, tick);
+        return tempoMicros[s] + (tick - tempoTicks[s]) * tempos[s] / ppq;
+    }
+
+    /**
+     * @param micros a time in microseconds from the start of the sequence
+     * @return the tick playing at that time
+     */
+    public long tickAt(long micros) {
+        int s = search(tempoMicros, tempoChanges, micros);
+        return tempoTicks[s] + (micros - tempoMicros[s]) * ppq / tempos[s];
+    }
+
+    public int getResolution() {
+        return ppq;
+    }
+
+    /**
+     * Feeds everything that decides where measures and notes fall into a hash
+     * @param hash the hash
+     */
+    public void hashInto(ContentHash hash) {
+        hash.add(ppq).add(segments).add(tempoChanges);
+        for (int s = 0; s < segments; s++) {
+            hash.add(segmentTicks[s]).add(numerators[s]).add(denominators[s]);
+        }
+        for (int s = 0; s < tempoChanges; s++) {
+            hash.add(tempoTicks[s]).add(tempos[s]);
+        }
+    }
+
+    /**
+     * @return the number of bytes encode writes
+     */
+    public int encodedSize() {
+        return 16 + 16 * (segments + tempoChanges);
+    }
+
+    /**
+     * Writes the time signatures and tempos, a multiple of 8 bytes, in the order of the buffer
+     * @param buffer the buffer written to from its position
+     */
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(ppq).putInt(segments).putInt(tempoChanges).putInt(0);
+        for (int s = 0; s < segments; s++) {
+            buffer.putLong(segmentTicks[s]).putInt(numerators[s]).putInt(denominators[s]);
+        }
+        for (int s = 0; s < tempoChanges; s++) {
+            buffer.putLong(tempoTicks[s]).putInt(tempos[s]).putInt(0);
+        }
+    }
+
+    /**
+     * Reads a timing model written by encode
+     * @param buffer the buffer read from its position, which is moved past the model
+     * @return the timing model
+     * @throws IllegalArgumentException if the bytes do not hold a valid model
+     */
+    public static TimingModel decode(ByteBuffer buffer) {
+        Builder builder = new Builder(buffer.getInt());
+        int signatures = buffer.getInt();
+        int changes = buffer.getInt();
+        buffer.getInt();
+        if (signatures <= 0 || changes <= 0 || (long) (signatures + changes) * 16 > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid timing of " + signatures + " signatures and "
+                    + changes + " tempos");
+        }
+        for (int s = 0; s < signatures; s++) {
+            builder.timeSignature(buffer.getLong(), buffer.getInt(), buffer.getInt());
+        }
+        for (int s = 0; s < changes; s++) {
+            builder.tempo(buffer.getLong(), buffer.getInt());
+            buffer.getInt();
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return whether every measure is in 4/4
+     */
+    public boolean isCommonTime() {
+        return segments == 1 && numerators[0] == 4 && denominators[0] == 4;
+    }
+
+    /**
+     * @return the index of the last of the first n entries that is at most key, or 0
+     */
+    private static int search(long[] starts, int n, long key) {
+        if (n == 1 || key < starts[1]) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(starts, 1, n, key);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Collects time signatures and tempos in any order, for readers that see the tracks one at a time
+     */
+    public static class Builder {
+        private final int ppq;
+        private long[] signatureTicks = new long[4];
+        private int[] numerators = new int[4];
+        private int[] denominators = new int[4];
+        private int signatures;
+        private long[] tempoTicks = new long[4];
+        private int[] tempos = new int[4];
+        private int tempoCount;
+
+        /**
+         * @param ppq the resolution in pulses per quarter note
+         */
+        public Builder(int ppq) {
+            if (ppq <= 0) {
+                throw new IllegalArgumentException("Resolution must be positive");
+            }
+            this.ppq = ppq;
+        }
+
+        /**
+         * @param tick the tick of the time signature
+         * @param numerator the number of beats in a measure
+         * @param denominator the note value of a beat, a power of two
+         * @return this builder
+         */
+        public Builder timeSignature(long tick, int numerator, int denominator) {
+            if (numerator <= 0 || denominator <= 0 || Integer.bitCount(denominator) != 1) {
+                throw new IllegalArgumentException("Invalid time signature " + numerator + "/" + denominator);
+            }
+            if (signatures == signatureTicks.length) {
+                signatureTicks = Arrays.copyOf(signatureTicks, signatures * 2);
+                numerators = Arrays.copyOf(numerators, signatures * 2);
+                denominators = Arrays.copyOf(denominators, signatures * 2);
+            }
+            signatureTicks[signatures] = tick;
+            numerators[signatures] = numerator;
+            denominators[signatures] = denominator;
+            signatures++;
+            return this;
+        }
+
+        /**
+         * @param tick the tick of the tempo change
+         * @param microsPerQuarter the new tempo in microseconds per quarter note
+         * @return this builder
+         */
+        public Builder tempo(long tick, int microsPerQuarter) {
+            if (microsPerQuarter <= 0) {
+                throw new IllegalArgumentException("Tempo must be positive");
+            }
+            if (tempoCount == tempoTicks.length) {
+                tempoTicks = Arrays.copyOf(tempoTicks, tempoCount * 2);
+                tempos = Arrays.copyOf(tempos, tempoCount * 2);
+            }
+            tempoTicks[tempoCount] = tick;
+            tempos[tempoCount] = microsPerQuarter;
+            tempoCount++;
+            return this;
+        }
+
+        /**
+         * Takes in a meta event, keeping it if it is a valid time signature or tempo
+         * @param tick the tick of the event
+         * @param type the type of the meta event
+         * @param data the data of the meta event
+         * @return this builder
+         */
+        public Builder meta(long tick, int type, byte[] data) {
+            if (type == META_TIME_SIGNATURE && data.length >= 2 && data[0] > 0 && data[1] >= 0 && data[1] < 8) {
+                timeSignature(tick, data[0], 1 << data[1]);
+            } else if (type == META_TEMPO && data.length == 3) {
+                int tempo = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+                if (tempo > 0) {
+                    tempo(tick, tempo);
+                }
+            }
+            return this;
+        }
+
+        public TimingModel build() {
+            return new TimingModel(this);
+        }
+    }
+}
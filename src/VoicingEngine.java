@@ -0,0 +1,270 @@
+import java.util.Arrays;
+
+/**
+ * Voices a progression so that each chord moves as little as it can from the one
+ * before it.
+ * Every modifier of Chord has a few voicing shapes: its close-position
+ * inversions and, for four-note chords, their drop-2 voicings. Ninth and altered
+ * chords leave out the fifth so they stay at four voices. Shapes are offsets
+ * from the root and kept within a tritone of it, so a voicing never strays far
+ * from where the root is placed. How far the voices move from one shape to
+ * another is worked out for every pair of shapes and every distance between the
+ * placed roots once, up front, so voicing a progression is a dynamic program
+ * over the chords that costs a few table lookups per pair of shapes, linear in
+ * the number of chords.
+ */
+public class VoicingEngine {
+
+    public static final int MAX_SHAPES = 8;
+
+    private static final int QUALITIES = Chord.MODIFIERS.length;
+    private static final int STATES = QUALITIES * MAX_SHAPES;
+    // placed roots are within an octave of each other
+    private static final int DISTANCES = 23;
+
+    // SHAPES[quality][shape]: the notes of the shape as semitones from the placed root, lowest first
+    private static final int[][][] SHAPES = new int[QUALITIES][][];
+    // COSTS[(stateA * STATES + stateB) * DISTANCES + rootB - rootA + 11]: the semitones the voices move
+    // from one shape to the next, with state = quality * MAX_SHAPES + shape
+    private static final short[] COSTS = new short[STATES * STATES * DISTANCES];
+    // the lowest and highest notes of any shape, in semitones from the root
+    private static final int LOWEST;
+    private static final int HIGHEST;
+
+    static {
+        int lowest = 0;
+        int highest = 0;
+        for (int q = 0; q < QUALITIES; q++) {
+            SHAPES[q] = shapes(Chord.intervals(Chord.MODIFIERS[q]));
+            for (int[] shape : SHAPES[q]) {
+                lowest = Math.min(lowest, shape[0]);
+                highest = Math.max(highest, shape[shape.length - 1]);
+            }
+        }
+        LOWEST = lowest;
+        HIGHEST = highest;
+        for (int qa = 0; qa < QUALITIES; qa++) {
+            for (int sa = 0; sa < SHAPES[qa].length; sa++) {
+                for (int qb = 0; qb < QUALITIES; qb++) {
+                    for (int sb = 0; sb < SHAPES[qb].length; sb++) {
+                        int base = ((qa * MAX_SHAPES + sa) * STATES + qb * MAX_SHAPES + sb) * DISTANCES;
+                        for (int d = 0; d < DISTANCES; d++) {
+                            COSTS[base + d] = (short) movement(SHAPES[qa][sa], SHAPES[qb][sb], d - 11);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private final int lowestRoot;
+    // VOICED[(pitchClass * QUALITIES + quality) * MAX_SHAPES + shape]: the shared chord of each voicing
+    private final Chord[] voiced = new Chord[12 * STATES];
+
+    /**
+     * @param lowestRoot the lowest MIDI note a chord root is placed on; roots span the octave above it
+     */
+    public VoicingEngine(int lowestRoot) {
+        if (lowestRoot + LOWEST < 0 || lowestRoot + 11 + HIGHEST > 127) {
+            throw new IllegalArgumentException("Voicings around the roots must stay within MIDI notes 0 to 127");
+        }
+        this.lowestRoot = lowestRoot;
+        for (int pc = 0; pc < 12; pc++) {
+            int root = HarmonyAnalyzer.placeRoot(pc, lowestRoot);
+            for (int q = 0; q < QUALITIES; q++) {
+                for (int s = 0; s < SHAPES[q].length; s++) {
+                    int[] notes = SHAPES[q][s].clone();
+                    for (int i = 0; i < notes.length; i++) {
+                        notes[i] += root;
+                    }
+                    voiced[(pc * QUALITIES + q) * MAX_SHAPES + s] = new Chord(root, Chord.MODIFIERS[q], notes);
+                }
+            }
+        }
+    }
+
+    /**
+     * The voicing shapes of a chord: close-position inversions, then drop-2 voicings of four-note chords
+     * @param intervals the tones of the chord in root position
+     * @return the shapes, as semitones from the root, lowest first
+     */
+    private static int[][] shapes(int[] intervals) {
+        int[] tones = intervals;
+        if (tones.length > 4) {
+            // leave out the fifth, which adds the least to a ninth or altered chord
+            tones = new int[]{intervals[0], intervals[1], intervals[3], intervals[4]};
+        }
+        int n = tones.length;
+        int[][] shapes = new int[n == 4 ? 2 * n : n][];
+        for (int inversion = 0; inversion < n; inversion++) {
+            int[] close = new int[n];
+            close[0] = tones[inversion] % 12;
+            for (int i = 1; i < n; i++) {
+                int pc = tones[(inversion + i) % n] % 12;
+                close[i] = close[i - 1] + ((pc - close[i - 1]) % 12 + 12) % 12;
+                if (close[i] == close[i - 1]) {
+                    close[i] += 12;
+                }
+            }
+            shapes[inversion] = centre(close);
+            if (n == 4) {
+                int[] drop = close.clone();
+                drop[n - 2] -= 12;
+                Arrays.sort(drop);
+                shapes[n + inversion] = centre(drop);
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Moves a shape by octaves so its lowest note is within a tritone of the root
+     */
+    private static int[] centre(int[] shape) {
+        int shift = 0;
+        while (shape[0] + shift >= 6) {
+            shift -= 12;
+        }
+        while (shape[0] + shift < -6) {
+            shift += 12;
+        }
+        int[] centred = new int[shape.length];
+        for (int i = 0; i < shape.length; i++) {
+            centred[i] = shape[i] + shift;
+        }
+        return centred;
+    }
+
+    /**
+     * How far the voices move from one voicing to the next. Voicings with as many notes move voice by voice
+     * from the bottom up; otherwise every note moves to the nearest note of the other voicing.
+     * @param distance the placed root of the second voicing less that of the first
+     */
+    private static int movement(int[] a, int[] b, int distance) {
+        int cost = 0;
+        if (a.length == b.length) {
+            for (int i = 0; i < a.length; i++) {
+                cost += Math.abs(b[i] + distance - a[i]);
+            }
+            return cost;
+        }
+        for (int x : a) {
+            cost += nearest(x, b, distance);
+        }
+        for (int y : b) {
+            cost += nearest(y + distance, a, 0);
+        }
+        return cost;
+    }
+
+    private static int nearest(int note, int[] voicing, int offset) {
+        int best = Integer.MAX_VALUE;
+        for (int v : voicing) {
+            best = Math.min(best, Math.abs(v + offset - note));
+        }
+        return best;
+    }
+
+    /**
+     * Voices every chord of a progression so that the voices move as little as possible overall.
+     * Chords built from custom notes are kept as they are and start a new run of voicings after them.
+     * The first chord of a run prefers root position.
+     * @param chords the chords, one per measure
+     * @return one shared voiced chord per measure
+     */
+    public Chord[] voice(Chord[] chords) {
+        Chord[] result = new Chord[chords.length];
+        byte[] choices = new byte[chords.length * MAX_SHAPES];
+        int[] cost = new int[MAX_SHAPES];
+        int[] next = new int[MAX_SHAPES];
+        int start = 0;
+        while (start < chords.length) {
+            if (chords[start].getModifierIndex() < 0) {
+                result[start] = chords[start];
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < chords.length && chords[end].getModifierIndex() >= 0) {
+                end++;
+            }
+            voiceRun(chords, start, end, choices, cost, next, result);
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * The dynamic program over one run of chords with modifiers
+     */
+    private void voiceRun(Chord[] chords, int start, int end, byte[] choices, int[] cost, int[] next,
+                          Chord[] result) {
+        int quality = chords[start].getModifierIndex();
+        int shapes = SHAPES[quality].length;
+        for (int s = 0; s < shapes; s++) {
+            cost[s] = s == 0 ? 0 : 1;
+        }
+        int root = placed(chords[start]);
+        for (int m = start + 1; m < end; m++) {
+            int nextQuality = chords[m].getModifierIndex();
+            int nextShapes = SHAPES[nextQuality].length;
+            int nextRoot = placed(chords[m]);
+            int distance = nextRoot - root + 11;
+            for (int b = 0; b < nextShapes; b++) {
+                int best = Integer.MAX_VALUE;
+                int bestShape = 0;
+                int column = (nextQuality * MAX_SHAPES + b) * DISTANCES + distance;
+                for (int a = 0; a < shapes; a++) {
+                    int c = cost[a] + COSTS[(quality * MAX_SHAPES + a) * STATES * DISTANCES + column];
+                    if (c < best) {
+                        best = c;
+                        bestShape = a;
+                    }
+                }
+                next[b] = best;
+                choices[m * MAX_SHAPES + b] = (byte) bestShape;
+            }
+            System.arraycopy(next, 0, cost, 0, nextShapes);
+            quality = nextQuality;
+            shapes = nextShapes;
+            root = nextRoot;
+        }
+
+        int shape = 0;
+        for (int s = 1; s < shapes; s++) {
+            if (cost[s] < cost[shape]) {
+                shape = s;
+            }
+        }
+        for (int m = end - 1; m >= start; m--) {
+            int q = chords[m].getModifierIndex();
+            result[m] = voiced[((chords[m].getKey() % 12) * QUALITIES + q) * MAX_SHAPES + shape];
+            shape = choices[m * MAX_SHAPES + shape];
+        }
+    }
+
+    private int placed(Chord chord) {
+        return HarmonyAnalyzer.placeRoot(chord.getKey() % 12, lowestRoot);
+    }
+
+    /**
+     * @param modifier one of Chord.MODIFIERS
+     * @return the number of voicing shapes of the modifier
+     */
+    public static int shapeCount(String modifier) {
+        return SHAPES[Chord.modifierIndex(modifier)].length;
+    }
+
+    /**
+     * @param from the voiced chord moved from
+     * @param to the voiced chord moved to
+     * @return the semitones the voices move between two voiced chords
+     */
+    public static int movement(Chord from, Chord to) {
+        return movement(from.getNotes(), to.getNotes(), 0);
+    }
+
+    public int getLowestRoot() {
+        return lowestRoot;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Walks a bass line under the chords the piano plays, one note per quarter.
+ * It reads the chord of every measure that the harmony analysis already found,
+ * so the solo is not read or analyzed again. Each measure starts on the root
+ * of its chord. The last beat of the measure approaches the next root by a
+ * semitone, and the beats between climb or fall through the tones of the chord
+ * toward it. Notes are kept in the bass register and folded back by octaves
+ * when a walk would leave it. A measure whose eighths do not divide into
+ * quarters ends on an eighth note.
+ */
+public class WalkingBass {
+
+    // the lowest root a bass note is placed on; roots span the octave above it
+    public static final int BASS_REGISTER = 28;
+    // the range every bass note is kept within
+    public static final int LOWEST = 24;
+    public static final int HIGHEST = 55;
+
+    // TONES[modifier]: the tones of each modifier of Chord as semitones above the root
+    private static final int[][] TONES = new int[Chord.MODIFIERS.length][];
+
+    static {
+        for (int m = 0; m < TONES.length; m++) {
+            TONES[m] = Chord.intervals(Chord.MODIFIERS[m]);
+        }
+    }
+
+    /**
+     * Adds the bass line under a chord per measure for every complete measure before a tick
+     * @param timing the measures of the sequence
+     * @param endTick the end of the track the line is played under
+     * @param chords the chord of each measure, as found by HarmonyAnalyzer
+     * @param velocity the velocity of the notes, from 1 to 127
+     * @param channel the MIDI channel of the notes
+     * @param events the builder the NOTE_ON and NOTE_OFF events are added to
+     */
+    public static void walk(TimingModel timing, long endTick, Chord[] chords, int velocity, int channel,
+                            EventBuilder events) {
+        if (velocity < 1 || velocity > 127) {
+            throw new IllegalArgumentException("Velocity must be between 1 and 127");
+        }
+        long numMeasures = Math.min(timing.measureAt(endTick), chords.length);
+        int ppq = timing.getResolution();
+        int previous = -1;
+        for (int m = 0; m < numMeasures; m++) {
+            Chord chord = chords[m];
+            int root = HarmonyAnalyzer.placeRoot(chord.getKey() % 12, BASS_REGISTER);
+            int next = m + 1 < numMeasures
+                    ? HarmonyAnalyzer.placeRoot(chords[m + 1].getKey() % 12, BASS_REGISTER)
+                    : -1;
+            int eighths = timing.eighthsIn(m);
+            int beats = (eighths + 1) / 2;
+            long first = timing.firstEighth(m);
+            for (int beat = 0; beat < beats; beat++) {
+                int pitch = note(chord, root, next, beat, beats, previous);
+                long on = timing.tickOfEighth(first + 2L * beat) + 1;
+                // every note lasts until the next begins, an eighth at the end of an odd measure
+                long off = beat * 2 + 2 <= eighths
+                        ? timing.tickOfEighth(first + 2L * beat + 2) + 1
+                        : on + ppq / 2;
+                events.addNote(on, off, channel, pitch, velocity);
+                previous = pitch;
+            }
+        }
+    }
+
+    /**
+     * Picks the note of one beat of a measure
+     * @param root the root of the chord of the measure in the bass register
+     * @param next the root of the chord of the next measure in the bass register, or -1 after the last
+     * @param previous the note of the beat before, or -1 for the first
+     */
+    private static int note(Chord chord, int root, int next, int beat, int beats, int previous) {
+        if (beat == 0) {
+            return root;
+        }
+        if (beat == beats - 1 && next >= 0) {
+            // approach from whichever side the line is already on
+            int approach = previous > next ? next + 1 : next - 1;
+            return fold(approach);
+        }
+        // climb through the chord toward a higher next root, fall toward a lower one
+        boolean up = next < 0 || next >= root;
+        int tones = toneCount(chord);
+        if (tones == 1) {
+            return root;
+        }
+        int step = beat % tones;
+        if (step == 0) {
+            step = 1;
+        }
+        int interval = tone(chord, step);
+        return fold(up ? root + interval : root + interval - 12);
+    }
+
+    private static int toneCount(Chord chord) {
+        int m = chord.getModifierIndex();
+        return m >= 0 ? TONES[m].length : chord.size();
+    }
+
+    private static int tone(Chord chord, int i) {
+        int m = chord.getModifierIndex();
+        if (m >= 0) {
+            return TONES[m][i] % 12;
+        }
+        return ((chord.getNote(i) - chord.getKey()) % 12 + 12) % 12;
+    }
+
+    private static int fold(int pitch) {
+        while (pitch < LOWEST) {
+            pitch += 12;
+        }
+        while (pitch > HIGHEST) {
+            pitch -= 12;
+        }
+        return pitch;
+    }
+}